@@ -29,10 +29,17 @@ import java.util.regex.Pattern;
 
 public class Constants {
 
-    // M3U file attributes
+    /*
+     M3U file attributes. They aren't used anymore since the playlists get tokenized in a single
+     pass by AvContentUtil but are kept for the applications relying on them.
+     */
+    @Deprecated
     public static final Pattern ATTRIBUTE_TVG_ID_PATTERN = Pattern.compile("tvg-id.\"(.*?)\"", Pattern.CASE_INSENSITIVE);
+    @Deprecated
     public static final Pattern ATTRIBUTE_TVG_LOGO_PATTERN = Pattern.compile("tvg-logo.\"(.*?)\"", Pattern.CASE_INSENSITIVE);
+    @Deprecated
     public static final Pattern ATTRIBUTE_TVG_NAME_PATTERN = Pattern.compile("tvg-name.\"(.*?)\"", Pattern.CASE_INSENSITIVE);
+    @Deprecated
     public static final Pattern ATTRIBUTE_GROUP_TITLE_PATTERN = Pattern.compile("group-title.\"(.*?)\"", Pattern.CASE_INSENSITIVE);
 
     // Channel configuration stuff
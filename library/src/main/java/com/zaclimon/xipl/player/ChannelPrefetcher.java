@@ -0,0 +1,484 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.UriUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-buffers the start of the streams of channels that are likely to be tuned next so changing
+ * to them doesn't wait for the playlists and the first segments to be downloaded.
+ * <p>
+ * Only HLS streams are pre-buffered. The playlists of a stream and the segments a player starts
+ * with are kept in memory within a given size and served once to a {@link ProviderTvPlayer}
+ * through the {@link DataSource.Factory} given by {@link #createDataSourceFactory(DataSource.Factory)}.
+ * Downloads are limited to a given bitrate and amount of connections so they don't disturb the
+ * playback or go over the connections allowed by a provider. Buffered streams that don't get
+ * played are discarded after {@link #BUFFER_LIFETIME_MILLIS}.
+ *
+ * @author zaclimon
+ * Creation date: 18/08/18
+ */
+public class ChannelPrefetcher {
+
+    /**
+     * The time after which the buffered streams are discarded if they weren't played.
+     */
+    public static final long BUFFER_LIFETIME_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private static final String LOG_TAG = "ChannelPrefetcher";
+
+    /**
+     * The amount of segments before the end of a live playlist from which a player starts.
+     */
+    private static final int LIVE_START_SEGMENT_COUNT = 3;
+    private static final int READ_LENGTH = 16 * 1024;
+
+    private final DataSource.Factory mDataSourceFactory;
+    private final int mBufferSize;
+    private final int mConnectionBitrate;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+    private final Map<String, Entry> mEntries;
+    private final List<Future<?>> mFetches;
+    private final Set<DataSource> mOpenSources;
+    private int mBufferedBytes;
+    private volatile int mGeneration;
+
+    private final Runnable mDiscardRunnable = new Runnable() {
+        @Override
+        public void run() {
+            discard();
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param context         the context used to download the streams
+     * @param bufferSize      the maximum amount of bytes kept for all the streams
+     * @param bitrate         the maximum bitrate in bits per second used for the downloads
+     * @param connectionCount the maximum amount of streams downloaded at the same time
+     */
+    public ChannelPrefetcher(Context context, int bufferSize, int bitrate, int connectionCount) {
+        this(new DefaultDataSourceFactory(context, ProviderTvPlayer.getUserAgent(context)), bufferSize, bitrate, connectionCount);
+    }
+
+    /**
+     * Constructor downloading the streams from a given factory.
+     *
+     * @param dataSourceFactory the factory of the sources used for the downloads
+     * @param bufferSize        the maximum amount of bytes kept for all the streams
+     * @param bitrate           the maximum bitrate in bits per second used for the downloads
+     * @param connectionCount   the maximum amount of streams downloaded at the same time
+     */
+    @VisibleForTesting
+    ChannelPrefetcher(DataSource.Factory dataSourceFactory, int bufferSize, int bitrate, int connectionCount) {
+        mDataSourceFactory = dataSourceFactory;
+        mBufferSize = bufferSize;
+        mConnectionBitrate = Math.max(1, bitrate / connectionCount);
+        mExecutor = Executors.newFixedThreadPool(connectionCount);
+        mHandler = new Handler(Looper.getMainLooper());
+        mEntries = new HashMap<>();
+        mFetches = new ArrayList<>();
+        mOpenSources = Collections.newSetFromMap(new IdentityHashMap<DataSource, Boolean>());
+    }
+
+    /**
+     * Pre-buffers the given streams in place of the ones currently buffered. The memory and
+     * connections are shared evenly between the streams.
+     *
+     * @param urls the urls of the streams
+     */
+    public void prefetch(List<String> urls) {
+        cancel();
+        discard();
+
+        List<String> hlsUrls = new ArrayList<>();
+
+        for (String url : urls) {
+            if (url != null && url.endsWith(".m3u8")) {
+                hlsUrls.add(url);
+            }
+        }
+
+        if (hlsUrls.isEmpty()) {
+            return;
+        }
+
+        final int streamBufferSize = mBufferSize / hlsUrls.size();
+        final int generation = mGeneration;
+
+        for (final String url : hlsUrls) {
+            mFetches.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetchStream(url, streamBufferSize, generation);
+                }
+            }));
+        }
+
+        mHandler.postDelayed(mDiscardRunnable, BUFFER_LIFETIME_MILLIS);
+    }
+
+    /**
+     * Stops the downloads while keeping what has already been buffered. This should be called
+     * before a channel gets tuned so the connections used for the downloads are free to play it.
+     */
+    public void cancel() {
+        mGeneration++;
+
+        for (Future<?> fetch : mFetches) {
+            fetch.cancel(true);
+        }
+
+        mFetches.clear();
+
+        // Interrupting a download doesn't stop a read blocked on the network, closing its source does.
+        final List<DataSource> openSources;
+
+        synchronized (mOpenSources) {
+            openSources = new ArrayList<>(mOpenSources);
+            mOpenSources.clear();
+        }
+
+        if (!openSources.isEmpty()) {
+            // Closing a source may wait for the network so it isn't done on the calling thread.
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (DataSource dataSource : openSources) {
+                        try {
+                            dataSource.close();
+                        } catch (IOException io) {
+                            Log.w(LOG_TAG, "Couldn't close a cancelled download: " + io.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Frees the buffered streams.
+     */
+    public synchronized void discard() {
+        mHandler.removeCallbacks(mDiscardRunnable);
+        mEntries.clear();
+        mBufferedBytes = 0;
+    }
+
+    /**
+     * Stops the downloads and frees the resources used by the pre-buffering. The instance can't
+     * be used afterwards.
+     */
+    public void release() {
+        cancel();
+        discard();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Gives a factory of {@link DataSource} reading the buffered streams before using the network.
+     *
+     * @param upstreamFactory the factory of the sources used for what isn't buffered
+     * @return the factory to be used by a player
+     */
+    public DataSource.Factory createDataSourceFactory(final DataSource.Factory upstreamFactory) {
+        return (new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return (new BufferedDataSource(upstreamFactory.createDataSource()));
+            }
+        });
+    }
+
+    /**
+     * Downloads the playlists of a stream and the segments a player starts with, following the
+     * first variant of a master playlist since it's the one loaded before adapting to the
+     * bandwidth.
+     */
+    private void fetchStream(String url, int bufferSize, int generation) {
+        int remainingSize = bufferSize;
+
+        try {
+            String playlistUrl = url;
+            HlsPlaylist playlist;
+
+            do {
+                Entry entry = fetch(playlistUrl, remainingSize, generation);
+
+                if (entry == null || !put(playlistUrl, entry, generation)) {
+                    return;
+                }
+
+                remainingSize -= entry.mData.length;
+                playlist = new HlsPlaylistParser().parse(entry.mUri, new ByteArrayInputStream(entry.mData));
+
+                if (playlist instanceof HlsMasterPlaylist) {
+                    List<HlsMasterPlaylist.HlsUrl> variants = ((HlsMasterPlaylist) playlist).variants;
+
+                    if (variants.isEmpty()) {
+                        return;
+                    }
+
+                    playlistUrl = UriUtil.resolve(playlist.baseUri, variants.get(0).url);
+                }
+            } while (playlist instanceof HlsMasterPlaylist);
+
+            HlsMediaPlaylist mediaPlaylist = (HlsMediaPlaylist) playlist;
+            List<HlsMediaPlaylist.Segment> segments = mediaPlaylist.segments;
+            int startIndex = mediaPlaylist.hasEndTag ? 0 : Math.max(0, segments.size() - LIVE_START_SEGMENT_COUNT);
+
+            // Fragmented MP4 and byte range segments aren't loaded as whole urls by the player.
+            if (mediaPlaylist.initializationSegment != null) {
+                return;
+            }
+
+            for (int i = startIndex; i < segments.size(); i++) {
+                HlsMediaPlaylist.Segment segment = segments.get(i);
+
+                if (segment.byterangeLength != C.LENGTH_UNSET) {
+                    return;
+                }
+
+                String segmentUrl = UriUtil.resolve(mediaPlaylist.baseUri, segment.url);
+                Entry entry = fetch(segmentUrl, remainingSize, generation);
+
+                if (entry == null || !put(segmentUrl, entry, generation)) {
+                    return;
+                }
+
+                remainingSize -= entry.mData.length;
+            }
+        } catch (IOException io) {
+            Log.w(LOG_TAG, "Couldn't pre-buffer " + url + ": " + io.getMessage());
+        }
+    }
+
+    /**
+     * Gets the number incremented each time the downloads are cancelled, passed to the downloads
+     * started in between.
+     */
+    @VisibleForTesting
+    int getGeneration() {
+        return (mGeneration);
+    }
+
+    /**
+     * Downloads a given url at the bitrate of a connection. The source used can be closed by
+     * {@link #cancel()} while it's being read.
+     *
+     * @return the downloaded data or null if it's larger than the given size or the downloads
+     * were cancelled.
+     */
+    @VisibleForTesting
+    Entry fetch(String url, int maxSize, int generation) throws IOException {
+        DataSource dataSource = mDataSourceFactory.createDataSource();
+
+        synchronized (mOpenSources) {
+            if (generation != mGeneration) {
+                return (null);
+            }
+
+            mOpenSources.add(dataSource);
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_LENGTH];
+        long startTime = SystemClock.elapsedRealtime();
+
+        try {
+            long length = dataSource.open(new DataSpec(Uri.parse(url)));
+
+            if (length > maxSize) {
+                return (null);
+            }
+
+            int readLength;
+
+            while ((readLength = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                if (generation != mGeneration || outputStream.size() + readLength > maxSize) {
+                    return (null);
+                }
+
+                outputStream.write(buffer, 0, readLength);
+
+                // Wait for the time the data would have taken at the allowed bitrate.
+                long delay = outputStream.size() * 8L * 1000 / mConnectionBitrate - (SystemClock.elapsedRealtime() - startTime);
+
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            }
+
+            return (new Entry(dataSource.getUri(), outputStream.toByteArray()));
+        } catch (InterruptedException ie) {
+            return (null);
+        } catch (IOException | RuntimeException e) {
+            // Reading a source closed by cancel() fails, which only means the download stopped.
+            if (generation != mGeneration) {
+                return (null);
+            }
+
+            throw e;
+        } finally {
+            boolean open;
+
+            synchronized (mOpenSources) {
+                open = mOpenSources.remove(dataSource);
+            }
+
+            if (open) {
+                dataSource.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps a downloaded url if it fits in the buffer and the downloads weren't cancelled.
+     */
+    @VisibleForTesting
+    synchronized boolean put(String url, Entry entry, int generation) {
+        if (generation != mGeneration || mBufferedBytes + entry.mData.length > mBufferSize) {
+            return (false);
+        }
+
+        mEntries.put(url, entry);
+        mBufferedBytes += entry.mData.length;
+        return (true);
+    }
+
+    /**
+     * Removes a buffered url so it's only served once.
+     */
+    private synchronized Entry take(String url) {
+        Entry entry = mEntries.remove(url);
+
+        if (entry != null) {
+            mBufferedBytes -= entry.mData.length;
+        }
+
+        return (entry);
+    }
+
+    /**
+     * Data of a downloaded url along with the url it was actually read from after redirects,
+     * against which relative urls are resolved.
+     */
+    @VisibleForTesting
+    static class Entry {
+
+        private final Uri mUri;
+        private final byte[] mData;
+
+        Entry(Uri uri, byte[] data) {
+            mUri = uri;
+            mData = data;
+        }
+    }
+
+    /**
+     * {@link DataSource} serving whole urls from the buffer and anything else from the network.
+     */
+    private class BufferedDataSource implements DataSource {
+
+        private final DataSource mUpstream;
+        private Entry mEntry;
+        private int mPosition;
+
+        private BufferedDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            if (dataSpec.position == 0 && dataSpec.length == C.LENGTH_UNSET) {
+                mEntry = take(dataSpec.uri.toString());
+            }
+
+            if (mEntry != null) {
+                mPosition = 0;
+                return (mEntry.mData.length);
+            }
+
+            return (mUpstream.open(dataSpec));
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (mEntry == null) {
+                return (mUpstream.read(buffer, offset, readLength));
+            }
+
+            if (mPosition == mEntry.mData.length) {
+                return (C.RESULT_END_OF_INPUT);
+            }
+
+            int length = Math.min(readLength, mEntry.mData.length - mPosition);
+            System.arraycopy(mEntry.mData, mPosition, buffer, offset, length);
+            mPosition += length;
+            return (length);
+        }
+
+        @Override
+        public Uri getUri() {
+            return (mEntry != null ? mEntry.mUri : mUpstream.getUri());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mEntry != null) {
+                mEntry = null;
+            } else {
+                mUpstream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BandwidthMeter} shared by every player of the application whose estimates are kept on
+ * disk.
+ * <p>
+ * The bandwidth is measured separately for each network type and provider host. Until a transfer
+ * gives a new measure, the estimate last saved for the network and host in use is given instead
+ * of none so players start with the quality fitting the connection instead of ramping up to it.
+ *
+ * @author zaclimon
+ * Creation date: 19/08/18
+ */
+public class PersistentBandwidthMeter implements BandwidthMeter, TransferListener<Object> {
+
+    private static final String PREFERENCES_NAME = "bandwidth_estimates";
+
+    /**
+     * The minimum time between two saves of the estimate of a network and host.
+     */
+    private static final long SAVE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static PersistentBandwidthMeter sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final ConnectivityManager mConnectivityManager;
+    private final Map<String, DefaultBandwidthMeter> mMeters;
+    private final Map<String, Long> mSaveTimes;
+    private final Map<Object, String> mTransferKeys;
+    private String mCurrentKey;
+
+    private PersistentBandwidthMeter(Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE), (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
+    }
+
+    /**
+     * Constructor keeping the estimates in given preferences.
+     *
+     * @param preferences the preferences where the estimates are saved
+     * @param connectivityManager the manager giving the network in use
+     */
+    @VisibleForTesting
+    PersistentBandwidthMeter(SharedPreferences preferences, ConnectivityManager connectivityManager) {
+        mPreferences = preferences;
+        mConnectivityManager = connectivityManager;
+        mMeters = new HashMap<>();
+        mSaveTimes = new HashMap<>();
+        mTransferKeys = new IdentityHashMap<>();
+    }
+
+    /**
+     * Gets the meter used by the players of the application.
+     *
+     * @param context the context of the application
+     * @return the shared instance of the meter
+     */
+    public static synchronized PersistentBandwidthMeter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PersistentBandwidthMeter(context.getApplicationContext());
+        }
+
+        return (sInstance);
+    }
+
+    @Override
+    public synchronized long getBitrateEstimate() {
+        if (mCurrentKey == null) {
+            return (NO_ESTIMATE);
+        }
+
+        DefaultBandwidthMeter meter = mMeters.get(mCurrentKey);
+        long bitrateEstimate = meter != null ? meter.getBitrateEstimate() : NO_ESTIMATE;
+
+        if (bitrateEstimate == NO_ESTIMATE) {
+            bitrateEstimate = mPreferences.getLong(mCurrentKey, NO_ESTIMATE);
+        }
+
+        return (bitrateEstimate);
+    }
+
+    @Override
+    public synchronized void onTransferStart(Object source, DataSpec dataSpec) {
+        String key = getKey(dataSpec.uri.getHost());
+        DefaultBandwidthMeter meter = mMeters.get(key);
+
+        if (meter == null) {
+            meter = new DefaultBandwidthMeter();
+            mMeters.put(key, meter);
+        }
+
+        mCurrentKey = key;
+        mTransferKeys.put(source, key);
+        meter.onTransferStart(source, dataSpec);
+    }
+
+    @Override
+    public synchronized void onBytesTransferred(Object source, int bytesTransferred) {
+        String key = mTransferKeys.get(source);
+
+        if (key != null) {
+            mMeters.get(key).onBytesTransferred(source, bytesTransferred);
+        }
+    }
+
+    @Override
+    public synchronized void onTransferEnd(Object source) {
+        String key = mTransferKeys.remove(source);
+
+        if (key == null) {
+            return;
+        }
+
+        DefaultBandwidthMeter meter = mMeters.get(key);
+        meter.onTransferEnd(source);
+
+        long bitrateEstimate = meter.getBitrateEstimate();
+        Long saveTime = mSaveTimes.get(key);
+        long now = SystemClock.elapsedRealtime();
+
+        if (bitrateEstimate != NO_ESTIMATE && (saveTime == null || now - saveTime >= SAVE_INTERVAL_MILLIS)) {
+            mPreferences.edit().putLong(key, bitrateEstimate).apply();
+            mSaveTimes.put(key, now);
+        }
+    }
+
+    /**
+     * Gets the key of the estimate of a host on the network currently in use.
+     *
+     * @param host the host of a transfer
+     * @return the key under which the estimate is kept
+     */
+    private String getKey(String host) {
+        return (getNetworkType() + "/" + host);
+    }
+
+    /**
+     * Gets the type and subtype of the network currently in use.
+     *
+     * @return the network type or "none" if there isn't any
+     */
+    @VisibleForTesting
+    String getNetworkType() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        return (networkInfo != null ? networkInfo.getType() + "_" + networkInfo.getSubtype() : "none");
+    }
+}
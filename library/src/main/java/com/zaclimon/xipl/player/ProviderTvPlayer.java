@@ -34,9 +34,7 @@ import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelector;
-import com.google.android.exoplayer2.upstream.BandwidthMeter;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
 import com.google.android.media.tv.companionlibrary.TvPlayer;
@@ -58,6 +56,8 @@ public class ProviderTvPlayer implements TvPlayer {
     private SimpleExoPlayer player;
     private List<TvPlayer.Callback> callbacks;
     private String streamUrl;
+    private DataSource.Factory dataSourceFactory;
+    private ChannelPrefetcher channelPrefetcher;
 
     /**
      * Main constructor of the player.
@@ -66,8 +66,21 @@ public class ProviderTvPlayer implements TvPlayer {
      * @param url     the url containing the required stream to be played
      */
     public ProviderTvPlayer(Context context, String url) {
+        this(context, url, null);
+    }
+
+    /**
+     * Constructor of a player reading the streams pre-buffered by a {@link ChannelPrefetcher}
+     * before using the network.
+     *
+     * @param context           the context used to initialize the player
+     * @param url               the url containing the required stream to be played
+     * @param channelPrefetcher the pre-buffered streams or null if none
+     */
+    public ProviderTvPlayer(Context context, String url, ChannelPrefetcher channelPrefetcher) {
         callbacks = new ArrayList<>();
         streamUrl = url;
+        this.channelPrefetcher = channelPrefetcher;
         init(context);
     }
 
@@ -77,24 +90,39 @@ public class ProviderTvPlayer implements TvPlayer {
      * @param context the context needed to initialize the player.
      */
     private void init(Context context) {
-        BandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+        PersistentBandwidthMeter bandwidthMeter = PersistentBandwidthMeter.getInstance(context);
         TrackSelection.Factory videoTrackSelectionFactory = new AdaptiveTrackSelection.Factory(bandwidthMeter);
         TrackSelector trackSelector = new DefaultTrackSelector(videoTrackSelectionFactory);
 
+        // The bandwidth meter listens to the transfers so its estimate is kept for the next streams.
+        dataSourceFactory = new DefaultDataSourceFactory(context, getUserAgent(context), bandwidthMeter);
+
+        if (channelPrefetcher != null) {
+            dataSourceFactory = channelPrefetcher.createDataSourceFactory(dataSourceFactory);
+        }
+
         player = ExoPlayerFactory.newSimpleInstance(context, trackSelector);
-        player.prepare(getMediaSource(context));
+        player.prepare(getMediaSource());
+    }
+
+    /**
+     * Gets the user agent used by the player when requesting streams.
+     *
+     * @param context the context of the application
+     * @return the user agent of the application
+     */
+    static String getUserAgent(Context context) {
+        return (Util.getUserAgent(context, context.getApplicationInfo().loadLabel(context.getPackageManager()).toString()));
     }
 
     /**
      * Gets the required {@link MediaSource} depending on the stream source.
      *
-     * @param context The required context to get the correct MediaSource
      * @return the MediaSource used for the playback.
      */
-    private MediaSource getMediaSource(Context context) {
+    private MediaSource getMediaSource() {
 
         Uri mediaUrl = Uri.parse(streamUrl);
-        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(context, Util.getUserAgent(context, context.getApplicationInfo().loadLabel(context.getPackageManager()).toString()));
         MediaSource mediaSource;
 
          /*
@@ -194,7 +222,21 @@ public class ProviderTvPlayer implements TvPlayer {
      * @param context the context needed to re-prepare the player
      */
     public void restart(Context context) {
-        player.prepare(getMediaSource(context));
+        player.prepare(getMediaSource());
+    }
+
+    /**
+     * Switches the player to another stream.
+     * <p>
+     * The same player instance is prepared again so its playback thread, track selector and
+     * bandwidth estimate are kept. Preparing a new source still resets the renderers, so the
+     * decoders are created again for the new stream.
+     *
+     * @param url the url containing the stream to be played
+     */
+    public void setStreamUrl(String url) {
+        streamUrl = url;
+        player.prepare(getMediaSource(), true, true);
     }
 
     /**
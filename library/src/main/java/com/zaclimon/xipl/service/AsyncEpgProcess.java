@@ -3,17 +3,33 @@ package com.zaclimon.xipl.service;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.util.Log;
 
 import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
 import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+import com.zaclimon.xipl.Constants;
+import com.zaclimon.xipl.model.AvContent;
 import com.zaclimon.xipl.properties.ChannelProperties;
+import com.zaclimon.xipl.util.AvContentUtil;
+import com.zaclimon.xipl.util.FeedResponse;
+import com.zaclimon.xipl.util.FeedTimings;
 import com.zaclimon.xipl.util.ProviderChannelUtil;
 import com.zaclimon.xipl.util.RichFeedUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Custom class used to download and process in a asynchronous fashion the M3U playlist as well
@@ -24,6 +40,24 @@ import java.util.List;
  */
 public class AsyncEpgProcess extends AsyncTask<Void, Void, Boolean> {
 
+    private static final String LOG_TAG = "AsyncEpgProcess";
+    private static final int EXECUTOR_THREAD_COUNT = 2;
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+
+    /*
+     The last playlist that can be fetched conditionally, reused if it didn't change. Its contents
+     are only softly referenced so they can be reclaimed between syncs, in which case the playlist
+     is fetched again entirely.
+     */
+    private static final Object sPlaylistLock = new Object();
+    private static String sPlaylistUrl;
+    private static String sPlaylistETag;
+    private static String sPlaylistLastModified;
+    private static SoftReference<List<AvContent>> sPlaylistContents;
+
+    // Retrieves the playlist while the EPG is retrieved on the task's thread.
+    private static final ExecutorService sExecutor = createExecutor();
+
     private WeakReference<Context> mReference;
     private String mPlaylistUrl;
     private String mEpgUrl;
@@ -31,6 +65,14 @@ public class AsyncEpgProcess extends AsyncTask<Void, Void, Boolean> {
     private List<Channel> mChannels;
     private XmlTvParser.TvListing mTvListing;
     private EpgProcessingCallback mCallback;
+    private long mStartMs;
+    private long mEndMs;
+    private long mMarginMs;
+    private boolean mFilterEpg;
+    private final FeedTimings mPlaylistTimings = new FeedTimings();
+    private final FeedTimings mEpgTimings = new FeedTimings();
+    private long mChannelBuildMillis;
+    private long mTotalMillis;
 
     public AsyncEpgProcess(Context context, String playlistUrl, String epgUrl, ChannelProperties channelProperties, EpgProcessingCallback epgProcessingCallback) {
         mReference = new WeakReference<>(context);
@@ -40,29 +82,230 @@ public class AsyncEpgProcess extends AsyncTask<Void, Void, Boolean> {
         mCallback = epgProcessingCallback;
     }
 
+    /**
+     * Constructor which only keeps the EPG programs that are needed for a given sync. That is the
+     * programs of the channels from the playlist which are airing during a given time window.
+     *
+     * @param context the context used to retrieve the playlist and the EPG
+     * @param playlistUrl the url of the M3U playlist
+     * @param epgUrl the url of the XMLTV EPG if any
+     * @param channelProperties the properties used to create the channels
+     * @param startMs the start of the time window in milliseconds
+     * @param endMs the end of the time window in milliseconds
+     * @param epgProcessingCallback the callback notified once the processing is done
+     */
+    public AsyncEpgProcess(Context context, String playlistUrl, String epgUrl, ChannelProperties channelProperties, long startMs, long endMs, EpgProcessingCallback epgProcessingCallback) {
+        this(context, playlistUrl, epgUrl, channelProperties, startMs, endMs, 0, epgProcessingCallback);
+    }
+
+    /**
+     * Constructor which only keeps the EPG programs that are needed for a given sync, along with
+     * the ones ending up to a given margin after it if the EPG gets parsed. Later syncs whose
+     * window moved by less than the margin can then reuse the listing.
+     *
+     * @param context the context used to retrieve the playlist and the EPG
+     * @param playlistUrl the url of the M3U playlist
+     * @param epgUrl the url of the XMLTV EPG if any
+     * @param channelProperties the properties used to create the channels
+     * @param startMs the start of the time window in milliseconds
+     * @param endMs the end of the time window in milliseconds
+     * @param marginMs the time kept after the end of the window when parsing, in milliseconds
+     * @param epgProcessingCallback the callback notified once the processing is done
+     */
+    public AsyncEpgProcess(Context context, String playlistUrl, String epgUrl, ChannelProperties channelProperties, long startMs, long endMs, long marginMs, EpgProcessingCallback epgProcessingCallback) {
+        this(context, playlistUrl, epgUrl, channelProperties, epgProcessingCallback);
+        mStartMs = startMs;
+        mEndMs = endMs;
+        mMarginMs = marginMs;
+        mFilterEpg = true;
+    }
+
     @Override
     public Boolean doInBackground(Void... params) {
 
-        Context context = mReference.get();
+        final Context context = mReference.get();
 
         if (context != null) {
-            try {
-                InputStream inputStream = RichFeedUtil.getInputStream(context, Uri.parse(mPlaylistUrl));
 
-                if (mEpgUrl != null) {
-                    mTvListing = RichFeedUtil.getRichTvListings(context, mEpgUrl);
+            long processStart = System.nanoTime();
+
+            /*
+             The playlist and the EPG are retrieved at the same time. Since only the programs of
+             the channels present in the playlist are kept, the EPG is connected to right away but
+             it is only parsed once the channels are created.
+             */
+
+            final Future<List<Channel>> channelsFuture = sExecutor.submit(new Callable<List<Channel>>() {
+                @Override
+                public List<Channel> call() {
+                    List<AvContent> playlistContents = getPlaylistContents(context);
+
+                    if (playlistContents == null) {
+                        return (null);
+                    }
+
+                    long buildStart = System.nanoTime();
+                    List<Channel> channels = ProviderChannelUtil.createChannelList(playlistContents, context, mChannelProperties);
+                    mChannelBuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buildStart);
+                    return (channels);
                 }
+            });
+
+            if (mEpgUrl != null) {
+                Callable<Set<Long>> channelIdsProvider = new Callable<Set<Long>>() {
+                    @Override
+                    public Set<Long> call() throws Exception {
+                        if (!mFilterEpg) {
+                            return (null);
+                        }
 
-                mChannels = ProviderChannelUtil.createChannelList(inputStream, context, mChannelProperties);
+                        List<Channel> channels = channelsFuture.get();
 
-                return (mChannels != null);
-            } catch (IOException io) {
-                io.printStackTrace();
+                        if (channels == null) {
+                            throw new IOException("The playlist couldn't be retrieved");
+                        }
+                        return (getEpgIds(channels));
+                    }
+                };
+
+                long startMs = mFilterEpg ? mStartMs : Long.MIN_VALUE;
+                long endMs = mFilterEpg ? mEndMs : Long.MAX_VALUE;
+                mTvListing = RichFeedUtil.getRichTvListings(context, mEpgUrl, channelIdsProvider, startMs, endMs, mMarginMs, mEpgTimings);
+            }
+
+            try {
+                mChannels = channelsFuture.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(LOG_TAG, "Couldn't create the channels", e);
+                return (false);
             }
+
+            mTotalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - processStart);
+            Log.d(LOG_TAG, "Playlist: " + mPlaylistTimings + ", channel build " + mChannelBuildMillis
+                    + " ms. EPG: " + mEpgTimings + ". Total: " + mTotalMillis + " ms");
+
+            return (mChannels != null);
         }
         return (false);
     }
 
+    /**
+     * Gets the time spent in each stage of the retrieval of the playlist.
+     *
+     * @return the playlist timings
+     */
+    public FeedTimings getPlaylistTimings() {
+        return (mPlaylistTimings);
+    }
+
+    /**
+     * Gets the time spent in each stage of the retrieval of the EPG.
+     *
+     * @return the EPG timings
+     */
+    public FeedTimings getEpgTimings() {
+        return (mEpgTimings);
+    }
+
+    /**
+     * Gets the time spent creating the channels from the playlist.
+     *
+     * @return the channel build time in milliseconds
+     */
+    public long getChannelBuildMillis() {
+        return (mChannelBuildMillis);
+    }
+
+    /**
+     * Gets the time spent retrieving both the playlist and the EPG.
+     *
+     * @return the total time in milliseconds
+     */
+    public long getTotalMillis() {
+        return (mTotalMillis);
+    }
+
+    /**
+     * Retrieves the contents of the playlist. If it didn't change since the last time it was
+     * fetched, the previously parsed contents are given back instead.
+     *
+     * @param context the context used to retrieve the playlist
+     * @return the contents of the playlist or null if it couldn't be retrieved
+     */
+    private List<AvContent> getPlaylistContents(Context context) {
+
+        List<AvContent> previousContents = null;
+        String eTag = null;
+        String lastModified = null;
+
+        // Only the validators are read and updated under the lock, not the retrieval itself.
+        synchronized (sPlaylistLock) {
+            if (mPlaylistUrl.equals(sPlaylistUrl) && sPlaylistContents != null) {
+                previousContents = sPlaylistContents.get();
+            }
+
+            if (previousContents != null) {
+                eTag = sPlaylistETag;
+                lastModified = sPlaylistLastModified;
+            }
+        }
+
+        try (FeedResponse response = RichFeedUtil.getFeedResponse(context, Uri.parse(mPlaylistUrl), eTag, lastModified)) {
+            if (response.isNotModified()) {
+                Log.d(LOG_TAG, "Playlist not modified, reusing the previous contents");
+                mPlaylistTimings.record(response, 0);
+                return (previousContents);
+            }
+
+            long readStart = System.nanoTime();
+            List<AvContent> contents = AvContentUtil.getAvContentsList(response.getInputStream());
+            mPlaylistTimings.record(response, System.nanoTime() - readStart);
+
+            // Only keep the contents if the playlist can be revalidated later on.
+            synchronized (sPlaylistLock) {
+                sPlaylistUrl = response.hasValidators() ? mPlaylistUrl : null;
+                sPlaylistETag = response.getETag();
+                sPlaylistLastModified = response.getLastModified();
+                sPlaylistContents = response.hasValidators() ? new SoftReference<>(contents) : null;
+            }
+            return (contents);
+        } catch (IOException io) {
+            io.printStackTrace();
+            return (null);
+        }
+    }
+
+    /**
+     * Gets the EPG ids of a given list of channels as they would be found in a XMLTV feed.
+     *
+     * @param channels the channels from the playlist
+     * @return the set of EPG ids for these channels
+     */
+    private Set<Long> getEpgIds(List<Channel> channels) {
+
+        Set<Long> epgIds = new HashSet<>();
+
+        for (Channel channel : channels) {
+            InternalProviderData internalProviderData = channel.getInternalProviderData();
+
+            try {
+                if (internalProviderData != null && internalProviderData.has(Constants.EPG_ID_PROVIDER)) {
+                    epgIds.add(Long.parseLong((String) internalProviderData.get(Constants.EPG_ID_PROVIDER)));
+                }
+            } catch (InternalProviderData.ParseException ps) {
+                Log.e(LOG_TAG, "Couldn't get the EPG id of " + channel.getDisplayName());
+            }
+        }
+        return (epgIds);
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(EXECUTOR_THREAD_COUNT, EXECUTOR_THREAD_COUNT,
+                EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return (executor);
+    }
+
     @Override
     public void onPostExecute(Boolean result) {
 
@@ -21,18 +21,25 @@ import android.content.Intent;
 import android.net.Uri;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
+import com.google.android.media.tv.companionlibrary.sync.SyncMetrics;
 import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
 import com.zaclimon.xipl.Constants;
 import com.zaclimon.xipl.properties.ChannelProperties;
 import com.zaclimon.xipl.util.ProviderChannelUtil;
+import com.zaclimon.xipl.util.FeedTimings;
+import com.zaclimon.xipl.util.RichFeedUtil;
+import com.zaclimon.xipl.util.TvListingCache;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 
@@ -41,19 +48,33 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * It downloads and parses the content from a user's M3U playlist + possible EPG XMLTV to adds it to
  * the Android TV's system database in order to be used by the Live Channels application.
+ * <p>
+ * Each job keeps its own channels and listing since a channel sync can run along a full sync.
+ * Channel syncs don't download the playlist again and reuse the listing already in memory.
+ * <p>
+ * The EPG is parsed into a listing instead of being handled as it is parsed through
+ * {@link XmlTvParser.TvListingHandler} since the channels are only written once the playlist is
+ * processed and the listing is cached for the next syncs.
  *
  * @author zaclimon
  * Creation date: 11/06/17
  */
 
-public abstract class ProviderEpgService extends EpgSyncJobService implements EpgProcessingCallback {
+public abstract class ProviderEpgService extends EpgSyncJobService {
+
+    /*
+     The parsed EPG goes a bit further than the sync duration so the periodic sync done 12 hours
+     later can reuse the same listing if the EPG didn't change in the meantime.
+     */
+    private static final long EPG_WINDOW_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(13);
+
+    // Typical TV devices have 4 cores, more workers would mostly wait on the database writes.
+    private static final int MAX_PROGRAM_WORKER_COUNT = 4;
 
     private final String LOG_TAG = getClass().getSimpleName();
 
-    private List<Channel> mChannels;
-    private String mInputId;
-    private XmlTvParser.TvListing mTvListing;
-    private JobParameters mJobParameters;
+    // The data of the jobs being processed or synced by job id.
+    private final SparseArray<JobData> mJobs = new SparseArray<>();
 
     /**
      * Used to get the playlist URL from a provider.
@@ -73,13 +94,31 @@ public abstract class ProviderEpgService extends EpgSyncJobService implements Ep
      */
     protected abstract ChannelProperties getChannelProperties();
 
+    /**
+     * Not used since each job has its own channels, see {@link #getChannels(JobParameters)}.
+     */
     @Override
     public List<Channel> getChannels() {
-        return (mChannels);
+        return (null);
     }
 
+    @Override
+    public List<Channel> getChannels(JobParameters params) {
+        JobData jobData = getJobData(params);
+        return (jobData != null ? jobData.mChannels : null);
+    }
+
+    /**
+     * Not used since each job has its own listing, see
+     * {@link #getProgramsForChannel(JobParameters, Uri, Channel, long, long)}.
+     */
     @Override
     public List<Program> getProgramsForChannel(Uri channelUri, Channel channel, long startMs, long endMs) {
+        return (null);
+    }
+
+    @Override
+    public List<Program> getProgramsForChannel(JobParameters params, Uri channelUri, Channel channel, long startMs, long endMs) {
 
         /*
          The XMLTV file an EPG contains an ID that might be used across one or several channels.
@@ -90,10 +129,23 @@ public abstract class ProviderEpgService extends EpgSyncJobService implements Ep
          create a dummy program so the EPG guide from "Live Channels" can categorize the channel.
 
          Finally, retrieve a given channel's genre based on it's internal provider data. This
-         information will be passed to the Live Channels's guide.
+         information will be passed to the Live Channels's guide. The genres are decoded once and
+         shared by all the programs of the channel.
          */
 
         InternalProviderData internalProviderData = channel.getInternalProviderData();
+        JobData jobData = getJobData(params);
+
+        if (jobData == null) {
+            return (null);
+        }
+
+        XmlTvParser.TvListing tvListing = getTvListing(params, jobData);
+
+        if (tvListing == null && jobData.mChannelSync && getEpgUrl() != null) {
+            // Keep the stored programs rather than replacing them by a dummy one.
+            return (null);
+        }
 
         try {
             if (internalProviderData != null && internalProviderData.has(Constants.EPG_ID_PROVIDER)) {
@@ -102,28 +154,26 @@ public abstract class ProviderEpgService extends EpgSyncJobService implements Ep
                 List<Program> tempPrograms = new ArrayList<>();
                 String epgId = (String) internalProviderData.get(Constants.EPG_ID_PROVIDER);
                 String channelGenresJson = (String) internalProviderData.get(Constants.CHANNEL_GENRES_PROVIDER);
+                String[] channelGenres = ProviderChannelUtil.getGenresArrayFromJson(channelGenresJson);
                 int epgIdInt = Integer.parseInt(epgId);
 
-                if (epgIdInt != 0 && mTvListing != null && mTvListing.getPrograms(epgIdInt) != null) {
-                    tempPrograms = mTvListing.getPrograms(epgIdInt);
+                if (channelGenres == null) {
+                    // The genres of the listing are still replaced even if the channel has none.
+                    channelGenres = new String[0];
+                }
+
+                if (epgIdInt != 0 && tvListing != null) {
+                    // The listing gives a new copy of the programs, ready to be stored, on each call.
+                    List<Program> listingPrograms = tvListing.getPrograms(epgIdInt, channel.getId(), channelGenres);
+
+                    if (listingPrograms != null) {
+                        tempPrograms = listingPrograms;
+                    }
                 }
 
                 // Create a dummy program for listing a channel's genre if there are no programs.
                 if (tempPrograms.isEmpty()) {
-                    Program.Builder builder = new Program.Builder(channel);
-                    long startTimeMillis = ProviderChannelUtil.getLastHalfHourMillis();
-                    long endTimeMillis = startTimeMillis + TimeUnit.DAYS.toMillis(7);
-                    builder.setStartTimeUtcMillis(startTimeMillis);
-                    builder.setEndTimeUtcMillis(endTimeMillis);
-                    builder.setCanonicalGenres(ProviderChannelUtil.getGenresArrayFromJson(channelGenresJson));
-                    tempPrograms.add(builder.build());
-                } else {
-                    // Set genres a given channel if it has programs.
-                    for (int i = 0; i < tempPrograms.size(); i++) {
-                        Program.Builder builder = new Program.Builder(tempPrograms.get(i));
-                        builder.setCanonicalGenres(ProviderChannelUtil.getGenresArrayFromJson(channelGenresJson));
-                        tempPrograms.set(i, builder.build());
-                    }
+                    tempPrograms.add(ProviderChannelUtil.createPlaceholderProgram(channel, channelGenres, System.currentTimeMillis()));
                 }
 
                 return (tempPrograms);
@@ -135,38 +185,220 @@ public abstract class ProviderEpgService extends EpgSyncJobService implements Ep
         return (null);
     }
 
+    /**
+     * Prepares the programs of several channels at once since they only get read from the parsed
+     * listing.
+     */
+    @Override
+    public int getProgramWorkerCount() {
+        return (Math.min(MAX_PROGRAM_WORKER_COUNT, Runtime.getRuntime().availableProcessors()));
+    }
+
     @Override
     public boolean onStartJob(JobParameters params) {
+
+        if (getSyncChannelId(params) != -1) {
+            // The channel is already stored, only its programs are needed.
+            JobData jobData = new JobData(true);
+            jobData.mTvListing = getLatestTvListing();
+            putJobData(params, jobData);
+            return (super.onStartJob(params));
+        }
+
         // Broadcast status
-        mInputId = params.getExtras().getString(BUNDLE_KEY_INPUT_ID);
-        mJobParameters = params;
+        String inputId = params.getExtras().getString(BUNDLE_KEY_INPUT_ID);
+        putJobData(params, new JobData(false));
 
         Intent intent = new Intent(ACTION_SYNC_STATUS_CHANGED);
-        intent.putExtra(BUNDLE_KEY_INPUT_ID, mInputId);
-        Log.d(LOG_TAG, "Sync program data for " + mInputId);
+        intent.putExtra(BUNDLE_KEY_INPUT_ID, inputId);
+        Log.d(LOG_TAG, "Sync program data for " + inputId);
         intent.putExtra(SYNC_STATUS, SYNC_STARTED);
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 
-        AsyncEpgProcess asyncEpgProcess = new AsyncEpgProcess(this, getPlaylistUrl(), getEpgUrl(), getChannelProperties(), this);
+        /*
+         Only keep the programs airing during the sync along with a margin. Starting on the last
+         half hour lets syncs done shortly after reuse the cached listing. The margin is only
+         parsed, the cached listing is reused as long as it covers the sync itself.
+         */
+        long startMs = ProviderChannelUtil.getLastHalfHourMillis();
+        long endMs = startMs + getSyncDurationMillis(params);
+
+        JobProcessingCallback callback = new JobProcessingCallback(params);
+        AsyncEpgProcess asyncEpgProcess = new AsyncEpgProcess(this, getPlaylistUrl(), getEpgUrl(), getChannelProperties(), startMs, endMs, EPG_WINDOW_MARGIN_MILLIS, callback);
+        callback.mAsyncEpgProcess = asyncEpgProcess;
         asyncEpgProcess.execute();
         return (true);
     }
 
     @Override
-    public void onProcessSuccess(List<Channel> channels, XmlTvParser.TvListing listing) {
-        mChannels = channels;
-        mTvListing = listing;
-        EpgSyncTask epgSyncTask = new EpgSyncTask(mJobParameters);
-        epgSyncTask.execute();
+    public boolean onStopJob(JobParameters params) {
+        removeJobData(params);
+        return (super.onStopJob(params));
     }
 
     @Override
-    public void onProcessFailed() {
-        // Cancel the sync if we couldn't retrieve the link anything
-        Log.e(LOG_TAG, "Couldn't retrieve the playlist/EPG");
-        Intent intent = new Intent(EpgSyncJobService.ACTION_SYNC_STATUS_CHANGED);
-        intent.putExtra(EpgSyncJobService.SYNC_STATUS, EpgSyncJobService.SYNC_ERROR);
-        intent.putExtra(BUNDLE_KEY_ERROR_REASON, EpgSyncJobService.ERROR_NO_CHANNELS);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    protected void onSyncStarted(JobParameters params, SyncMetrics metrics) {
+        JobData jobData = getJobData(params);
+
+        if (jobData != null) {
+            synchronized (jobData) {
+                jobData.mMetrics = metrics;
+                setFeedTimings(metrics, SyncMetrics.FEED_CHANNELS, jobData.mPlaylistTimings);
+                setFeedTimings(metrics, SyncMetrics.FEED_PROGRAMS, jobData.mEpgTimings);
+            }
+        }
+    }
+
+    @Override
+    protected void onSyncFinished(JobParameters params) {
+        removeJobData(params);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        RichFeedUtil.getTvListingCache().trimMemory(level);
+    }
+
+    /**
+     * Removes the cached listing of the provider's EPG so the next sync fetches it again. This
+     * should be called when the EPG is known to have changed before its cache entry expires.
+     */
+    protected void invalidateEpgCache() {
+        RichFeedUtil.getTvListingCache().invalidate(getEpgUrl());
+    }
+
+    /**
+     * Gets the listing used by a job. A channel sync without any listing in memory, for instance
+     * after the process got restarted, retrieves the EPG as a full sync would so the following
+     * full sync can reuse it.
+     */
+    private XmlTvParser.TvListing getTvListing(JobParameters params, JobData jobData) {
+
+        if (!jobData.mChannelSync) {
+            return (jobData.mTvListing);
+        }
+
+        synchronized (jobData) {
+            String epgUrl = getEpgUrl();
+
+            if (jobData.mTvListing == null && !jobData.mTvListingRequested && epgUrl != null) {
+                jobData.mTvListingRequested = true;
+                long startMs = ProviderChannelUtil.getLastHalfHourMillis();
+                long endMs = startMs + getSyncDurationMillis(params);
+                Callable<Set<Long>> allChannels = new Callable<Set<Long>>() {
+                    @Override
+                    public Set<Long> call() {
+                        return (null);
+                    }
+                };
+                jobData.mEpgTimings = new FeedTimings();
+                jobData.mTvListing = RichFeedUtil.getRichTvListings(this, epgUrl, allChannels, startMs, endMs, EPG_WINDOW_MARGIN_MILLIS, jobData.mEpgTimings);
+                setFeedTimings(jobData.mMetrics, SyncMetrics.FEED_PROGRAMS, jobData.mEpgTimings);
+            }
+            return (jobData.mTvListing);
+        }
+    }
+
+    /**
+     * Gets the most recent listing in memory, the one of a full sync still running if any.
+     */
+    private XmlTvParser.TvListing getLatestTvListing() {
+
+        synchronized (mJobs) {
+            for (int i = 0; i < mJobs.size(); i++) {
+                JobData jobData = mJobs.valueAt(i);
+
+                if (!jobData.mChannelSync && jobData.mTvListing != null) {
+                    return (jobData.mTvListing);
+                }
+            }
+        }
+
+        String epgUrl = getEpgUrl();
+        TvListingCache.Entry entry = epgUrl != null ? RichFeedUtil.getTvListingCache().peek(epgUrl) : null;
+        return (entry != null ? entry.getTvListing() : null);
+    }
+
+    private static void setFeedTimings(SyncMetrics metrics, int feed, FeedTimings timings) {
+        if (metrics != null && timings != null) {
+            metrics.setFeedTimings(feed, timings.getConnectMillis(), timings.getDownloadMillis(), timings.getParseMillis());
+        }
+    }
+
+    private JobData getJobData(JobParameters params) {
+        synchronized (mJobs) {
+            return (mJobs.get(params.getJobId()));
+        }
+    }
+
+    private void putJobData(JobParameters params, JobData jobData) {
+        synchronized (mJobs) {
+            mJobs.put(params.getJobId(), jobData);
+        }
+    }
+
+    private void removeJobData(JobParameters params) {
+        synchronized (mJobs) {
+            mJobs.remove(params.getJobId());
+        }
+    }
+
+    /**
+     * The channels and listing of a job, along with the time spent retrieving them.
+     */
+    private static class JobData {
+
+        private final boolean mChannelSync;
+        private List<Channel> mChannels;
+        private XmlTvParser.TvListing mTvListing;
+        private boolean mTvListingRequested;
+        private FeedTimings mPlaylistTimings;
+        private FeedTimings mEpgTimings;
+        private SyncMetrics mMetrics;
+
+        private JobData(boolean channelSync) {
+            mChannelSync = channelSync;
+        }
+    }
+
+    /**
+     * Starts the sync of a job once its playlist and EPG are processed.
+     */
+    private class JobProcessingCallback implements EpgProcessingCallback {
+
+        private final JobParameters mJobParameters;
+        // Gives the time spent retrieving the feeds once they are processed.
+        private AsyncEpgProcess mAsyncEpgProcess;
+
+        private JobProcessingCallback(JobParameters jobParameters) {
+            mJobParameters = jobParameters;
+        }
+
+        @Override
+        public void onProcessSuccess(List<Channel> channels, XmlTvParser.TvListing listing) {
+            JobData jobData = getJobData(mJobParameters);
+
+            // The job might have been stopped in the meantime.
+            if (jobData != null) {
+                jobData.mChannels = channels;
+                jobData.mTvListing = listing;
+                jobData.mPlaylistTimings = mAsyncEpgProcess.getPlaylistTimings();
+                jobData.mEpgTimings = mAsyncEpgProcess.getEpgTimings();
+                startSyncTask(mJobParameters);
+            }
+        }
+
+        @Override
+        public void onProcessFailed() {
+            // Cancel the sync if we couldn't retrieve the link anything
+            Log.e(LOG_TAG, "Couldn't retrieve the playlist/EPG");
+            Intent intent = new Intent(EpgSyncJobService.ACTION_SYNC_STATUS_CHANGED);
+            intent.putExtra(EpgSyncJobService.SYNC_STATUS, EpgSyncJobService.SYNC_ERROR);
+            intent.putExtra(BUNDLE_KEY_ERROR_REASON, EpgSyncJobService.ERROR_NO_CHANNELS);
+            LocalBroadcastManager.getInstance(ProviderEpgService.this).sendBroadcast(intent);
+            removeJobData(mJobParameters);
+            jobFinished(mJobParameters, false);
+        }
     }
-}
\ No newline at end of file
+}
@@ -16,12 +16,18 @@
 
 package com.zaclimon.xipl.service;
 
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentUris;
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.media.tv.TvInputManager;
 import android.media.tv.TvTrackInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -41,6 +47,7 @@ import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
 import com.zaclimon.xipl.R;
+import com.zaclimon.xipl.player.ChannelPrefetcher;
 import com.zaclimon.xipl.player.ProviderTvPlayer;
 
 import java.util.ArrayList;
@@ -55,12 +62,111 @@ import java.util.List;
 
 public class ProviderTvInputService extends BaseTvInputService {
 
+    /**
+     * The default bitrate at which the channels adjacent to the tuned one are pre-buffered.
+     */
+    public static final int DEFAULT_ZAP_BUFFER_BITRATE = 4000000;
+
+    /**
+     * The time during which a channel must play before its adjacent channels get pre-buffered.
+     */
+    private static final long ZAP_BUFFER_DELAY_MILLIS = 3000;
+
+    private ComponentName mEpgSyncJobServiceComponent;
+    private boolean mEpgSyncJobServiceSearched;
+
     @Override
     public final Session onCreateSession(String inputId) {
         ProviderSession providerSession = new ProviderSession(this, inputId);
         return (super.sessionCreated(providerSession));
     }
 
+    /**
+     * Gives the {@link ProviderEpgService} declared by the application so the tuned channels get
+     * synced first and a channel without any program airing gets synced right away.
+     * <p>
+     * Override it if the application declares several of them.
+     *
+     * @return the component of the first job service extending {@link ProviderEpgService} or null
+     * if there isn't any
+     */
+    @Override
+    public ComponentName getEpgSyncJobServiceComponent() {
+
+        if (!mEpgSyncJobServiceSearched) {
+            mEpgSyncJobServiceComponent = findEpgSyncJobService();
+            mEpgSyncJobServiceSearched = true;
+        }
+
+        return (mEpgSyncJobServiceComponent);
+    }
+
+    private ComponentName findEpgSyncJobService() {
+
+        try {
+            ServiceInfo[] services = getPackageManager().getPackageInfo(getPackageName(), PackageManager.GET_SERVICES).services;
+
+            if (services == null) {
+                return (null);
+            }
+
+            for (ServiceInfo serviceInfo : services) {
+                if (JobService.PERMISSION_BIND.equals(serviceInfo.permission)
+                        && ProviderEpgService.class.isAssignableFrom(Class.forName(serviceInfo.name))) {
+                    return (new ComponentName(this, serviceInfo.name));
+                }
+            }
+        } catch (PackageManager.NameNotFoundException | ClassNotFoundException e) {
+            Log.e(getClass().getSimpleName(), "Couldn't find the EPG service", e);
+        }
+
+        return (null);
+    }
+
+    /**
+     * Gives the amount of memory used to pre-buffer the channels coming before and after the
+     * tuned one so switching to them is faster. Only HLS streams are pre-buffered.
+     * <p>
+     * Pre-buffering is disabled by default.
+     *
+     * @return the maximum amount of bytes pre-buffered or 0 to disable pre-buffering
+     */
+    protected int getZapBufferSize() {
+        return (0);
+    }
+
+    /**
+     * Gives the maximum bitrate used to pre-buffer the channels adjacent to the tuned one so it
+     * doesn't take the bandwidth needed by the playback.
+     *
+     * @return the bitrate in bits per second
+     */
+    protected int getZapBufferBitrate() {
+        return (DEFAULT_ZAP_BUFFER_BITRATE);
+    }
+
+    /**
+     * Gives the amount of connections the provider allows at the same time. Pre-buffering only
+     * uses the connections left by the playback so it's disabled if the provider only allows one.
+     *
+     * @return the maximum amount of simultaneous connections to the provider
+     */
+    protected int getMaxConnectionCount() {
+        return (1);
+    }
+
+    /**
+     * Called once a tuned channel starts playing so the time taken by channel changes can be
+     * measured.
+     * <p>
+     * The default implementation does nothing.
+     *
+     * @param channelUri the uri of the tuned channel
+     * @param zapMillis  the time between the tune request and the playback being ready
+     */
+    protected void onChannelZapped(Uri channelUri, long zapMillis) {
+    }
+
     /**
      * Custom {@link com.google.android.media.tv.companionlibrary.BaseTvInputService.Session} which
      * handles playback when a {@link Channel} is tuned.
@@ -72,8 +178,19 @@ public class ProviderTvInputService extends BaseTvInputService {
 
         private ProviderTvPlayer mProviderTvPlayer;
         private Context mContext;
+        private ChannelPrefetcher mChannelPrefetcher;
+        private Handler mHandler;
+        private boolean mZapBufferScheduled;
+        private long mTuneStartMillis;
         private static final boolean DEBUG = false;
 
+        private final Runnable mZapBufferRunnable = new Runnable() {
+            @Override
+            public void run() {
+                prefetchAdjacentChannels();
+            }
+        };
+
         /**
          * Base constructor
          *
@@ -83,6 +200,14 @@ public class ProviderTvInputService extends BaseTvInputService {
         public ProviderSession(Context context, String inputId) {
             super(context, inputId);
             mContext = context;
+            mHandler = new Handler();
+
+            int zapBufferSize = getZapBufferSize();
+            int zapConnectionCount = getMaxConnectionCount() - 1;
+
+            if (zapBufferSize > 0 && zapConnectionCount > 0) {
+                mChannelPrefetcher = new ChannelPrefetcher(context, zapBufferSize, getZapBufferBitrate(), zapConnectionCount);
+            }
         }
 
         @Override
@@ -93,8 +218,18 @@ public class ProviderTvInputService extends BaseTvInputService {
         @Override
         public void onPlayChannel(Channel channel) {
             if (channel.getInternalProviderData() !=  null) {
-                mProviderTvPlayer = new ProviderTvPlayer(mContext, channel.getInternalProviderData().getVideoUrl());
-                mProviderTvPlayer.addListener(this);
+                String videoUrl = channel.getInternalProviderData().getVideoUrl();
+
+                /*
+                 Reuse the player of the previous channel so its playback thread, track selector and
+                 bandwidth estimate carry over. Preparing it again still releases the decoders.
+                 */
+                if (mProviderTvPlayer != null) {
+                    mProviderTvPlayer.setStreamUrl(videoUrl);
+                } else {
+                    mProviderTvPlayer = new ProviderTvPlayer(mContext, videoUrl, mChannelPrefetcher);
+                    mProviderTvPlayer.addListener(this);
+                }
 
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                     notifyTimeShiftStatusChanged(TvInputManager.TIME_SHIFT_STATUS_UNSUPPORTED);
@@ -131,16 +266,69 @@ public class ProviderTvInputService extends BaseTvInputService {
 
             // Notify the video to be unavailable in order to not show artifacts when changing channels.
             notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
-            releasePlayer();
+
+            // Free the connections used for pre-buffering while keeping what might be played now.
+            mHandler.removeCallbacks(mZapBufferRunnable);
+            mZapBufferScheduled = false;
+
+            if (mChannelPrefetcher != null) {
+                mChannelPrefetcher.cancel();
+            }
+
+            // Silence the previous channel. Preparing the next one replaces its source anyway.
+            if (mProviderTvPlayer != null) {
+                mProviderTvPlayer.pause();
+            }
+
+            mTuneStartMillis = SystemClock.elapsedRealtime();
             return super.onTune(channelUri);
         }
 
         @Override
         public void onRelease() {
             super.onRelease();
+            mHandler.removeCallbacks(mZapBufferRunnable);
+
+            if (mChannelPrefetcher != null) {
+                mChannelPrefetcher.release();
+                mChannelPrefetcher = null;
+            }
+
             releasePlayer();
         }
 
+        /**
+         * Pre-buffers the channels tuned by the channel up and down keys once the current channel
+         * has been playing for a while.
+         */
+        private void scheduleZapBuffer() {
+            if (mChannelPrefetcher != null && !mZapBufferScheduled) {
+                mZapBufferScheduled = true;
+                mHandler.postDelayed(mZapBufferRunnable, ZAP_BUFFER_DELAY_MILLIS);
+            }
+        }
+
+        /**
+         * Starts pre-buffering the streams of the channels adjacent to the current one.
+         */
+        private void prefetchAdjacentChannels() {
+            Uri channelUri = getCurrentChannelUri();
+
+            if (mChannelPrefetcher == null || channelUri == null) {
+                return;
+            }
+
+            List<String> urls = new ArrayList<>();
+
+            for (Channel channel : getAdjacentChannels(ContentUris.parseId(channelUri))) {
+                if (channel.getInternalProviderData() != null) {
+                    urls.add(channel.getInternalProviderData().getVideoUrl());
+                }
+            }
+
+            mChannelPrefetcher.prefetch(urls);
+        }
+
         /**
          * Method that stops and releases a given player's resources.
          */
@@ -237,6 +425,8 @@ public class ProviderTvInputService extends BaseTvInputService {
                 notifyTrackSelected(TvTrackInfo.TYPE_VIDEO, getTrackId(TvTrackInfo.TYPE_VIDEO));
                 notifyTrackSelected(TvTrackInfo.TYPE_AUDIO, getTrackId(TvTrackInfo.TYPE_AUDIO));
                 notifyVideoAvailable();
+                scheduleZapBuffer();
+                reportZap();
             }
 
             if (DEBUG) {
@@ -301,6 +491,24 @@ public class ProviderTvInputService extends BaseTvInputService {
 
         }
 
+        /**
+         * Reports the time taken by the last tune request once its channel is ready to be shown.
+         */
+        private void reportZap() {
+            if (mTuneStartMillis == 0) {
+                return;
+            }
+
+            long zapMillis = SystemClock.elapsedRealtime() - mTuneStartMillis;
+            mTuneStartMillis = 0;
+
+            if (DEBUG) {
+                Log.d(getClass().getSimpleName(), "Channel zap took " + zapMillis + " ms");
+            }
+
+            onChannelZapped(getCurrentChannelUri(), zapMillis);
+        }
+
         /**
          * Gives the id for a given track based on it's type between {@link TvTrackInfo#TYPE_VIDEO}
          * or {@link TvTrackInfo#TYPE_AUDIO}
@@ -35,11 +35,13 @@ import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.ext.leanback.LeanbackPlayerAdapter;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
 import com.zaclimon.xipl.R;
+import com.zaclimon.xipl.player.PersistentBandwidthMeter;
 import com.zaclimon.xipl.properties.VodProperties;
 
 /**
@@ -88,8 +90,10 @@ public abstract class VodPlaybackFragment extends VideoSupportFragment {
         String url = arguments.getString(VodTvSectionFragment.AV_CONTENT_LINK_BUNDLE);
 
         // Configure the ExoPlayer instance that will be used to play the media
-        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(getActivity(), Util.getUserAgent(getActivity(), getActivity().getApplicationInfo().loadLabel(getActivity().getPackageManager()).toString()));
-        mSimpleExoPlayer = ExoPlayerFactory.newSimpleInstance(new DefaultRenderersFactory(getActivity()), new DefaultTrackSelector(), new DefaultLoadControl());
+        PersistentBandwidthMeter bandwidthMeter = PersistentBandwidthMeter.getInstance(getActivity());
+        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(getActivity(), Util.getUserAgent(getActivity(), getActivity().getApplicationInfo().loadLabel(getActivity().getPackageManager()).toString()), bandwidthMeter);
+        DefaultTrackSelector trackSelector = new DefaultTrackSelector(new AdaptiveTrackSelection.Factory(bandwidthMeter));
+        mSimpleExoPlayer = ExoPlayerFactory.newSimpleInstance(new DefaultRenderersFactory(getActivity()), trackSelector, new DefaultLoadControl());
         ExtractorMediaSource.Factory factory = new ExtractorMediaSource.Factory(dataSourceFactory);
         Uri uri = Uri.parse(url);
         mSimpleExoPlayer.prepare(factory.createMediaSource(uri));
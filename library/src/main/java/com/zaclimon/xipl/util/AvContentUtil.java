@@ -16,22 +16,18 @@
 
 package com.zaclimon.xipl.util;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import com.zaclimon.xipl.Constants;
 import com.zaclimon.xipl.model.AvContent;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Utility class responsible for handling {@link AvContent}
@@ -49,6 +45,25 @@ import java.util.regex.Pattern;
 public class AvContentUtil {
 
     private static final String LOG_TAG = "AvContentUtil";
+    private static final String EXTINF_TAG = "#EXTINF";
+    private static final String ATTRIBUTE_TVG_ID = "tvg-id";
+    private static final String ATTRIBUTE_TVG_LOGO = "tvg-logo";
+    private static final String ATTRIBUTE_TVG_NAME = "tvg-name";
+    private static final String ATTRIBUTE_GROUP_TITLE = "group-title";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Interface notified each time an {@link AvContent} has been parsed from a playlist.
+     */
+    public interface AvContentCallback {
+
+        /**
+         * Called once for every valid entry of a playlist, in the order they appear.
+         *
+         * @param avContent the content that has been parsed
+         */
+        void onAvContentParsed(AvContent avContent);
+    }
 
     /**
      * Generates required {@link AvContent} for a given M3U playlist
@@ -69,26 +84,61 @@ public class AvContentUtil {
      */
     public static List<AvContent> getAvContentsList(InputStream playlist, String contentCategory) {
 
-        List<String> playlistStrings = getAvContentsAsString(playlist);
-        List<AvContent> avContents = new ArrayList<>();
+        final List<AvContent> avContents = new ArrayList<>();
 
-        if (playlistStrings != null) {
-            int size = playlistStrings.size();
-
-            for (int i = 0; i < size; i++) {
-                if (playlistStrings.get(i).contains("#EXTINF")) {
-                    // The next line is guaranteed to be the content link.
-                    AvContent avContent = createAvContent(playlistStrings.get(i), playlistStrings.get(i + 1), contentCategory);
-                    if (avContent != null) {
-                        avContents.add(avContent);
-                    }
+        try {
+            parseAvContents(playlist, contentCategory, new AvContentCallback() {
+                @Override
+                public void onAvContentParsed(AvContent avContent) {
+                    avContents.add(avContent);
                 }
-            }
+            });
+        } catch (IOException io) {
+            // Couldn't read the stream
+            Log.e(LOG_TAG, "Couldn't read the playlist", io);
+            avContents.clear();
         }
 
         return (avContents);
     }
 
+    /**
+     * Parses a given M3U playlist and notifies every {@link AvContent} found as soon as it has
+     * been read. Contrary to {@link #getAvContentsList(InputStream, String)}, no content is kept
+     * in memory by the parser.
+     *
+     * @param playlist stream containing the M3U playlist
+     * @param contentCategory the category in which the content will be
+     * @param callback the callback notified for each parsed content
+     * @throws IOException if the playlist couldn't be read
+     */
+    public static void parseAvContents(InputStream playlist, String contentCategory, AvContentCallback callback) throws IOException {
+        parseAvContents(new InputStreamReader(playlist), contentCategory, callback);
+    }
+
+    /**
+     * Parses a given M3U playlist in a single forward pass and notifies every {@link AvContent}
+     * found as soon as it has been read.
+     *
+     * @param playlist reader containing the M3U playlist
+     * @param contentCategory the category in which the content will be
+     * @param callback the callback notified for each parsed content
+     * @throws IOException if the playlist couldn't be read
+     */
+    public static void parseAvContents(Reader playlist, String contentCategory, AvContentCallback callback) throws IOException {
+
+        PlaylistTokenizer tokenizer = new PlaylistTokenizer(contentCategory, callback);
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        int read;
+
+        while ((read = playlist.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                tokenizer.onCharacter(buffer[i]);
+            }
+        }
+        tokenizer.onLineEnd();
+    }
+
     /**
      * Generates the groups for given {@link AvContent}
      *
@@ -111,149 +161,248 @@ public class AvContentUtil {
     }
 
     /**
-     * Reads a stream from the M3U playlist from a user for easier parsing.
-     *
-     * @param playlist a user's M3U playlist stream
-     * @return a List containing every lines of the M3U playlist
+     * Splits a playlist into lines and tokenizes the attributes of each #EXTINF line as the
+     * characters are read.
+     * <p>
+     * Only the line currently being read is buffered. An #EXTINF line is kept as pending until
+     * its content link (the next line which isn't a directive) is found.
      */
-    private static List<String> getAvContentsAsString(InputStream playlist) {
+    private static class PlaylistTokenizer {
+
+        private final String mContentCategory;
+        private final AvContentCallback mCallback;
+        private final StringBuilder mLine = new StringBuilder();
+
+        private boolean mHasPendingEntry;
+        private boolean mHasName;
+        private String mTitle;
+        private String mLogo;
+        private String mGroup;
+        private int mId;
+
+        PlaylistTokenizer(String contentCategory, AvContentCallback callback) {
+            mContentCategory = contentCategory;
+            mCallback = callback;
+        }
 
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(playlist));
-        List<String> contents = new ArrayList<>();
-        String tempLine;
+        void onCharacter(char character) {
 
-        try {
-            while ((tempLine = bufferedReader.readLine()) != null) {
-                contents.add(tempLine);
+            if (character == '\n' || character == '\r') {
+                onLineEnd();
+                return;
             }
 
-            if (contents.size() == 1) {
-                return (generatePlaylistLinesSingle(contents.get(0)));
-            } else {
-                return (generatePlaylistLinesMulti(contents));
+            mLine.append(character);
+
+            /*
+             For some API's there might not be any newlines between actual lines. In that case, a
+             new #EXTINF directive in the middle of a line marks the end of the previous entry.
+             */
+
+            int length = mLine.length();
+
+            if (character == 'F' && length > EXTINF_TAG.length() && endsWithExtInf(length)) {
+                mLine.setLength(length - EXTINF_TAG.length());
+                onLineEnd();
+                mLine.append(EXTINF_TAG);
             }
-        } catch (IOException io) {
-            // Couldn't read the stream
-            return (null);
         }
-    }
 
-    /**
-     * Generates the required M3U playlist lines if the given playlist was on a single line (That is
-     * without a new line)
-     *
-     * @param playlist the whole playlist.
-     * @return A list containing all the lines of the M3U playlist.
-     */
-    private static List<String> generatePlaylistLinesSingle(String playlist) {
+        void onLineEnd() {
 
-        /*
-         For some API's there might not be any newlines between actual lines
-         For this reason, check if there is a whitespace instead of a newline
-         before the content link section.
-
-         This way, we can see if it's the real link and not a letter from a content
-         title for example.
-        */
-
-        List<String> contents = new ArrayList<>();
-        StringBuilder stringBuilder = new StringBuilder();
-        boolean firstCharacterRead = false;
-
-        for (int i = 0; i < playlist.length(); i++) {
-            char character = playlist.charAt(i);
-
-            if (character == '#' && firstCharacterRead) {
-                String currentString = stringBuilder.toString();
-                int contentUrlIndex = currentString.lastIndexOf("http://");
-
-                if (contentUrlIndex != -1 && Character.isWhitespace(currentString.charAt(contentUrlIndex - 1))) {
-                    String contentUrl = stringBuilder.toString().substring(contentUrlIndex);
-                    contents.add(contentUrl.trim());
-                    stringBuilder.delete(contentUrlIndex, stringBuilder.length() - 1);
-                    contents.add(stringBuilder.toString().trim());
-                    stringBuilder = new StringBuilder();
+            int start = 0;
+            int end = mLine.length();
+
+            while (start < end && Character.isWhitespace(mLine.charAt(start))) {
+                start++;
+            }
+
+            while (end > start && Character.isWhitespace(mLine.charAt(end - 1))) {
+                end--;
+            }
+
+            if (start < end) {
+                if (startsWith(mLine, start, EXTINF_TAG)) {
+                    parseExtInf(start + EXTINF_TAG.length(), end);
+                } else if (mLine.charAt(start) != '#' && mHasPendingEntry) {
+                    // The line following an #EXTINF is the content link.
+                    emit(mLine.substring(start, end));
                 }
-            } else {
-                firstCharacterRead = true;
             }
-            stringBuilder.append(character);
+
+            mLine.setLength(0);
         }
-        return (contents);
-    }
 
-    /**
-     * Generates all the required lines from a given playlist if that playlist had multiple lines.
-     *
-     * @param playlist the playlist as a list separated by it's lines
-     * @return a list having the required M3U playlist lines.
-     */
-    private static List<String> generatePlaylistLinesMulti(List<String> playlist) {
+        /**
+         * Tokenizes the attributes of an #EXTINF line which is of this form:
+         * <p>
+         * #EXTINF:-1 tvg-id="" tvg-name="" tvg-logo="" group-title="",title
+         *
+         * @param start the position right after the #EXTINF tag
+         * @param end the end position of the line
+         */
+        private void parseExtInf(int start, int end) {
+
+            mHasPendingEntry = true;
+            mHasName = false;
+            mTitle = "";
+            mLogo = "";
+            mGroup = "";
+            mId = 0;
+
+            int position = start;
 
-        List<String> contents = new ArrayList<>();
+            // Attributes are separated by whitespaces and end at the first comma outside a value.
+            while (position < end && mLine.charAt(position) != ',') {
+                char character = mLine.charAt(position);
 
-        for (String playlistLine : playlist) {
-            if (playlistLine.startsWith("#EXTINF") || playlistLine.startsWith("http://")) {
-                contents.add(playlistLine);
+                if (Character.isWhitespace(character) || character == ':') {
+                    position++;
+                    continue;
+                }
+
+                int keyStart = position;
+
+                while (position < end && !isKeyDelimiter(mLine.charAt(position))) {
+                    position++;
+                }
+
+                int keyEnd = position;
+
+                if (position >= end || mLine.charAt(position) != '=') {
+                    // Not an attribute (the duration for example), skip it.
+                    continue;
+                }
+
+                position++;
+                int valueStart;
+                int valueEnd;
+
+                if (position < end && mLine.charAt(position) == '"') {
+                    valueStart = ++position;
+
+                    while (position < end && mLine.charAt(position) != '"') {
+                        position++;
+                    }
+
+                    valueEnd = position;
+
+                    if (position < end) {
+                        position++;
+                    }
+                } else {
+                    valueStart = position;
+
+                    while (position < end && !isKeyDelimiter(mLine.charAt(position))) {
+                        position++;
+                    }
+
+                    valueEnd = position;
+                }
+
+                onAttribute(keyStart, keyEnd, valueStart, valueEnd);
+            }
+
+            if (position < end) {
+                parseTitle(position + 1, end);
             }
         }
-        return (contents);
-    }
 
-    /**
-     * Creates a {@link AvContent} from a given playlist line.
-     *
-     * @param playlistLine The required playlist line
-     * @return the AvContent from this line
-     */
-    private static AvContent createAvContent(String playlistLine, String contentLink, String contentCategory) {
-
-        if (Constants.ATTRIBUTE_TVG_NAME_PATTERN.matcher(playlistLine).find()) {
-            String title = getAttributeFromPlaylistLine(Constants.ATTRIBUTE_TVG_NAME_PATTERN, playlistLine);
-            String logo = getAttributeFromPlaylistLine(Constants.ATTRIBUTE_TVG_LOGO_PATTERN, playlistLine);
-            String group = getAttributeFromPlaylistLine(Constants.ATTRIBUTE_GROUP_TITLE_PATTERN, playlistLine);
-            int id = getAttributeFromPlaylistLine(Constants.ATTRIBUTE_TVG_ID_PATTERN, playlistLine).hashCode();
-
-            return (new AvContent(title, logo, group, contentCategory, contentLink, id));
-        } else {
-            Log.e(LOG_TAG, "Current line not valid for creating AvContent: " + playlistLine);
-            return (null);
+        /**
+         * Handles the region after the attributes of an #EXTINF line. It usually only contains the
+         * title of the content but for playlists without newlines, it also contains the content
+         * link separated by a whitespace.
+         *
+         * @param start the position after the attributes comma
+         * @param end the end position of the line
+         */
+        private void parseTitle(int start, int end) {
+
+            int linkStart = -1;
+
+            for (int i = end - 1; i > start; i--) {
+                if (Character.isWhitespace(mLine.charAt(i - 1))
+                        && (startsWith(mLine, i, "http://") || startsWith(mLine, i, "https://"))) {
+                    linkStart = i;
+                    break;
+                }
+            }
+
+            int titleEnd = linkStart != -1 ? linkStart : end;
+
+            /*
+             It might be possible that the title isn't in the tvg-name tag, retrieve it from the
+             region after the comma.
+             */
+
+            if (mTitle.isEmpty()) {
+                mTitle = mLine.substring(start, titleEnd).trim();
+            }
+
+            if (linkStart != -1) {
+                emit(mLine.substring(linkStart, end));
+            }
         }
 
-    }
+        private void onAttribute(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+
+            if (regionEqualsIgnoreCase(keyStart, keyEnd, ATTRIBUTE_TVG_NAME)) {
+                mHasName = true;
+                mTitle = mLine.substring(valueStart, valueEnd);
+            } else if (regionEqualsIgnoreCase(keyStart, keyEnd, ATTRIBUTE_TVG_LOGO)) {
+                mLogo = mLine.substring(valueStart, valueEnd);
+            } else if (regionEqualsIgnoreCase(keyStart, keyEnd, ATTRIBUTE_GROUP_TITLE)) {
+                mGroup = mLine.substring(valueStart, valueEnd);
+            } else if (regionEqualsIgnoreCase(keyStart, keyEnd, ATTRIBUTE_TVG_ID)) {
+                mId = mLine.substring(valueStart, valueEnd).hashCode();
+            }
+        }
 
-    /**
-     * Returns a given attribute for an M3U playlist file based on it's parameter.
-     *
-     * @param attribute    an attribute as found in {@link Constants}
-     * @param playlistLine a line from a given playlist.
-     * @return The attribute for that line.
-     */
-    private static String getAttributeFromPlaylistLine(Pattern attribute, String playlistLine) {
+        private void emit(String contentLink) {
+
+            mHasPendingEntry = false;
 
-        Matcher matcher = attribute.matcher(playlistLine);
+            if (mHasName) {
+                mCallback.onAvContentParsed(new AvContent(mTitle, mLogo, mGroup, mContentCategory, contentLink, mId));
+            } else {
+                Log.e(LOG_TAG, "Current entry not valid for creating AvContent: " + mTitle);
+            }
+        }
+
+        private boolean endsWithExtInf(int length) {
+            return (startsWith(mLine, length - EXTINF_TAG.length(), EXTINF_TAG));
+        }
+
+        private boolean regionEqualsIgnoreCase(int start, int end, String value) {
+
+            if (end - start != value.length()) {
+                return (false);
+            }
 
-        if (matcher.find()) {
-            String[] parts = matcher.group().split("=");
-            String contents = parts[1].replace("\"", "");
+            for (int i = 0; i < value.length(); i++) {
+                if (Character.toLowerCase(mLine.charAt(start + i)) != value.charAt(i)) {
+                    return (false);
+                }
+            }
+            return (true);
+        }
 
-             /*
-              It might be possible that the title isn't in the tvg-name tag, retrieve it from the
-              region after the comma.
-              */
+        private static boolean isKeyDelimiter(char character) {
+            return (character == '=' || character == ',' || Character.isWhitespace(character));
+        }
+
+        private static boolean startsWith(StringBuilder builder, int offset, String prefix) {
 
-            if (TextUtils.isEmpty(contents) && attribute.equals(Constants.ATTRIBUTE_TVG_NAME_PATTERN)) {
-                Pattern commaPattern = Pattern.compile(",.*");
-                Matcher commaMatcher = commaPattern.matcher(playlistLine);
+            if (offset < 0 || offset + prefix.length() > builder.length()) {
+                return (false);
+            }
 
-                if (commaMatcher.find()) {
-                    // Don't include the first comma in the title
-                    return (commaMatcher.group().substring(1));
+            for (int i = 0; i < prefix.length(); i++) {
+                if (builder.charAt(offset + i) != prefix.charAt(i)) {
+                    return (false);
                 }
             }
-            return (contents);
-        } else {
-            return ("");
+            return (true);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response given when fetching a feed (M3U playlist or XMLTV EPG) conditionally.
+ * <p>
+ * If the feed didn't change since the given validators were received, there is no content to
+ * read and the previously parsed result can be used instead.
+ *
+ * @author zaclimon
+ * Creation date: 13/08/18
+ */
+public class FeedResponse implements Closeable {
+
+    private final InputStream mInputStream;
+    private final boolean mNotModified;
+    private final String mETag;
+    private final String mLastModified;
+    private long mConnectMillis;
+    private TimedInputStream mTimedInputStream;
+
+    /**
+     * Default constructor
+     *
+     * @param inputStream the content of the feed, null if it wasn't modified
+     * @param notModified true if the feed didn't change since the last fetch
+     * @param eTag the entity tag of the content if any
+     * @param lastModified the last modification date of the content if any
+     */
+    public FeedResponse(InputStream inputStream, boolean notModified, String eTag, String lastModified) {
+        mInputStream = inputStream;
+        mNotModified = notModified;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Constructor keeping track of the time spent fetching the feed.
+     *
+     * @param inputStream the content of the feed, null if it wasn't modified
+     * @param notModified true if the feed didn't change since the last fetch
+     * @param eTag the entity tag of the content if any
+     * @param lastModified the last modification date of the content if any
+     * @param connectMillis the time spent until the server answered in milliseconds
+     * @param timedInputStream the raw stream of the feed measuring the download time
+     */
+    FeedResponse(InputStream inputStream, boolean notModified, String eTag, String lastModified, long connectMillis, TimedInputStream timedInputStream) {
+        this(inputStream, notModified, eTag, lastModified);
+        mConnectMillis = connectMillis;
+        mTimedInputStream = timedInputStream;
+    }
+
+    /**
+     * Gets the content of the feed.
+     *
+     * @return the stream of the feed or null if it wasn't modified
+     */
+    public InputStream getInputStream() {
+        return (mInputStream);
+    }
+
+    /**
+     * Notifies if the feed didn't change since the validators used for fetching it were received.
+     *
+     * @return true if the previous content can be reused
+     */
+    public boolean isNotModified() {
+        return (mNotModified);
+    }
+
+    /**
+     * Gets the value of the ETag header to give on the next fetch.
+     *
+     * @return the entity tag or null if there isn't any
+     */
+    public String getETag() {
+        return (mETag);
+    }
+
+    /**
+     * Gets the value of the Last-Modified header to give on the next fetch.
+     *
+     * @return the last modification date or null if there isn't any
+     */
+    public String getLastModified() {
+        return (mLastModified);
+    }
+
+    /**
+     * Notifies if the feed can be fetched conditionally the next time.
+     *
+     * @return true if there is at least a validator
+     */
+    public boolean hasValidators() {
+        return (mETag != null || mLastModified != null);
+    }
+
+    /**
+     * Gets the time spent until the server started answering.
+     *
+     * @return the connection time in milliseconds
+     */
+    public long getConnectMillis() {
+        return (mConnectMillis);
+    }
+
+    /**
+     * Gets the time spent waiting for the content of the feed so far.
+     *
+     * @return the download time in milliseconds
+     */
+    public long getDownloadMillis() {
+        return (mTimedInputStream != null ? TimeUnit.NANOSECONDS.toMillis(mTimedInputStream.getReadNanos()) : 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mInputStream != null) {
+            mInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each stage of the retrieval of a feed (M3U playlist or XMLTV EPG).
+ * <p>
+ * Since a feed is parsed while it is being downloaded, the download time is the time spent
+ * waiting for data and the parse time is the remaining time spent reading the feed.
+ *
+ * @author zaclimon
+ * Creation date: 14/08/18
+ */
+public class FeedTimings {
+
+    private long mConnectMillis;
+    private long mDownloadMillis;
+    private long mParseMillis;
+
+    /**
+     * Records the timings of a feed once it has been entirely read.
+     *
+     * @param response the response from which the feed has been read
+     * @param readNanos the total time spent reading and parsing the feed in nanoseconds
+     */
+    public void record(FeedResponse response, long readNanos) {
+        mConnectMillis = response.getConnectMillis();
+        mDownloadMillis = response.getDownloadMillis();
+        mParseMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(readNanos) - mDownloadMillis);
+    }
+
+    /**
+     * Gets the time spent until the server started answering.
+     *
+     * @return the connection time in milliseconds
+     */
+    public long getConnectMillis() {
+        return (mConnectMillis);
+    }
+
+    /**
+     * Gets the time spent waiting for the content of the feed.
+     *
+     * @return the download time in milliseconds
+     */
+    public long getDownloadMillis() {
+        return (mDownloadMillis);
+    }
+
+    /**
+     * Gets the time spent decompressing and parsing the content of the feed.
+     *
+     * @return the parse time in milliseconds
+     */
+    public long getParseMillis() {
+        return (mParseMillis);
+    }
+
+    @Override
+    public String toString() {
+        return ("connect " + mConnectMillis + " ms, download " + mDownloadMillis + " ms, parse " + mParseMillis + " ms");
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.zaclimon.xipl.R;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Finds the genres of a channel based on the keywords contained in its name.
+ * <p>
+ * All the keywords are compiled once in an Aho-Corasick automaton where each keyword maps to the
+ * bit of its genre. The genres of a channel are then found in a single pass over its name instead
+ * of searching every keyword one after the other.
+ *
+ * @author zaclimon
+ * Creation date: 15/08/18
+ */
+class GenreMatcher {
+
+    // Keyword arrays in the same order as Constants.CHANNEL_GENRES.
+    private static final int[] KEYWORD_ARRAY_IDS = new int[]{
+            R.array.animal_wildlife_channels,
+            R.array.arts_channels,
+            R.array.comedy_channels,
+            R.array.drama_channels,
+            R.array.education_channels,
+            R.array.entertainment_channels,
+            R.array.family_kids_channels,
+            R.array.gaming_channels,
+            R.array.lifestyle_channels,
+            R.array.movies_channels,
+            R.array.music_channels,
+            R.array.news_channels,
+            R.array.premier_channels,
+            R.array.shopping_channels,
+            R.array.sports_channels,
+            R.array.tech_science_channels,
+            R.array.travel_channels
+    };
+
+    private static final int ROOT = 0;
+
+    private static GenreMatcher sInstance;
+
+    private final char[][] mTransitionChars;
+    private final int[][] mTransitionNodes;
+    private final int[] mFailureNodes;
+    private final int[] mGenreMasks;
+    private final int mAllGenresMask;
+
+    /**
+     * Builds the automaton of given keyword groups.
+     *
+     * @param keywordGroups the keywords of each genre, the genre at position i having the bit i
+     */
+    GenreMatcher(List<String[]> keywordGroups) {
+
+        if (keywordGroups.size() > Integer.SIZE) {
+            throw new IllegalArgumentException("At most " + Integer.SIZE + " genres are supported");
+        }
+
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> genreMasks = new ArrayList<>();
+        children.add(new TreeMap<Character, Integer>());
+        genreMasks.add(0);
+
+        // Build the trie of all the keywords.
+        for (int i = 0; i < keywordGroups.size(); i++) {
+            for (String keyword : keywordGroups.get(i)) {
+                int node = ROOT;
+
+                for (int j = 0; j < keyword.length(); j++) {
+                    Integer next = children.get(node).get(keyword.charAt(j));
+
+                    if (next == null) {
+                        next = children.size();
+                        children.add(new TreeMap<Character, Integer>());
+                        genreMasks.add(0);
+                        children.get(node).put(keyword.charAt(j), next);
+                    }
+                    node = next;
+                }
+                genreMasks.set(node, genreMasks.get(node) | (1 << i));
+            }
+        }
+
+        int nodeCount = children.size();
+        mTransitionChars = new char[nodeCount][];
+        mTransitionNodes = new int[nodeCount][];
+        mFailureNodes = new int[nodeCount];
+        mGenreMasks = new int[nodeCount];
+
+        for (int node = 0; node < nodeCount; node++) {
+            Map<Character, Integer> nodeChildren = children.get(node);
+            mTransitionChars[node] = new char[nodeChildren.size()];
+            mTransitionNodes[node] = new int[nodeChildren.size()];
+            int position = 0;
+
+            for (Map.Entry<Character, Integer> child : nodeChildren.entrySet()) {
+                mTransitionChars[node][position] = child.getKey();
+                mTransitionNodes[node][position] = child.getValue();
+                position++;
+            }
+            mGenreMasks[node] = genreMasks.get(node);
+        }
+
+        // Link each node to its longest suffix in the trie, breadth first.
+        Queue<Integer> queue = new ArrayDeque<>();
+
+        for (int child : mTransitionNodes[ROOT]) {
+            mFailureNodes[child] = ROOT;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+
+            for (int i = 0; i < mTransitionChars[node].length; i++) {
+                char character = mTransitionChars[node][i];
+                int child = mTransitionNodes[node][i];
+                int failure = mFailureNodes[node];
+                int next;
+
+                while ((next = getTransition(failure, character)) < 0 && failure != ROOT) {
+                    failure = mFailureNodes[failure];
+                }
+
+                mFailureNodes[child] = next < 0 ? ROOT : next;
+                mGenreMasks[child] |= mGenreMasks[mFailureNodes[child]];
+                queue.add(child);
+            }
+        }
+
+        mAllGenresMask = keywordGroups.size() == Integer.SIZE ? -1 : (1 << keywordGroups.size()) - 1;
+    }
+
+    /**
+     * Gets the matcher built from the keywords of the application's resources. The keywords are
+     * only loaded the first time.
+     *
+     * @param context the context used to access the resources
+     * @return the matcher
+     */
+    static synchronized GenreMatcher getInstance(Context context) {
+
+        if (sInstance == null) {
+            Resources resources = context.getResources();
+            List<String[]> keywordGroups = new ArrayList<>(KEYWORD_ARRAY_IDS.length);
+
+            for (int arrayId : KEYWORD_ARRAY_IDS) {
+                keywordGroups.add(resources.getStringArray(arrayId));
+            }
+            sInstance = new GenreMatcher(keywordGroups);
+        }
+        return (sInstance);
+    }
+
+    /**
+     * Finds the genres of which at least a keyword is contained in a given text.
+     *
+     * @param text the text to search, usually the name of a channel
+     * @return the bitmask of the genres found
+     */
+    int match(String text) {
+
+        int mask = mGenreMasks[ROOT];
+        int node = ROOT;
+
+        for (int i = 0; i < text.length() && mask != mAllGenresMask; i++) {
+            char character = text.charAt(i);
+            int next;
+
+            while ((next = getTransition(node, character)) < 0 && node != ROOT) {
+                node = mFailureNodes[node];
+            }
+
+            node = next < 0 ? ROOT : next;
+            mask |= mGenreMasks[node];
+        }
+        return (mask);
+    }
+
+    private int getTransition(int node, char character) {
+        int position = Arrays.binarySearch(mTransitionChars[node], character);
+        return (position >= 0 ? mTransitionNodes[node][position] : -1);
+    }
+}
@@ -21,8 +21,8 @@ import android.content.Context;
 
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
 import com.zaclimon.xipl.Constants;
-import com.zaclimon.xipl.R;
 import com.zaclimon.xipl.model.AvContent;
 import com.zaclimon.xipl.properties.ChannelProperties;
 
@@ -33,6 +33,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -46,6 +47,12 @@ public class ProviderChannelUtil {
 
     private static final String LOG_TAG = "ProviderChannelUtil";
 
+    /**
+     * The period to which the start of a placeholder program is anchored. A placeholder lasts two
+     * periods so it always covers at least one from the current time.
+     */
+    private static final long PLACEHOLDER_PROGRAM_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(7);
+
     /**
      * Gets a list of channels based on the M3U playlist of a given user.
      *
@@ -54,8 +61,19 @@ public class ProviderChannelUtil {
      * @return the list of channels for a given user
      */
     public static List<Channel> createChannelList(InputStream playlist, Context context, ChannelProperties properties) {
+        return (createChannelList(AvContentUtil.getAvContentsList(playlist), context, properties));
+    }
+
+    /**
+     * Gets a list of channels based on the already parsed contents of a user's M3U playlist.
+     *
+     * @param channelContents the contents of the playlist
+     * @param context the context required for some other operations (Getting the genre for example)
+     * @param properties the properties used to filter the channels
+     * @return the list of channels for a given user
+     */
+    public static List<Channel> createChannelList(List<AvContent> channelContents, Context context, ChannelProperties properties) {
 
-        List<AvContent> channelContents = AvContentUtil.getAvContentsList(playlist);
         List<Channel> tempList = new ArrayList<>();
         int channelNumber = 1;
 
@@ -194,40 +212,16 @@ public class ProviderChannelUtil {
          Live Channels app.
          */
 
-        List<String[]> allChannelGroups = new ArrayList<>();
-        List<String> currentChannelGroups = new ArrayList<>();
-
-        // Add all the groups now so we know we won't have any problems when comparing.
-        allChannelGroups.add(context.getResources().getStringArray(R.array.animal_wildlife_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.arts_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.comedy_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.drama_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.education_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.entertainment_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.family_kids_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.gaming_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.lifestyle_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.movies_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.music_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.news_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.premier_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.shopping_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.sports_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.tech_science_channels));
-        allChannelGroups.add(context.getResources().getStringArray(R.array.travel_channels));
-
-        for (int i = 0; i < allChannelGroups.size(); i++) {
-            String[] currentGroup = allChannelGroups.get(i);
-            for (String channelType : currentGroup) {
-                if (channelName.contains(channelType)) {
-                    currentChannelGroups.add(getGenreByPosition(i));
-                    break;
-                }
+        int genresMask = GenreMatcher.getInstance(context).match(channelName);
+        String[] channelGroupsArray = new String[Integer.bitCount(genresMask)];
+        int position = 0;
+
+        for (int i = 0; i < Constants.CHANNEL_GENRES.length; i++) {
+            if ((genresMask & (1 << i)) != 0) {
+                channelGroupsArray[position] = getGenreByPosition(i);
+                position++;
             }
         }
-
-        String[] channelGroupsArray = new String[currentChannelGroups.size()];
-        channelGroupsArray = currentChannelGroups.toArray(channelGroupsArray);
         return (channelGroupsArray);
     }
 
@@ -264,6 +258,29 @@ public class ProviderChannelUtil {
         return (calendar.getTimeInMillis());
     }
 
+    /**
+     * Creates a program listing the genres of a channel which doesn't have any program.
+     * <p>
+     * The program starts at the beginning of the current week-long period instead of the current
+     * time so it stays the same across syncs and the schedule of the channel doesn't need to be
+     * written again.
+     *
+     * @param channel the channel without programs
+     * @param genres the canonical genres of the channel
+     * @param currentMillis the current time in milliseconds
+     * @return the program covering at least the next 7 days
+     */
+    public static Program createPlaceholderProgram(Channel channel, String[] genres, long currentMillis) {
+        long startTimeMillis = currentMillis - currentMillis % PLACEHOLDER_PROGRAM_PERIOD_MILLIS;
+        long endTimeMillis = startTimeMillis + 2 * PLACEHOLDER_PROGRAM_PERIOD_MILLIS;
+
+        return (new Program.Builder(channel)
+                .setStartTimeUtcMillis(startTimeMillis)
+                .setEndTimeUtcMillis(endTimeMillis)
+                .setCanonicalGenres(genres)
+                .build());
+    }
+
     /**
      * Gives a Program's genre based on the {@link Constants#CHANNEL_GENRES} array position. If
      * comparing must be made, the order should be based on this particular array as well.
@@ -23,11 +23,20 @@ import android.util.Log;
 
 import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
 
+import org.tukaani.xz.XZInputStream;
+
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Static helper methods for fetching the channel feed. Based on the example from
@@ -44,47 +53,333 @@ public class RichFeedUtil {
     private static final boolean USE_LOCAL_XML_FEED = true;
     private static final int URLCONNECTION_CONNECTION_TIMEOUT_MS = 3000;  // 3 sec
     private static final int URLCONNECTION_READ_TIMEOUT_MS = 20000;  // 20 sec
-    private static XmlTvParser.TvListing sSampleTvListing;
+    private static final int DECOMPRESSION_BUFFER_SIZE = 65536;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] XZ_MAGIC = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final TvListingCache sTvListingCache = new TvListingCache(TvListingCache.DEFAULT_MAX_SIZE);
 
     private RichFeedUtil() {
     }
 
+    /**
+     * Gets the cache in which the parsed EPG listings are kept.
+     *
+     * @return the listing cache
+     */
+    public static TvListingCache getTvListingCache() {
+        return (sTvListingCache);
+    }
+
     public static XmlTvParser.TvListing getRichTvListings(Context context, String url) {
+        return (getRichTvListings(context, url, null, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * Parses the EPG of a given url while only keeping the channels and programs that are needed.
+     * A previously parsed listing is given back instead if it is still valid and contains what is
+     * asked.
+     *
+     * @param context the context used to open the url
+     * @param url the url of the XMLTV feed
+     * @param channelIds the hash codes of the wanted XMLTV channel ids, null for all of them
+     * @param startMs the start of the wanted time window in milliseconds
+     * @param endMs the end of the wanted time window in milliseconds
+     * @return the filtered listing or null if it couldn't be fetched or parsed
+     */
+    public static XmlTvParser.TvListing getRichTvListings(Context context, String url, final Set<Long> channelIds, long startMs, long endMs) {
+
+        Callable<Set<Long>> channelIdsProvider = new Callable<Set<Long>>() {
+            @Override
+            public Set<Long> call() {
+                return (channelIds);
+            }
+        };
+
+        return (getRichTvListings(context, url, channelIdsProvider, startMs, endMs, new FeedTimings()));
+    }
+
+    /**
+     * Parses the EPG of a given url while only keeping the channels and programs that are needed.
+     * <p>
+     * The connection to the EPG is opened before asking for the channel ids so they can still be
+     * computed on another thread in the meantime. They are only needed once the EPG is parsed.
+     *
+     * @param context the context used to open the url
+     * @param url the url of the XMLTV feed
+     * @param channelIdsProvider gives the hash codes of the wanted XMLTV channel ids, null for all
+     * @param startMs the start of the wanted time window in milliseconds
+     * @param endMs the end of the wanted time window in milliseconds
+     * @param timings the timings in which the time spent in each stage is recorded
+     * @return the filtered listing or null if it couldn't be fetched or parsed
+     */
+    public static XmlTvParser.TvListing getRichTvListings(Context context, String url, Callable<Set<Long>> channelIdsProvider, long startMs, long endMs, FeedTimings timings) {
+        return (getRichTvListings(context, url, channelIdsProvider, startMs, endMs, 0, timings));
+    }
+
+    /**
+     * Parses the EPG of a given url while only keeping the channels and programs that are needed.
+     * <p>
+     * When the EPG has to be parsed, programs ending up to a given margin after the wanted window
+     * are kept as well. The cached listing can then answer later requests whose window moved by
+     * less than that margin, even if they only revalidate it with the server.
+     *
+     * @param context the context used to open the url
+     * @param url the url of the XMLTV feed
+     * @param channelIdsProvider gives the hash codes of the wanted XMLTV channel ids, null for all
+     * @param startMs the start of the wanted time window in milliseconds
+     * @param endMs the end of the wanted time window in milliseconds
+     * @param marginMs the time kept after the end of the window when parsing, in milliseconds
+     * @param timings the timings in which the time spent in each stage is recorded
+     * @return the filtered listing or null if it couldn't be fetched or parsed
+     */
+    public static XmlTvParser.TvListing getRichTvListings(Context context, String url, Callable<Set<Long>> channelIdsProvider, long startMs, long endMs, long marginMs, FeedTimings timings) {
         Uri catalogUri = Uri.parse(url);
+        long parseEndMs = endMs > Long.MAX_VALUE - marginMs ? Long.MAX_VALUE : endMs + marginMs;
+        XmlTvParser.TvListing tvListing = null;
+        FeedResponse response = null;
 
-        if (sSampleTvListing != null) {
-            return sSampleTvListing;
-        }
+        try {
+            Set<Long> channelIds = null;
+            boolean lookedUp = false;
+
+            // Don't bother connecting if the listing might still be valid.
+            if (sTvListingCache.isFresh(url)) {
+                channelIds = channelIdsProvider.call();
+                tvListing = sTvListingCache.get(url, channelIds, startMs, endMs);
+                lookedUp = true;
+
+                if (tvListing != null) {
+                    return (tvListing);
+                }
+            }
+
+            // An expired listing can still be used if the feed didn't change since it was parsed.
+            TvListingCache.Entry previousEntry = lookedUp ? null : sTvListingCache.peek(url);
+            String eTag = previousEntry != null ? previousEntry.getETag() : null;
+            String lastModified = previousEntry != null ? previousEntry.getLastModified() : null;
+            response = getFeedResponse(context, catalogUri, eTag, lastModified);
+
+            if (!lookedUp) {
+                channelIds = channelIdsProvider.call();
+                tvListing = sTvListingCache.get(url, channelIds, startMs, endMs);
+
+                if (tvListing != null) {
+                    return (tvListing);
+                }
+            }
 
-        try (InputStream inputStream = getInputStream(context, catalogUri)) {
-            sSampleTvListing = XmlTvParser.parse(inputStream);
+            if (response.isNotModified()) {
+                TvListingCache.Entry entry = sTvListingCache.getEntry(url, channelIds, startMs, endMs);
+                timings.record(response, 0);
+
+                if (entry != null) {
+                    Log.d(TAG, catalogUri + " not modified, reusing the previous listing");
+                    sTvListingCache.revalidate(url);
+                    return (entry.getTvListing());
+                }
+
+                // The previous listing doesn't contain what is needed, fetch everything again.
+                response = getFeedResponse(context, catalogUri, null, null);
+            }
+
+            long readStart = System.nanoTime();
+            tvListing = XmlTvParser.parse(response.getInputStream(), channelIds, startMs, parseEndMs);
+            timings.record(response, System.nanoTime() - readStart);
+            sTvListingCache.put(url, tvListing, channelIds, startMs, parseEndMs, response.getETag(), response.getLastModified());
         } catch (IOException e) {
             Log.e(TAG, "Error in fetching " + catalogUri, e);
         } catch (XmlTvParser.XmlTvParseException e) {
             Log.e(TAG, "Error in parsing " + catalogUri, e);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't get the channels needed for " + catalogUri, e);
+        } finally {
+            closeQuietly(response);
         }
-        return sSampleTvListing;
+        return tvListing;
     }
 
+    /**
+     * Opens a feed. Compressed feeds (gzip or xz) are decompressed while they are being read.
+     *
+     * @param context the context used to open local uris
+     * @param uri the uri of the feed
+     * @return the decompressed content of the feed or null if it couldn't be opened
+     * @throws IOException if the feed couldn't be fetched
+     */
     public static InputStream getInputStream(Context context, Uri uri) throws IOException {
         InputStream inputStream;
 
-        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+        if (isLocalUri(uri)) {
             inputStream = context != null ? context.getContentResolver().openInputStream(uri) : null;
+            return (inputStream == null ? null : decompressOrClose(inputStream, null, null));
         } else {
-            URLConnection urlConnection = new URL(uri.toString()).openConnection();
-            urlConnection.setConnectTimeout(URLCONNECTION_CONNECTION_TIMEOUT_MS);
-            urlConnection.setReadTimeout(URLCONNECTION_READ_TIMEOUT_MS);
-            inputStream = urlConnection.getInputStream();
+            URLConnection urlConnection = openConnection(uri);
+            return (decompressOrClose(urlConnection.getInputStream(), urlConnection.getContentEncoding(), urlConnection));
+        }
+    }
+
+    /**
+     * Fetches a feed only if it changed since the given validators were received. Local feeds
+     * don't have any validators and are always fully read.
+     *
+     * @param context the context used to open local uris
+     * @param uri the uri of the feed
+     * @param eTag the entity tag received on the previous fetch, null if none
+     * @param lastModified the last modification date received on the previous fetch, null if none
+     * @return the response containing either the content or the fact that it wasn't modified
+     * @throws IOException if the feed couldn't be fetched
+     */
+    public static FeedResponse getFeedResponse(Context context, Uri uri, String eTag, String lastModified) throws IOException {
+
+        long connectStart = System.nanoTime();
+
+        if (isLocalUri(uri)) {
+            InputStream inputStream = context != null ? context.getContentResolver().openInputStream(uri) : null;
+
+            if (inputStream == null) {
+                return (new FeedResponse(null, false, null, null));
+            }
+
+            TimedInputStream timedInputStream = new TimedInputStream(inputStream);
+            return (new FeedResponse(decompressOrClose(timedInputStream, null, null), false, null, null, getMillisSince(connectStart), timedInputStream));
+        }
+
+        URLConnection urlConnection = openConnection(uri);
+
+        if (urlConnection instanceof HttpURLConnection) {
+            HttpURLConnection httpUrlConnection = (HttpURLConnection) urlConnection;
+
+            if (eTag != null) {
+                httpUrlConnection.setRequestProperty("If-None-Match", eTag);
+            }
+
+            if (lastModified != null) {
+                httpUrlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            if ((eTag != null || lastModified != null) && httpUrlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpUrlConnection.disconnect();
+                return (new FeedResponse(null, true, eTag, lastModified, getMillisSince(connectStart), null));
+            }
         }
 
-        return inputStream == null ? null : new BufferedInputStream(inputStream);
+        TimedInputStream timedInputStream = new TimedInputStream(urlConnection.getInputStream());
+        long connectMillis = getMillisSince(connectStart);
+        InputStream inputStream = decompressOrClose(timedInputStream, urlConnection.getContentEncoding(), urlConnection);
+        return (new FeedResponse(inputStream, false, urlConnection.getHeaderField("ETag"), urlConnection.getHeaderField("Last-Modified"), connectMillis, timedInputStream));
     }
 
     public static InputStream getInputStream(String url) throws IOException {
         return (getInputStream(null, Uri.parse(url)));
     }
 
+    private static long getMillisSince(long startNanos) {
+        return (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException io) {
+            Log.w(TAG, "Couldn't close the feed", io);
+        }
+    }
+
+    private static boolean isLocalUri(Uri uri) {
+        return (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || ContentResolver.SCHEME_FILE.equals(uri.getScheme()));
+    }
+
+    private static URLConnection openConnection(Uri uri) throws IOException {
+        URLConnection urlConnection = new URL(uri.toString()).openConnection();
+        urlConnection.setConnectTimeout(URLCONNECTION_CONNECTION_TIMEOUT_MS);
+        urlConnection.setReadTimeout(URLCONNECTION_READ_TIMEOUT_MS);
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+        return (urlConnection);
+    }
+
+    /**
+     * Decodes a stream like {@link #decompress(InputStream, String)} but closes it if its header
+     * can't be read, since the decompressing streams read it as soon as they are created.
+     *
+     * @param inputStream the raw stream
+     * @param contentEncoding the HTTP content encoding of the stream, null if unknown
+     * @param urlConnection the connection from which the stream comes, null if none
+     * @return the decompressed stream
+     * @throws IOException if the stream couldn't be read
+     */
+    private static InputStream decompressOrClose(InputStream inputStream, String contentEncoding, URLConnection urlConnection) throws IOException {
+
+        try {
+            return (decompress(inputStream, contentEncoding));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(inputStream);
+
+            if (urlConnection instanceof HttpURLConnection) {
+                ((HttpURLConnection) urlConnection).disconnect();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a stream based on its content encoding and then on its first bytes so files such as
+     * guide.xml.gz or guide.xml.xz can be read directly. Everything is done while the stream is
+     * being read.
+     *
+     * @param inputStream the raw stream
+     * @param contentEncoding the HTTP content encoding of the stream, null if unknown
+     * @return the decompressed stream
+     * @throws IOException if the stream couldn't be read
+     */
+    private static InputStream decompress(InputStream inputStream, String contentEncoding) throws IOException {
+
+        InputStream decodedStream = inputStream;
+
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            decodedStream = new GZIPInputStream(decodedStream, DECOMPRESSION_BUFFER_SIZE);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            decodedStream = new InflaterInputStream(decodedStream);
+        }
+
+        BufferedInputStream bufferedStream = new BufferedInputStream(decodedStream, DECOMPRESSION_BUFFER_SIZE);
+        byte[] header = new byte[XZ_MAGIC.length];
+        int headerLength = 0;
+        int read = 0;
+
+        bufferedStream.mark(header.length);
+
+        while (headerLength < header.length && read != -1) {
+            read = bufferedStream.read(header, headerLength, header.length - headerLength);
+            headerLength += Math.max(read, 0);
+        }
+
+        bufferedStream.reset();
+
+        if (startsWith(header, headerLength, GZIP_MAGIC)) {
+            return (new BufferedInputStream(new GZIPInputStream(bufferedStream, DECOMPRESSION_BUFFER_SIZE), DECOMPRESSION_BUFFER_SIZE));
+        } else if (startsWith(header, headerLength, XZ_MAGIC)) {
+            return (new BufferedInputStream(new XZInputStream(bufferedStream), DECOMPRESSION_BUFFER_SIZE));
+        }
+
+        return (bufferedStream);
+    }
+
+    private static boolean startsWith(byte[] header, int headerLength, byte[] magic) {
+
+        if (headerLength < magic.length) {
+            return (false);
+        }
+
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
 }
\ No newline at end of file
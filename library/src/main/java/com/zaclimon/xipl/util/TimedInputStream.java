@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream measuring the time spent waiting for the underlying stream. When wrapping a network
+ * stream, it gives the time spent downloading as opposed to the time spent parsing.
+ *
+ * @author zaclimon
+ * Creation date: 14/08/18
+ */
+class TimedInputStream extends FilterInputStream {
+
+    private long mReadNanos;
+
+    TimedInputStream(InputStream inputStream) {
+        super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return (super.read());
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return (super.read(buffer, offset, length));
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return (super.skip(count));
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Gets the time spent reading from the underlying stream.
+     *
+     * @return the time in nanoseconds
+     */
+    long getReadNanos() {
+        return (mReadNanos);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for the {@link XmlTvParser.TvListing} parsed from an EPG url.
+ * <p>
+ * Listings are kept for a limited time and up to an estimated amount of memory, the least
+ * recently used ones being evicted first. Listings larger than the cache aren't kept at all. A listing parsed for some channels and a time window is only
+ * reused for requests asking for the same channels within that window.
+ * <p>
+ * Expired listings having HTTP validators are kept so they can be revalidated with the server
+ * instead of being parsed again if the feed didn't change.
+ *
+ * @author zaclimon
+ * Creation date: 12/08/18
+ */
+public class TvListingCache {
+
+    /**
+     * The default time during which a listing is valid.
+     */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The default maximum amount of memory used by the cached listings in bytes, an eighth of the
+     * heap available to the application.
+     */
+    public static final int DEFAULT_MAX_SIZE = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final String LOG_TAG = "TvListingCache";
+    // Estimated memory used by a channel and by a program without its texts, in bytes.
+    private static final int CHANNEL_BYTES = 1024;
+    private static final int PROGRAM_BYTES = 512;
+
+    private final LruCache<String, Entry> mEntries;
+    private long mTtlMillis = DEFAULT_TTL_MILLIS;
+    private long mHitCount;
+    private long mMissCount;
+    private long mRevalidationCount;
+
+    /**
+     * Default constructor
+     *
+     * @param maxSize the maximum amount of memory used by the cached listings in bytes
+     */
+    public TvListingCache(int maxSize) {
+        mEntries = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return (entry.mSize);
+            }
+        };
+    }
+
+    /**
+     * Gets the listing of a given url if it is still valid.
+     *
+     * @param url the url of the EPG
+     * @param channelIds the channel ids the listing must have been parsed for, null for all
+     * @param startMs the start of the time window the listing must contain
+     * @param endMs the end of the time window the listing must contain
+     * @return the cached listing or null if there isn't any valid one
+     */
+    public synchronized XmlTvParser.TvListing get(String url, Set<Long> channelIds, long startMs, long endMs) {
+
+        Entry entry = getEntry(url, channelIds, startMs, endMs);
+
+        if (entry != null && !isExpired(entry)) {
+            mHitCount++;
+            return (entry.mTvListing);
+        }
+
+        mMissCount++;
+        return (null);
+    }
+
+    /**
+     * Gets the entry of a given url containing what is asked, even if it is expired. The entry
+     * can then be revalidated using its validators.
+     *
+     * @param url the url of the EPG
+     * @param channelIds the channel ids the listing must have been parsed for, null for all
+     * @param startMs the start of the time window the listing must contain
+     * @param endMs the end of the time window the listing must contain
+     * @return the entry or null if there isn't any
+     */
+    public synchronized Entry getEntry(String url, Set<Long> channelIds, long startMs, long endMs) {
+
+        Entry entry = mEntries.get(url);
+
+        if (entry != null && isExpired(entry) && !entry.hasValidators()) {
+            mEntries.remove(url);
+            entry = null;
+        }
+
+        return (entry != null && entry.covers(channelIds, startMs, endMs) ? entry : null);
+    }
+
+    /**
+     * Notifies if the listing of a given url is still valid, whatever it has been parsed for.
+     *
+     * @param url the url of the EPG
+     * @return true if there is a listing which hasn't expired yet
+     */
+    public synchronized boolean isFresh(String url) {
+        Entry entry = mEntries.get(url);
+        return (entry != null && !isExpired(entry));
+    }
+
+    /**
+     * Gets the entry of a given url, whatever it has been parsed for and even if it is expired.
+     *
+     * @param url the url of the EPG
+     * @return the entry or null if there isn't any
+     */
+    public synchronized Entry peek(String url) {
+        return (mEntries.get(url));
+    }
+
+    /**
+     * Adds the listing of a given url to the cache, replacing the previous one if any.
+     *
+     * @param url the url of the EPG
+     * @param tvListing the parsed listing
+     * @param channelIds the channel ids the listing has been parsed for, null for all
+     * @param startMs the start of the time window the listing has been parsed for
+     * @param endMs the end of the time window the listing has been parsed for
+     */
+    public synchronized void put(String url, XmlTvParser.TvListing tvListing, Set<Long> channelIds, long startMs, long endMs) {
+        put(url, tvListing, channelIds, startMs, endMs, null, null);
+    }
+
+    /**
+     * Adds the listing of a given url to the cache along with the validators of its content.
+     *
+     * @param url the url of the EPG
+     * @param tvListing the parsed listing
+     * @param channelIds the channel ids the listing has been parsed for, null for all
+     * @param startMs the start of the time window the listing has been parsed for
+     * @param endMs the end of the time window the listing has been parsed for
+     * @param eTag the entity tag of the content, null if none
+     * @param lastModified the last modification date of the content, null if none
+     */
+    public synchronized void put(String url, XmlTvParser.TvListing tvListing, Set<Long> channelIds, long startMs, long endMs, String eTag, String lastModified) {
+        if (url != null && tvListing != null) {
+            int size = estimateSize(tvListing);
+
+            if (size > mEntries.maxSize()) {
+                // The cache would evict it right away along with every other listing.
+                Log.w(LOG_TAG, "Listing of " + url + " is too large to be cached: " + size + " bytes, "
+                        + mEntries.maxSize() + " bytes available");
+                mEntries.remove(url);
+                return;
+            }
+
+            mEntries.put(url, new Entry(tvListing, channelIds, startMs, endMs, eTag, lastModified, size));
+        }
+    }
+
+    /**
+     * Renews the validity of the listing of a given url once the server confirmed it didn't change.
+     *
+     * @param url the url of the EPG
+     */
+    public synchronized void revalidate(String url) {
+
+        Entry entry = mEntries.get(url);
+
+        if (entry != null) {
+            entry.mCreationTime = SystemClock.elapsedRealtime();
+            mRevalidationCount++;
+        }
+    }
+
+    /**
+     * Removes the listing of a given url so it gets parsed again on the next request.
+     *
+     * @param url the url of the EPG
+     */
+    public synchronized void invalidate(String url) {
+        if (url != null) {
+            mEntries.remove(url);
+        }
+    }
+
+    /**
+     * Removes all the listings from the cache.
+     */
+    public synchronized void invalidateAll() {
+        mEntries.evictAll();
+    }
+
+    /**
+     * Releases memory depending on how much the system needs it.
+     *
+     * @param level the level as given by {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mEntries.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mEntries.trimToSize(mEntries.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Sets the time during which a listing is valid.
+     *
+     * @param ttlMillis the validity time in milliseconds
+     */
+    public synchronized void setTtl(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the amount of requests that were answered by the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return (mHitCount);
+    }
+
+    /**
+     * Gets the amount of requests that couldn't be answered by the cache.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return (mMissCount);
+    }
+
+    /**
+     * Gets the amount of expired listings that were reused since their feed didn't change.
+     *
+     * @return the revalidation count
+     */
+    public synchronized long getRevalidationCount() {
+        return (mRevalidationCount);
+    }
+
+    /**
+     * Gets the amount of memory used by the cached listings.
+     *
+     * @return the estimated size of the cached listings in bytes
+     */
+    public synchronized int getSize() {
+        return (mEntries.size());
+    }
+
+    /**
+     * Estimates the memory used by a listing from its amount of channels and programs along with
+     * the length of the program texts.
+     *
+     * @param tvListing the listing
+     * @return the estimated size of the listing in bytes
+     */
+    @VisibleForTesting
+    static int estimateSize(XmlTvParser.TvListing tvListing) {
+
+        long size = (long) tvListing.getChannels().size() * CHANNEL_BYTES;
+
+        for (Program program : tvListing.getAllPrograms()) {
+            int textLength = getLength(program.getTitle()) + getLength(program.getEpisodeTitle())
+                    + getLength(program.getDescription()) + getLength(program.getLongDescription())
+                    + getLength(program.getPosterArtUri());
+            size += PROGRAM_BYTES + 2 * textLength;
+        }
+
+        return ((int) Math.min(Integer.MAX_VALUE, Math.max(1, size)));
+    }
+
+    private static int getLength(String text) {
+        return (text != null ? text.length() : 0);
+    }
+
+    private boolean isExpired(Entry entry) {
+        return (SystemClock.elapsedRealtime() - entry.mCreationTime > mTtlMillis);
+    }
+
+    /**
+     * A listing along with the parameters it has been parsed with.
+     */
+    public static class Entry {
+
+        private final XmlTvParser.TvListing mTvListing;
+        private final Set<Long> mChannelIds;
+        private final long mStartMs;
+        private final long mEndMs;
+        private final String mETag;
+        private final String mLastModified;
+        private final int mSize;
+        private long mCreationTime;
+
+        private Entry(XmlTvParser.TvListing tvListing, Set<Long> channelIds, long startMs, long endMs, String eTag, String lastModified, int size) {
+            mTvListing = tvListing;
+            mChannelIds = channelIds;
+            mStartMs = startMs;
+            mEndMs = endMs;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mSize = size;
+            mCreationTime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Gets the cached listing.
+         *
+         * @return the listing
+         */
+        public XmlTvParser.TvListing getTvListing() {
+            return (mTvListing);
+        }
+
+        /**
+         * Gets the entity tag of the feed the listing has been parsed from.
+         *
+         * @return the entity tag or null if there isn't any
+         */
+        public String getETag() {
+            return (mETag);
+        }
+
+        /**
+         * Gets the last modification date of the feed the listing has been parsed from.
+         *
+         * @return the last modification date or null if there isn't any
+         */
+        public String getLastModified() {
+            return (mLastModified);
+        }
+
+        private boolean hasValidators() {
+            return (mETag != null || mLastModified != null);
+        }
+
+        private boolean covers(Set<Long> channelIds, long startMs, long endMs) {
+
+            boolean channelsCovered = mChannelIds == null || (channelIds != null && mChannelIds.containsAll(channelIds));
+            return (channelsCovered && mStartMs <= startMs && mEndMs >= endMs);
+        }
+    }
+}
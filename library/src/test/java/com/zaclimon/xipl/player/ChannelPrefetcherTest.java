@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.zaclimon.xipl.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the buffer of {@link ChannelPrefetcher}, using sources serving urls from memory.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ChannelPrefetcherTest {
+
+    private static final int BUFFER_SIZE = 100;
+    // High enough for the downloads not to be slowed down.
+    private static final int BITRATE = Integer.MAX_VALUE;
+    private static final String URL = "http://provider/live/1/index.m3u8";
+    private static final String OTHER_URL = "http://provider/live/2/index.m3u8";
+
+    private FakeDataSourceFactory mNetwork;
+    private ChannelPrefetcher mPrefetcher;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mNetwork = new FakeDataSourceFactory();
+        mPrefetcher = new ChannelPrefetcher(mNetwork, BUFFER_SIZE, BITRATE, 1);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mPrefetcher.release();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void servesBufferedUrlOnce() throws IOException {
+        byte[] buffered = createData(40, 1);
+        mNetwork.mContents.put(URL, createData(40, 2));
+        assertTrue(put(URL, buffered));
+
+        DataSource dataSource = mPrefetcher.createDataSourceFactory(mNetwork).createDataSource();
+        assertArrayEquals(buffered, read(dataSource, URL));
+        assertEquals(0, mNetwork.mOpenCount);
+
+        // The player reading the url again gets it from the network.
+        assertArrayEquals(mNetwork.mContents.get(URL), read(dataSource, URL));
+        assertEquals(1, mNetwork.mOpenCount);
+    }
+
+    @Test
+    public void servedUrlFreesItsBudget() throws IOException {
+        assertTrue(put(URL, createData(60, 1)));
+        assertFalse(put(OTHER_URL, createData(60, 2)));
+
+        read(mPrefetcher.createDataSourceFactory(mNetwork).createDataSource(), URL);
+        assertTrue(put(OTHER_URL, createData(60, 2)));
+    }
+
+    @Test
+    public void discardFreesBufferedUrls() throws IOException {
+        mNetwork.mContents.put(URL, createData(40, 2));
+        assertTrue(put(URL, createData(BUFFER_SIZE, 1)));
+
+        mPrefetcher.discard();
+        assertArrayEquals(mNetwork.mContents.get(URL), read(mPrefetcher.createDataSourceFactory(mNetwork).createDataSource(), URL));
+        assertTrue(put(OTHER_URL, createData(BUFFER_SIZE, 3)));
+    }
+
+    @Test
+    public void putRejectsUrlsOverBudget() {
+        assertTrue(put(URL, createData(BUFFER_SIZE - 10, 1)));
+        assertFalse(put(OTHER_URL, createData(11, 2)));
+        assertTrue(put(OTHER_URL, createData(10, 2)));
+    }
+
+    @Test
+    public void putRejectsUrlsOfCancelledDownloads() {
+        int generation = mPrefetcher.getGeneration();
+
+        mPrefetcher.cancel();
+        assertFalse(mPrefetcher.put(URL, new ChannelPrefetcher.Entry(Uri.parse(URL), createData(10, 1)), generation));
+    }
+
+    @Test
+    public void fetchRejectsUrlsLargerThanMaxSize() throws IOException {
+        int generation = mPrefetcher.getGeneration();
+        mNetwork.mContents.put(URL, createData(50, 1));
+
+        assertNull(mPrefetcher.fetch(URL, 49, generation));
+        assertNotNull(mPrefetcher.fetch(URL, 50, generation));
+
+        // Without a length, the download stops once it goes over the size.
+        mNetwork.mUnknownLength = true;
+        assertNull(mPrefetcher.fetch(URL, 49, generation));
+        assertNotNull(mPrefetcher.fetch(URL, 50, generation));
+        assertEquals(0, mNetwork.mOpenSourceCount);
+    }
+
+    @Test
+    public void cancelClosesBlockedDownload() throws Exception {
+        final int generation = mPrefetcher.getGeneration();
+        mNetwork.mContents.put(URL, createData(50, 1));
+        mNetwork.mBlockReads = true;
+
+        Future<Object> fetch = mExecutor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                return (mPrefetcher.fetch(URL, BUFFER_SIZE, generation));
+            }
+        });
+
+        assertTrue(mNetwork.mReadStarted.await(5, TimeUnit.SECONDS));
+        mPrefetcher.cancel();
+        assertNull(fetch.get(5, TimeUnit.SECONDS));
+        assertEquals(0, mNetwork.mOpenSourceCount);
+    }
+
+    private boolean put(String url, byte[] data) {
+        return (mPrefetcher.put(url, new ChannelPrefetcher.Entry(Uri.parse(url), data), mPrefetcher.getGeneration()));
+    }
+
+    private static byte[] read(DataSource dataSource, String url) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int readLength;
+
+        try {
+            dataSource.open(new DataSpec(Uri.parse(url)));
+
+            while ((readLength = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                outputStream.write(buffer, 0, readLength);
+            }
+        } finally {
+            dataSource.close();
+        }
+
+        return (outputStream.toByteArray());
+    }
+
+    private static byte[] createData(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return (data);
+    }
+
+    /**
+     * Network serving urls from memory, whose reads can block until their source is closed.
+     */
+    private static class FakeDataSourceFactory implements DataSource.Factory {
+
+        private final Map<String, byte[]> mContents = new HashMap<>();
+        private final CountDownLatch mReadStarted = new CountDownLatch(1);
+        private volatile boolean mUnknownLength;
+        private volatile boolean mBlockReads;
+        private volatile int mOpenCount;
+        private volatile int mOpenSourceCount;
+
+        @Override
+        public DataSource createDataSource() {
+            return (new DataSource() {
+
+                private final CountDownLatch mClosed = new CountDownLatch(1);
+                private Uri mUri;
+                private byte[] mData;
+                private int mPosition;
+
+                @Override
+                public long open(DataSpec dataSpec) throws IOException {
+                    synchronized (FakeDataSourceFactory.this) {
+                        mOpenCount++;
+                        mOpenSourceCount++;
+                    }
+
+                    mUri = dataSpec.uri;
+                    mData = mContents.get(dataSpec.uri.toString());
+
+                    if (mData == null) {
+                        throw new IOException("Not found: " + dataSpec.uri);
+                    }
+
+                    return (mUnknownLength ? C.LENGTH_UNSET : mData.length);
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int readLength) throws IOException {
+                    if (mBlockReads) {
+                        mReadStarted.countDown();
+
+                        try {
+                            mClosed.await();
+                        } catch (InterruptedException ie) {
+                            // A read blocked on a socket isn't interrupted either.
+                        }
+
+                        throw new IOException("Source closed");
+                    }
+
+                    if (mPosition == mData.length) {
+                        return (C.RESULT_END_OF_INPUT);
+                    }
+
+                    int length = Math.min(readLength, mData.length - mPosition);
+                    System.arraycopy(mData, mPosition, buffer, offset, length);
+                    mPosition += length;
+                    return (length);
+                }
+
+                @Override
+                public Uri getUri() {
+                    return (mUri);
+                }
+
+                @Override
+                public void close() {
+                    if (mClosed.getCount() > 0) {
+                        synchronized (FakeDataSourceFactory.this) {
+                            mOpenSourceCount--;
+                        }
+
+                        mClosed.countDown();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.zaclimon.xipl.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the estimates of {@link PersistentBandwidthMeter} are kept for each network and host
+ * and given back until a new transfer measures them.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class PersistentBandwidthMeterTest {
+
+    private static final String WIFI = "1_0";
+    private static final String MOBILE = "0_13";
+    private static final String HOST = "provider.example.com";
+    private static final String OTHER_HOST = "cdn.example.com";
+    private static final int TRANSFER_BYTES = 1024 * 1024;
+    private static final long TRANSFER_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private SharedPreferences mPreferences;
+
+    @Before
+    public void setUp() {
+        mPreferences = RuntimeEnvironment.application.getSharedPreferences("bandwidth_estimates_test", Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void noEstimateBeforeAnyTransfer() {
+        assertEquals(BandwidthMeter.NO_ESTIMATE, createMeter(WIFI).getBitrateEstimate());
+    }
+
+    @Test
+    public void givesSavedEstimateUntilMeasured() {
+        PersistentBandwidthMeter meter = createMeter(WIFI);
+        transfer(meter, HOST, TRANSFER_BYTES, TRANSFER_MILLIS);
+        long bitrateEstimate = meter.getBitrateEstimate();
+        assertTrue(bitrateEstimate > 0);
+
+        // As after the application got restarted.
+        PersistentBandwidthMeter restartedMeter = createMeter(WIFI);
+        assertEquals(BandwidthMeter.NO_ESTIMATE, restartedMeter.getBitrateEstimate());
+        restartedMeter.onTransferStart(this, createDataSpec(HOST));
+        assertEquals(bitrateEstimate, restartedMeter.getBitrateEstimate());
+    }
+
+    @Test
+    public void keepsEstimatesPerNetworkAndHost() {
+        PersistentBandwidthMeter meter = createMeter(WIFI);
+        transfer(meter, HOST, TRANSFER_BYTES, TRANSFER_MILLIS);
+        long bitrateEstimate = meter.getBitrateEstimate();
+
+        PersistentBandwidthMeter mobileMeter = createMeter(MOBILE);
+        mobileMeter.onTransferStart(this, createDataSpec(HOST));
+        assertEquals(BandwidthMeter.NO_ESTIMATE, mobileMeter.getBitrateEstimate());
+
+        PersistentBandwidthMeter wifiMeter = createMeter(WIFI);
+        wifiMeter.onTransferStart(this, createDataSpec(OTHER_HOST));
+        assertEquals(BandwidthMeter.NO_ESTIMATE, wifiMeter.getBitrateEstimate());
+        wifiMeter.onTransferStart(this, createDataSpec(HOST));
+        assertEquals(bitrateEstimate, wifiMeter.getBitrateEstimate());
+    }
+
+    @Test
+    public void savesEstimateAtMostEveryInterval() {
+        PersistentBandwidthMeter meter = createMeter(WIFI);
+        transfer(meter, HOST, TRANSFER_BYTES, TRANSFER_MILLIS);
+        long savedEstimate = meter.getBitrateEstimate();
+
+        // A larger and faster transfer right after moves the estimate without saving it.
+        transfer(meter, HOST, 4 * TRANSFER_BYTES, TRANSFER_MILLIS);
+        assertNotEquals(savedEstimate, meter.getBitrateEstimate());
+        assertEquals(savedEstimate, getSavedEstimate(HOST));
+
+        SystemClock.sleep(TimeUnit.SECONDS.toMillis(10));
+        transfer(meter, HOST, 4 * TRANSFER_BYTES, TRANSFER_MILLIS);
+        assertEquals(meter.getBitrateEstimate(), getSavedEstimate(HOST));
+    }
+
+    /**
+     * Creates a meter using the test preferences whose network is always the given one.
+     */
+    private PersistentBandwidthMeter createMeter(final String networkType) {
+        return (new PersistentBandwidthMeter(mPreferences, null) {
+            @Override
+            String getNetworkType() {
+                return (networkType);
+            }
+        });
+    }
+
+    /**
+     * Gets the estimate a new meter would start with on Wi-Fi for a given host.
+     */
+    private long getSavedEstimate(String host) {
+        PersistentBandwidthMeter meter = createMeter(WIFI);
+        meter.onTransferStart(this, createDataSpec(host));
+        return (meter.getBitrateEstimate());
+    }
+
+    private static void transfer(PersistentBandwidthMeter meter, String host, int bytes, long millis) {
+        Object source = new Object();
+        meter.onTransferStart(source, createDataSpec(host));
+        meter.onBytesTransferred(source, bytes);
+        SystemClock.sleep(millis);
+        meter.onTransferEnd(source);
+    }
+
+    private static DataSpec createDataSpec(String host) {
+        return (new DataSpec(Uri.parse("http://" + host + "/live/1.ts")));
+    }
+}
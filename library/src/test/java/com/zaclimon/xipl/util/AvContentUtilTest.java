@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import com.zaclimon.xipl.BuildConfig;
+import com.zaclimon.xipl.model.AvContent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the tokenizing of M3U playlists done by {@link AvContentUtil}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class AvContentUtilTest {
+
+    @Test
+    public void parsesQuotedAttributesWithCommas() {
+        List<AvContent> contents = parse("#EXTM3U\n"
+                + "#EXTINF:-1 tvg-id=\"news.us\" tvg-name=\"News, Weather\" tvg-logo=\"http://logos/news.png\" group-title=\"US, Local\",News\n"
+                + "http://provider/live/1.ts\n", "Live");
+
+        assertEquals(1, contents.size());
+        AvContent content = contents.get(0);
+        assertEquals("News, Weather", content.getTitle());
+        assertEquals("http://logos/news.png", content.getLogo());
+        assertEquals("US, Local", content.getGroup());
+        assertEquals("Live", content.getContentCategory());
+        assertEquals("http://provider/live/1.ts", content.getContentLink());
+        assertEquals("news.us".hashCode(), content.getId());
+    }
+
+    @Test
+    public void takesTitleAfterCommaWhenNameIsEmpty() {
+        List<AvContent> contents = parse("#EXTINF:-1 tvg-name=\"\" group-title=\"Movies\",The Movie\n"
+                + "http://provider/movie/2.mp4\n", null);
+
+        assertEquals(1, contents.size());
+        assertEquals("The Movie", contents.get(0).getTitle());
+        assertEquals("Movies", contents.get(0).getGroup());
+    }
+
+    @Test
+    public void skipsEntriesWithoutAttributes() {
+        List<AvContent> contents = parse("#EXTINF:-1,Plain Channel\n"
+                + "http://provider/live/3.ts\n"
+                + "#EXTINF:-1 tvg-name=\"Named\",Named\n"
+                + "http://provider/live/4.ts\n", null);
+
+        assertEquals(1, contents.size());
+        assertEquals("Named", contents.get(0).getTitle());
+        assertEquals("http://provider/live/4.ts", contents.get(0).getContentLink());
+    }
+
+    @Test
+    public void handlesCrLfAndBlankLines() {
+        List<AvContent> contents = parse("#EXTM3U\r\n"
+                + "\r\n"
+                + "#EXTINF:-1 tvg-name=\"First\",First\r\n"
+                + "\r\n"
+                + "   \r\n"
+                + "http://provider/live/5.ts\r\n"
+                + "\r\n"
+                + "#EXTINF:-1 tvg-name=\"Second\",Second\r\n"
+                + "http://provider/live/6.ts", null);
+
+        assertEquals(2, contents.size());
+        assertEquals("First", contents.get(0).getTitle());
+        assertEquals("http://provider/live/5.ts", contents.get(0).getContentLink());
+        assertEquals("Second", contents.get(1).getTitle());
+        assertEquals("http://provider/live/6.ts", contents.get(1).getContentLink());
+    }
+
+    @Test
+    public void parsesHttpsLinks() {
+        List<AvContent> contents = parse("#EXTINF:-1 tvg-name=\"Secure\",Secure\n"
+                + "https://provider/live/7.m3u8\n"
+                + "#EXTINF:-1 tvg-name=\"Inline\",Inline https://provider/live/8.m3u8", null);
+
+        assertEquals(2, contents.size());
+        assertEquals("https://provider/live/7.m3u8", contents.get(0).getContentLink());
+        assertEquals("Inline", contents.get(1).getTitle());
+        assertEquals("https://provider/live/8.m3u8", contents.get(1).getContentLink());
+    }
+
+    @Test
+    public void parsesPlaylistsWithoutNewlines() {
+        List<AvContent> contents = parse("#EXTM3U #EXTINF:-1 tvg-name=\"One\",One http://provider/live/9.ts"
+                + "#EXTINF:-1 tvg-name=\"Two\",Two http://provider/live/10.ts", null);
+
+        assertEquals(2, contents.size());
+        assertEquals("One", contents.get(0).getTitle());
+        assertEquals("http://provider/live/9.ts", contents.get(0).getContentLink());
+        assertEquals("Two", contents.get(1).getTitle());
+        assertEquals("http://provider/live/10.ts", contents.get(1).getContentLink());
+    }
+
+    private static List<AvContent> parse(String playlist, String contentCategory) {
+        return (AvContentUtil.getAvContentsList(new ByteArrayInputStream(playlist.getBytes(StandardCharsets.UTF_8)), contentCategory));
+    }
+}
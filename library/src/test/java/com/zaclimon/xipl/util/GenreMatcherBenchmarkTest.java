@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import com.google.android.media.tv.companionlibrary.benchmark.Benchmark;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Times the genre matching done by {@link GenreMatcher} against the previous implementation.
+ * Only runs with {@code gradlew test -Pbenchmark}.
+ * <p>
+ * The previous implementation also loaded the keyword arrays from the resources on each call.
+ * This isn't measured here so its actual cost is higher than the one shown.
+ */
+public class GenreMatcherBenchmarkTest {
+
+    @BeforeClass
+    public static void loadKeywords() throws Exception {
+        GenreMatcherTest.loadKeywords();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmark.assumeEnabled();
+        final List<String> channelNames = GenreMatcherTest.createChannelNames(GenreMatcherTest.CHANNEL_COUNT);
+        final GenreMatcher genreMatcher = new GenreMatcher(GenreMatcherTest.sKeywordGroups);
+
+        Benchmark.compare("Genres of channels", channelNames.size(), 5, 15, new Benchmark.Task() {
+            @Override
+            public long run() {
+                long checksum = 0;
+
+                for (String channelName : channelNames) {
+                    checksum += GenreMatcherTest.matchLegacy(channelName);
+                }
+                return (checksum);
+            }
+        }, new Benchmark.Task() {
+            @Override
+            public long run() {
+                long checksum = 0;
+
+                for (String channelName : channelNames) {
+                    checksum += genreMatcher.match(channelName);
+                }
+                return (checksum);
+            }
+        });
+    }
+}
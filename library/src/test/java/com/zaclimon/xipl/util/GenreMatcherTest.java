@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the genre matching done by {@link GenreMatcher} with the previous implementation,
+ * which searched every keyword of every genre in the channel name and is kept here as a reference
+ * for {@link GenreMatcherBenchmarkTest}.
+ */
+public class GenreMatcherTest {
+
+    private static final String KEYWORDS_FILE = "src/main/res/values/strings_channels.xml";
+    static final int CHANNEL_COUNT = 10000;
+    private static final String[] PREFIXES = {"", "US: ", "UK| ", "FR - ", "CA "};
+    private static final String[] SUFFIXES = {"", " HD", " FHD", " SD", " +1", " (BACKUP)"};
+    private static final String[] OTHER_NAMES = {"LOCAL 12", "RAI UNO", "TF1", "CHANNEL 5", "ZDF", "VTV4"};
+
+    static List<String[]> sKeywordGroups;
+
+    @BeforeClass
+    public static void loadKeywords() throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(KEYWORDS_FILE));
+        NodeList arrays = document.getElementsByTagName("string-array");
+        sKeywordGroups = new ArrayList<>();
+
+        for (int i = 0; i < arrays.getLength(); i++) {
+            NodeList items = ((Element) arrays.item(i)).getElementsByTagName("item");
+            String[] keywords = new String[items.getLength()];
+
+            for (int j = 0; j < items.getLength(); j++) {
+                keywords[j] = items.item(j).getTextContent();
+            }
+            sKeywordGroups.add(keywords);
+        }
+    }
+
+    @Test
+    public void matchesPreviousImplementation() {
+        GenreMatcher genreMatcher = new GenreMatcher(sKeywordGroups);
+
+        for (String channelName : createChannelNames(CHANNEL_COUNT)) {
+            assertEquals(channelName, matchLegacy(channelName), genreMatcher.match(channelName));
+        }
+    }
+
+    @Test
+    public void matchesOverlappingKeywords() {
+        List<String[]> keywordGroups = new ArrayList<>();
+        keywordGroups.add(new String[]{"HE", "SHE"});
+        keywordGroups.add(new String[]{"HERS"});
+        keywordGroups.add(new String[]{"HIS"});
+        GenreMatcher genreMatcher = new GenreMatcher(keywordGroups);
+
+        assertEquals(0b001, genreMatcher.match("USHE"));
+        assertEquals(0b011, genreMatcher.match("USHERS"));
+        assertEquals(0b100, genreMatcher.match("AHHIS"));
+        assertEquals(0, genreMatcher.match("H"));
+        assertEquals(0, genreMatcher.match(""));
+    }
+
+    static List<String> createChannelNames(int count) {
+        Random random = new Random(42);
+        List<String> channelNames = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            String name;
+            String[] keywords = sKeywordGroups.get(random.nextInt(sKeywordGroups.size()));
+
+            if (random.nextInt(4) == 0 || keywords.length == 0) {
+                name = OTHER_NAMES[random.nextInt(OTHER_NAMES.length)];
+            } else {
+                name = keywords[random.nextInt(keywords.length)];
+            }
+            channelNames.add(PREFIXES[random.nextInt(PREFIXES.length)] + name + SUFFIXES[random.nextInt(SUFFIXES.length)]);
+        }
+        return (channelNames);
+    }
+
+    /**
+     * Previous matching implementation, kept as a reference.
+     */
+    static int matchLegacy(String channelName) {
+        int mask = 0;
+
+        for (int i = 0; i < sKeywordGroups.size(); i++) {
+            for (String channelType : sKeywordGroups.get(i)) {
+                if (channelName.contains(channelType)) {
+                    mask |= 1 << i;
+                    break;
+                }
+            }
+        }
+        return (mask);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import android.media.tv.TvContract;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.zaclimon.xipl.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the placeholder programs given by {@link ProviderChannelUtil} to the channels without
+ * programs.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ProviderChannelUtilTest {
+
+    private static final long SYNC_MILLIS = 1534761000000L; // 20/08/18 10:30 UTC
+    private static final long PERIODIC_SYNC_MILLIS = TimeUnit.HOURS.toMillis(12);
+    private static final String[] GENRES = {TvContract.Programs.Genres.NEWS};
+
+    /**
+     * The schedule of a channel is only written again when the values of its programs change, so
+     * the placeholder of a periodic sync must be the same as the one of the previous sync.
+     */
+    @Test
+    public void placeholderProgramUnchangedTwelveHoursLater() {
+        Channel channel = createChannel();
+        Program program = ProviderChannelUtil.createPlaceholderProgram(channel, GENRES, SYNC_MILLIS);
+        Program nextProgram = ProviderChannelUtil.createPlaceholderProgram(channel, GENRES, SYNC_MILLIS + PERIODIC_SYNC_MILLIS);
+
+        assertEquals(program, nextProgram);
+        assertEquals(program.toContentValues(), nextProgram.toContentValues());
+    }
+
+    @Test
+    public void placeholderProgramCoversNextWeek() {
+        Channel channel = createChannel();
+        long end = SYNC_MILLIS + TimeUnit.DAYS.toMillis(21);
+
+        for (long now = SYNC_MILLIS; now < end; now += TimeUnit.MINUTES.toMillis(30)) {
+            Program program = ProviderChannelUtil.createPlaceholderProgram(channel, GENRES, now);
+            assertTrue(program.getStartTimeUtcMillis() <= now);
+            assertTrue(program.getEndTimeUtcMillis() >= now + TimeUnit.DAYS.toMillis(7));
+        }
+    }
+
+    private static Channel createChannel() {
+        return (new Channel.Builder()
+                .setDisplayName("News")
+                .setOriginalNetworkId("news.us".hashCode())
+                .build());
+    }
+}
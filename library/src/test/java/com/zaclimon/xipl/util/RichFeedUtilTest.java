@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import android.os.SystemClock;
+
+import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.zaclimon.xipl.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the reuse of the listings cached by {@link RichFeedUtil} across syncs and the decoding of
+ * compressed feeds, using a local server whose EPG never changes.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class RichFeedUtilTest {
+
+    private static final String ETAG = "\"guide-1\"";
+    private static final long SYNC_START_MILLIS = 1534723200000L; // 20/08/18 00:00 UTC
+    private static final long SYNC_DURATION_MILLIS = TimeUnit.DAYS.toMillis(2);
+    private static final long MARGIN_MILLIS = TimeUnit.HOURS.toMillis(13);
+    private static final long PERIODIC_SYNC_MILLIS = TimeUnit.HOURS.toMillis(12);
+    private static final String PLAYLIST = "#EXTM3U\n#EXTINF:-1 tvg-id=\"news.us\",News\nhttp://provider/live/1.ts\n";
+
+    private HttpServer mServer;
+    private String mUrl;
+    // Only written by the thread of the server.
+    private volatile int mFullRequestCount;
+    private volatile int mNotModifiedCount;
+
+    @Before
+    public void setUp() throws IOException {
+        final byte[] guide = createGuide().getBytes(StandardCharsets.UTF_8);
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/guide.xml", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    mNotModifiedCount++;
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                } else {
+                    mFullRequestCount++;
+                    exchange.getResponseHeaders().set("ETag", ETAG);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, guide.length);
+
+                    try (OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(guide);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/guide.xml";
+        RichFeedUtil.getTvListingCache().invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        RichFeedUtil.getTvListingCache().invalidateAll();
+    }
+
+    @Test
+    public void reusesRevalidatedListingForNextPeriodicSync() {
+        XmlTvParser.TvListing firstListing = getListing(SYNC_START_MILLIS);
+        assertNotNull(firstListing);
+        assertEquals(1, mFullRequestCount);
+
+        // The cached listing has expired by the time the next periodic sync runs.
+        SystemClock.sleep(PERIODIC_SYNC_MILLIS);
+        XmlTvParser.TvListing secondListing = getListing(SYNC_START_MILLIS + PERIODIC_SYNC_MILLIS);
+
+        assertSame(firstListing, secondListing);
+        assertEquals(1, mNotModifiedCount);
+        assertEquals(1, mFullRequestCount);
+        assertEquals(1, RichFeedUtil.getTvListingCache().getRevalidationCount());
+    }
+
+    @Test
+    public void fetchesAgainWhenSyncGoesPastMargin() {
+        getListing(SYNC_START_MILLIS);
+
+        SystemClock.sleep(MARGIN_MILLIS + TimeUnit.HOURS.toMillis(1));
+        XmlTvParser.TvListing listing = getListing(SYNC_START_MILLIS + MARGIN_MILLIS + TimeUnit.HOURS.toMillis(1));
+
+        assertNotNull(listing);
+        assertEquals(1, mNotModifiedCount);
+        assertEquals(2, mFullRequestCount);
+    }
+
+    @Test
+    public void decodesGzipContentEncoding() throws IOException {
+        String url = serve("/playlist.m3u", gzip(PLAYLIST.getBytes(StandardCharsets.UTF_8)), "gzip");
+        assertEquals(PLAYLIST, read(url));
+    }
+
+    @Test
+    public void detectsGzipFileByMagicBytes() throws IOException {
+        String url = serve("/playlist.m3u.gz", gzip(PLAYLIST.getBytes(StandardCharsets.UTF_8)), null);
+        assertEquals(PLAYLIST, read(url));
+    }
+
+    @Test
+    public void detectsXzFileByMagicBytes() throws IOException {
+        String url = serve("/playlist.m3u.xz", xz(PLAYLIST.getBytes(StandardCharsets.UTF_8)), null);
+        assertEquals(PLAYLIST, read(url));
+    }
+
+    @Test
+    public void decodesGzipFileServedWithGzipContentEncoding() throws IOException {
+        String url = serve("/guide.xml.gz", gzip(gzip(PLAYLIST.getBytes(StandardCharsets.UTF_8))), "gzip");
+        assertEquals(PLAYLIST, read(url));
+    }
+
+    @Test
+    public void readsPlainBodyShorterThanMagicBytes() throws IOException {
+        String url = serve("/short.txt", "#EXT".getBytes(StandardCharsets.UTF_8), null);
+        assertEquals("#EXT", read(url));
+    }
+
+    private XmlTvParser.TvListing getListing(long startMs) {
+        return (RichFeedUtil.getRichTvListings(null, mUrl, new AllChannelsProvider(), startMs, startMs + SYNC_DURATION_MILLIS, MARGIN_MILLIS, new FeedTimings()));
+    }
+
+    /**
+     * Serves a body at a given path of the local server.
+     *
+     * @return the url of the body
+     */
+    private String serve(String path, final byte[] body, final String contentEncoding) {
+        mServer.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (contentEncoding != null) {
+                    exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+                }
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+                exchange.close();
+            }
+        });
+        return ("http://127.0.0.1:" + mServer.getAddress().getPort() + path);
+    }
+
+    private static String read(String url) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+        int readLength;
+
+        try (InputStream inputStream = RichFeedUtil.getInputStream(url)) {
+            while ((readLength = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readLength);
+            }
+        }
+        return (new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream)) {
+            gzipStream.write(data);
+        }
+        return (outputStream.toByteArray());
+    }
+
+    private static byte[] xz(byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (XZOutputStream xzStream = new XZOutputStream(outputStream, new LZMA2Options())) {
+            xzStream.write(data);
+        }
+        return (outputStream.toByteArray());
+    }
+
+    /**
+     * Creates an EPG with hourly programs for a channel, going past the window of every sync.
+     */
+    private static String createGuide() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder guide = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n"
+                + "<channel id=\"news.us\"><display-name>News</display-name></channel>\n");
+        long hourMillis = TimeUnit.HOURS.toMillis(1);
+
+        for (long start = SYNC_START_MILLIS; start < SYNC_START_MILLIS + TimeUnit.DAYS.toMillis(4); start += hourMillis) {
+            guide.append("<programme channel=\"news.us\" start=\"")
+                    .append(dateFormat.format(new Date(start)))
+                    .append("\" stop=\"")
+                    .append(dateFormat.format(new Date(start + hourMillis)))
+                    .append("\"><title>News</title></programme>\n");
+        }
+        return (guide.append("</tv>\n").toString());
+    }
+
+    /**
+     * Asks for every channel of the EPG.
+     */
+    private static class AllChannelsProvider implements Callable<Set<Long>> {
+        @Override
+        public Set<Long> call() {
+            return (null);
+        }
+    }
+}
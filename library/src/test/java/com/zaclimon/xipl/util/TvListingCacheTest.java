@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaclimon.xipl.util;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+import com.zaclimon.xipl.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the expiry, revalidation and eviction of the listings kept by {@link TvListingCache}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class TvListingCacheTest {
+
+    private static final String URL = "http://provider/guide.xml";
+    private static final long TTL_MILLIS = 1000;
+    private static final long START_MILLIS = 1534723200000L; // 20/08/18 00:00 UTC
+    private static final long END_MILLIS = START_MILLIS + 4 * 3600000L;
+    private static final Set<Long> CHANNEL_IDS = new HashSet<>(Arrays.asList(1L, 2L));
+
+    private XmlTvParser.TvListing mListing;
+    private int mListingSize;
+
+    @Before
+    public void setUp() throws XmlTvParser.XmlTvParseException {
+        String guide = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n"
+                + "<channel id=\"news.us\"><display-name>News</display-name></channel>\n"
+                + "<programme channel=\"news.us\" start=\"20180820000000 +0000\" stop=\"20180820010000 +0000\">"
+                + "<title>Morning News</title><desc>The news of the day.</desc></programme>\n"
+                + "<programme channel=\"news.us\" start=\"20180820010000 +0000\" stop=\"20180820020000 +0000\">"
+                + "<title>Weather</title></programme>\n"
+                + "</tv>\n";
+
+        mListing = XmlTvParser.parse(new ByteArrayInputStream(guide.getBytes(StandardCharsets.UTF_8)));
+        mListingSize = TvListingCache.estimateSize(mListing);
+    }
+
+    @Test
+    public void expiresListingWithoutValidatorsAfterTtl() {
+        TvListingCache cache = createCache(1);
+        cache.put(URL, mListing, null, START_MILLIS, END_MILLIS);
+
+        assertTrue(cache.isFresh(URL));
+        assertSame(mListing, cache.get(URL, null, START_MILLIS, END_MILLIS));
+
+        SystemClock.sleep(TTL_MILLIS + 1);
+        assertFalse(cache.isFresh(URL));
+        assertNull(cache.get(URL, null, START_MILLIS, END_MILLIS));
+        assertNull(cache.peek(URL));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void revalidatesExpiredListingWithValidators() {
+        TvListingCache cache = createCache(1);
+        cache.put(URL, mListing, null, START_MILLIS, END_MILLIS, "\"guide-1\"", null);
+
+        SystemClock.sleep(TTL_MILLIS + 1);
+        assertNull(cache.get(URL, null, START_MILLIS, END_MILLIS));
+
+        TvListingCache.Entry entry = cache.getEntry(URL, null, START_MILLIS, END_MILLIS);
+        assertNotNull(entry);
+        assertEquals("\"guide-1\"", entry.getETag());
+
+        cache.revalidate(URL);
+        assertTrue(cache.isFresh(URL));
+        assertSame(mListing, cache.get(URL, null, START_MILLIS, END_MILLIS));
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void coversOnlyParsedChannelsAndWindow() {
+        TvListingCache cache = createCache(1);
+        cache.put(URL, mListing, CHANNEL_IDS, START_MILLIS, END_MILLIS);
+
+        assertSame(mListing, cache.get(URL, CHANNEL_IDS, START_MILLIS, END_MILLIS));
+        assertSame(mListing, cache.get(URL, Collections.singleton(1L), START_MILLIS + 1, END_MILLIS - 1));
+        assertNull(cache.get(URL, Collections.singleton(3L), START_MILLIS, END_MILLIS));
+        assertNull(cache.get(URL, null, START_MILLIS, END_MILLIS));
+        assertNull(cache.get(URL, CHANNEL_IDS, START_MILLIS - 1, END_MILLIS));
+        assertNull(cache.get(URL, CHANNEL_IDS, START_MILLIS, END_MILLIS + 1));
+
+        // A listing parsed for every channel covers any of them.
+        cache.put(URL, mListing, null, START_MILLIS, END_MILLIS);
+        assertSame(mListing, cache.get(URL, Collections.singleton(3L), START_MILLIS, END_MILLIS));
+    }
+
+    @Test
+    public void doesNotCacheListingLargerThanCache() {
+        TvListingCache cache = new TvListingCache(mListingSize - 1);
+        cache.put(URL, mListing, null, START_MILLIS, END_MILLIS);
+
+        assertNull(cache.peek(URL));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void trimsHalfWhenMemoryIsModeratelyNeeded() {
+        int[] levels = {ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, ComponentCallbacks2.TRIM_MEMORY_BACKGROUND};
+
+        for (int level : levels) {
+            TvListingCache cache = createFullCache(4);
+            cache.trimMemory(level);
+
+            assertEquals(2 * mListingSize, cache.getSize());
+            assertNull(cache.peek(URL + 0));
+            assertNotNull(cache.peek(URL + 3));
+        }
+    }
+
+    @Test
+    public void evictsAllWhenMemoryIsLow() {
+        int[] levels = {ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL,
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE, ComponentCallbacks2.TRIM_MEMORY_COMPLETE};
+
+        for (int level : levels) {
+            TvListingCache cache = createFullCache(4);
+            cache.trimMemory(level);
+            assertEquals(0, cache.getSize());
+        }
+    }
+
+    @Test
+    public void keepsAllWhenUiIsHidden() {
+        TvListingCache cache = createFullCache(4);
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(4 * mListingSize, cache.getSize());
+    }
+
+    /**
+     * Creates a cache holding up to a given amount of copies of the test listing.
+     */
+    private TvListingCache createCache(int listingCount) {
+        TvListingCache cache = new TvListingCache(listingCount * mListingSize);
+        cache.setTtl(TTL_MILLIS);
+        return (cache);
+    }
+
+    /**
+     * Creates a cache filled with a given amount of copies of the test listing, each one under
+     * its own url.
+     */
+    private TvListingCache createFullCache(int listingCount) {
+        TvListingCache cache = createCache(listingCount);
+
+        for (int i = 0; i < listingCount; i++) {
+            cache.put(URL + i, mListing, null, START_MILLIS, END_MILLIS);
+        }
+        return (cache);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Assume;
+
+/**
+ * Times a new implementation against the previous one it replaces, for the benchmark tests of
+ * the tiflibrary and library modules.
+ *
+ * <p>Benchmarks only run when the {@value #PROPERTY} system property is set, with {@code gradlew
+ * test -Pbenchmark}, so the default test task doesn't depend on the speed of the machine.
+ */
+public final class Benchmark {
+    /** The system property enabling the benchmarks. */
+    public static final String PROPERTY = "benchmark";
+
+    /** Code being timed. */
+    public interface Task {
+        /**
+         * Runs the code once.
+         *
+         * @return A checksum of the results, compared between implementations and preventing the
+         *     JIT from removing the work.
+         */
+        long run() throws Exception;
+    }
+
+    private Benchmark() {}
+
+    /** Skips the calling test unless benchmarks are enabled. */
+    public static void assumeEnabled() {
+        Assume.assumeTrue(
+                "Benchmarks run with -P" + PROPERTY, Boolean.getBoolean(PROPERTY));
+    }
+
+    /**
+     * Runs both implementations alternately, checks they give the same checksum and that the
+     * current one is faster, then reports the time taken by an operation.
+     *
+     * @param name What is measured, used in the report.
+     * @param operationCount The number of operations done by a run of a task.
+     * @param warmUpIterations The number of first runs only used to warm up the JIT.
+     * @param iterations The total number of runs of each task.
+     * @param legacy The previous implementation.
+     * @param current The implementation replacing it.
+     */
+    public static void compare(
+            String name,
+            long operationCount,
+            int warmUpIterations,
+            int iterations,
+            Task legacy,
+            Task current)
+            throws Exception {
+        assumeEnabled();
+        long legacyNanos = 0;
+        long currentNanos = 0;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long legacyStart = System.nanoTime();
+            long legacyChecksum = legacy.run();
+            long currentStart = System.nanoTime();
+            long currentChecksum = current.run();
+            long end = System.nanoTime();
+            assertEquals(name, legacyChecksum, currentChecksum);
+            if (iteration >= warmUpIterations) {
+                legacyNanos += currentStart - legacyStart;
+                currentNanos += end - currentStart;
+            }
+        }
+        long measuredOperations = operationCount * (iterations - warmUpIterations);
+        System.out.println(
+                name
+                        + ": previous "
+                        + legacyNanos / measuredOperations
+                        + " ns/op, current "
+                        + currentNanos / measuredOperations
+                        + " ns/op");
+        assertTrue(name + " is slower than the previous implementation", currentNanos < legacyNanos);
+    }
+}
@@ -36,7 +36,9 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.view.Surface;
@@ -46,6 +48,7 @@ import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.ModelUtils;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
+import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 import com.google.android.media.tv.companionlibrary.utils.Constants;
 
 import java.util.ArrayList;
@@ -67,10 +70,41 @@ public abstract class BaseTvInputService extends TvInputService {
     // For database calls
     private static HandlerThread mDbHandlerThread;
 
-    // Map of channel {@link TvContract.Channels#_ID} to Channel objects
-    private static LongSparseArray<Channel> mChannelMap;
+    // For refreshing the channel map and the schedule index, apart from the database calls of
+    // the sessions so that tuning never waits for them.
+    private static HandlerThread mRefreshHandlerThread;
+
+    // Map of channel {@link TvContract.Channels#_ID} to Channel objects, replaced on each change
+    private static volatile LongSparseArray<Channel> mChannelMap;
     private static ContentResolver mContentResolver;
     private static ContentObserver mChannelObserver;
+    private static Handler mRefreshHandler;
+    private String mInputId;
+
+    // Channels are refreshed one by one up to this count, the whole map is reloaded beyond.
+    private static final int MAX_CHANNEL_REFRESH_COUNT = 20;
+    // Changes are gathered for this long before refreshing the channel map.
+    private static final long CHANNEL_MAP_REFRESH_DELAY_MILLIS = 500;
+    private static final long CHANNEL_MAP_MAX_REFRESH_DELAY_MILLIS = 5000;
+    // Channels changed since the last refresh, only used from the refresh thread.
+    private final Set<Long> mChangedChannelIds = new HashSet<>();
+    private boolean mChannelMapChanged;
+    private CoalescedTask mChannelMapRefresher;
+
+    // Programs airing soon on the channels of the input, replaced on each reload.
+    private static volatile ProgramScheduleIndex mScheduleIndex;
+    private static final long SCHEDULE_INDEX_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(4);
+    // The index is reloaded before its window ends so tuning never falls outside of it.
+    private static final long SCHEDULE_INDEX_REFRESH_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // Changes are gathered for this long before reloading the index, eg. during an EPG sync.
+    private static final long SCHEDULE_INDEX_RELOAD_DELAY_MILLIS = 2000;
+    private static final long SCHEDULE_INDEX_MAX_RELOAD_DELAY_MILLIS = 30000;
+    private CoalescedTask mScheduleIndexLoader;
+
+    // Minimum time between two syncs of a channel requested on tune.
+    private static final long CHANNEL_SYNC_MIN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Map of channel {@link TvContract.Channels#_ID} to the last time a sync was requested on tune
+    private static final LongSparseArray<Long> mChannelSyncRequestTimes = new LongSparseArray<>();
 
     // For content ratings
     private static final List<Session> mSessions = new ArrayList<>();
@@ -100,16 +134,56 @@ public abstract class BaseTvInputService extends TvInputService {
 
         // Initialize the channel map and set observer for changes
         mContentResolver = BaseTvInputService.this.getContentResolver();
+        ComponentName component =
+                new ComponentName(
+                        BaseTvInputService.this.getPackageName(),
+                        BaseTvInputService.this.getClass().getName());
+        mInputId = TvContract.buildInputId(component);
         updateChannelMap();
+        mRefreshHandlerThread = new HandlerThread(getClass().getSimpleName() + "Refresh");
+        mRefreshHandlerThread.start();
+        mRefreshHandler = new Handler(mRefreshHandlerThread.getLooper());
+        mChannelMapRefresher =
+                new CoalescedTask(
+                        mRefreshHandler,
+                        CHANNEL_MAP_REFRESH_DELAY_MILLIS,
+                        CHANNEL_MAP_MAX_REFRESH_DELAY_MILLIS) {
+                    @Override
+                    void runTask() {
+                        refreshChannelMap();
+                    }
+                };
+        mScheduleIndexLoader =
+                new CoalescedTask(
+                        mRefreshHandler,
+                        SCHEDULE_INDEX_RELOAD_DELAY_MILLIS,
+                        SCHEDULE_INDEX_MAX_RELOAD_DELAY_MILLIS) {
+                    @Override
+                    void runTask() {
+                        loadScheduleIndex();
+                    }
+                };
         mChannelObserver =
-                new ContentObserver(new Handler(mDbHandlerThread.getLooper())) {
+                new ContentObserver(mRefreshHandler) {
                     @Override
-                    public void onChange(boolean selfChange) {
-                        updateChannelMap();
+                    public void onChange(boolean selfChange, Uri uri) {
+                        if (uri == null || !isProgramUri(uri)) {
+                            long channelId = uri != null ? getChannelId(uri) : -1;
+                            if (channelId != -1) {
+                                mChangedChannelIds.add(channelId);
+                            } else {
+                                mChannelMapChanged = true;
+                            }
+                            mChannelMapRefresher.onChange();
+                        }
+                        mScheduleIndexLoader.onChange();
                     }
                 };
         mContentResolver.registerContentObserver(
                 TvContract.Channels.CONTENT_URI, true, mChannelObserver);
+        mContentResolver.registerContentObserver(
+                TvContract.Programs.CONTENT_URI, true, mChannelObserver);
+        mRefreshHandler.post(mScheduleIndexLoader);
 
         // Setup our BroadcastReceiver
         IntentFilter intentFilter = new IntentFilter();
@@ -119,12 +193,211 @@ public abstract class BaseTvInputService extends TvInputService {
     }
 
     private void updateChannelMap() {
-        ComponentName component =
-                new ComponentName(
-                        BaseTvInputService.this.getPackageName(),
-                        BaseTvInputService.this.getClass().getName());
-        String inputId = TvContract.buildInputId(component);
-        mChannelMap = ModelUtils.buildChannelMap(mContentResolver, inputId);
+        mChannelMap = ModelUtils.buildChannelMap(mContentResolver, mInputId);
+    }
+
+    /**
+     * Applies the channel changes gathered since the last refresh. Only the changed channels are
+     * read if they are known and few, and the map is replaced at once.
+     */
+    private void refreshChannelMap() {
+        LongSparseArray<Channel> channelMap = mChannelMap;
+        if (mChannelMapChanged
+                || channelMap == null
+                || mChangedChannelIds.size() > MAX_CHANNEL_REFRESH_COUNT) {
+            updateChannelMap();
+        } else {
+            LongSparseArray<Channel> updatedChannelMap = channelMap.clone();
+            for (long channelId : mChangedChannelIds) {
+                Channel channel =
+                        ModelUtils.getChannel(
+                                mContentResolver, TvContract.buildChannelUri(channelId));
+                if (channel != null && mInputId.equals(channel.getInputId())) {
+                    updatedChannelMap.put(channelId, channel);
+                } else {
+                    updatedChannelMap.remove(channelId);
+                }
+            }
+            mChannelMap = updatedChannelMap;
+        }
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "Refreshed "
+                            + (mChannelMapChanged ? "all" : mChangedChannelIds.size())
+                            + " channels");
+        }
+        mChannelMapChanged = false;
+        mChangedChannelIds.clear();
+    }
+
+    private static boolean isProgramUri(Uri uri) {
+        return uri.toString().startsWith(TvContract.Programs.CONTENT_URI.toString());
+    }
+
+    /**
+     * Returns the id of the channel of the given uri, or -1 if it doesn't point to a single
+     * channel.
+     */
+    private static long getChannelId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        String channelsSegment = TvContract.Channels.CONTENT_URI.getLastPathSegment();
+        if (segments.size() < 2 || !channelsSegment.equals(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compares two display numbers like the channel keys order them, where the numeric parts of
+     * numbers such as "2-1" or "10.3" are compared by value.
+     */
+    static int compareDisplayNumbers(String first, String second) {
+        if (first == null || second == null) {
+            return first == null ? (second == null ? 0 : -1) : 1;
+        }
+        String[] firstParts = first.split("[.\\- ]");
+        String[] secondParts = second.split("[.\\- ]");
+        for (int i = 0; i < firstParts.length && i < secondParts.length; i++) {
+            int order;
+            try {
+                order =
+                        Long.compare(
+                                Long.parseLong(firstParts[i]), Long.parseLong(secondParts[i]));
+            } catch (NumberFormatException e) {
+                order = firstParts[i].compareTo(secondParts[i]);
+            }
+            if (order != 0) {
+                return order;
+            }
+        }
+        return firstParts.length - secondParts.length;
+    }
+
+    /**
+     * Returns the browsable channels coming right before and after a channel by display number,
+     * wrapping around at the ends of the channel list.
+     *
+     * @see Session#getAdjacentChannels(long)
+     */
+    @VisibleForTesting
+    static List<Channel> findAdjacentChannels(LongSparseArray<Channel> channelMap, long channelId) {
+        List<Channel> channels = new ArrayList<>();
+        Channel channel = channelMap != null ? channelMap.get(channelId) : null;
+        if (channel == null) {
+            return channels;
+        }
+        String displayNumber = channel.getDisplayNumber();
+        Channel previous = null;
+        Channel next = null;
+        Channel first = null;
+        Channel last = null;
+        for (int i = 0; i < channelMap.size(); i++) {
+            Channel other = channelMap.valueAt(i);
+            if (other.getId() == channelId || !other.isBrowsable()) {
+                continue;
+            }
+            String otherNumber = other.getDisplayNumber();
+            int order = compareDisplayNumbers(otherNumber, displayNumber);
+            if (order < 0
+                    && (previous == null
+                            || compareDisplayNumbers(otherNumber, previous.getDisplayNumber())
+                                    > 0)) {
+                previous = other;
+            } else if (order > 0
+                    && (next == null
+                            || compareDisplayNumbers(otherNumber, next.getDisplayNumber())
+                                    < 0)) {
+                next = other;
+            }
+            if (first == null || compareDisplayNumbers(otherNumber, first.getDisplayNumber()) < 0) {
+                first = other;
+            }
+            if (last == null || compareDisplayNumbers(otherNumber, last.getDisplayNumber()) > 0) {
+                last = other;
+            }
+        }
+        previous = previous != null ? previous : last;
+        next = next != null ? next : first;
+        if (previous != null) {
+            channels.add(previous);
+        }
+        if (next != null && next != previous) {
+            channels.add(next);
+        }
+        return channels;
+    }
+
+    /**
+     * Loads the programs airing within the next hours on every channel in a single query, so
+     * tuning finds the current program without querying the TvProvider.
+     */
+    private void loadScheduleIndex() {
+        LongSparseArray<Channel> channelMap = mChannelMap;
+        if (channelMap == null) {
+            mScheduleIndex = null;
+            return;
+        }
+        long[] channelIds = new long[channelMap.size()];
+        for (int i = 0; i < channelIds.length; i++) {
+            channelIds[i] = channelMap.keyAt(i);
+        }
+        long fromMs = System.currentTimeMillis();
+        long toMs = fromMs + SCHEDULE_INDEX_WINDOW_MILLIS;
+        LongSparseArray<Program[]> programs =
+                ModelUtils.getPrograms(mContentResolver, channelIds, fromMs, toMs);
+        // Without an index, the programs are queried on each tune instead.
+        mScheduleIndex =
+                programs != null
+                        ? new ProgramScheduleIndex(channelIds, programs, fromMs, toMs)
+                        : null;
+        mRefreshHandler.postDelayed(
+                mScheduleIndexLoader,
+                SCHEDULE_INDEX_WINDOW_MILLIS - SCHEDULE_INDEX_REFRESH_MARGIN_MILLIS);
+    }
+
+    /**
+     * Runs a task once changes stop coming for a delay, or after a longer delay if they keep
+     * coming, on the thread of the given handler.
+     */
+    @VisibleForTesting
+    abstract static class CoalescedTask implements Runnable {
+        private final Handler mHandler;
+        private final long mDelayMillis;
+        private final long mMaxDelayMillis;
+        private long mFirstChangeTime;
+
+        CoalescedTask(Handler handler, long delayMillis, long maxDelayMillis) {
+            mHandler = handler;
+            mDelayMillis = delayMillis;
+            mMaxDelayMillis = maxDelayMillis;
+        }
+
+        /** Postpones the task after a change. Called from the thread of the handler. */
+        void onChange() {
+            long now = SystemClock.elapsedRealtime();
+            if (mFirstChangeTime == 0) {
+                mFirstChangeTime = now;
+            } else if (now - mFirstChangeTime >= mMaxDelayMillis) {
+                // Let the pending run happen instead of postponing it again.
+                return;
+            }
+            mHandler.removeCallbacks(this);
+            mHandler.postDelayed(this, mDelayMillis);
+        }
+
+        @Override
+        public void run() {
+            mFirstChangeTime = 0;
+            mHandler.removeCallbacks(this);
+            runTask();
+        }
+
+        abstract void runTask();
     }
 
     /**
@@ -134,15 +407,31 @@ public abstract class BaseTvInputService extends TvInputService {
      * @return The session that was created.
      */
     public Session sessionCreated(Session session) {
+        session.mEpgSyncJobServiceComponent = getEpgSyncJobServiceComponent();
         mSessions.add(session);
         return session;
     }
 
+    /**
+     * Returns the {@link EpgSyncJobService} syncing the channels of this input. If set, the
+     * programs of a channel are synced right away when it is tuned without any program airing,
+     * and the channels recently tuned are synced first by the next syncs.
+     *
+     * @return The component of the job service, {@code null} by default.
+     */
+    public ComponentName getEpgSyncJobServiceComponent() {
+        return null;
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mParentalControlsBroadcastReceiver);
         mContentResolver.unregisterContentObserver(mChannelObserver);
+        mRefreshHandler.removeCallbacksAndMessages(null);
+        mRefreshHandlerThread.quit();
+        mRefreshHandlerThread = null;
+        mScheduleIndex = null;
         mDbHandlerThread.quit();
         mDbHandlerThread = null;
     }
@@ -169,7 +458,9 @@ public abstract class BaseTvInputService extends TvInputService {
         private static final long PAST_AD_BUFFER_MILLIS = 2000L;
 
         private final Context mContext;
+        private final String mInputId;
         private final TvInputManager mTvInputManager;
+        private ComponentName mEpgSyncJobServiceComponent;
         private Channel mCurrentChannel;
         private Program mCurrentProgram;
         private long mElapsedProgramTime;
@@ -200,6 +491,7 @@ public abstract class BaseTvInputService extends TvInputService {
         public Session(Context context, String inputId) {
             super(context);
             this.mContext = context;
+            mInputId = inputId;
             mTvInputManager = (TvInputManager) context.getSystemService(Context.TV_INPUT_SERVICE);
             mLastBlockedRating = null;
             mDbHandler = new Handler(mDbHandlerThread.getLooper());
@@ -266,7 +558,7 @@ public abstract class BaseTvInputService extends TvInputService {
             notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
             mChannelUri = channelUri;
-            long channelId = ContentUris.parseId(channelUri);
+            final long channelId = ContentUris.parseId(channelUri);
 
             if (mChannelMap != null) {
                 mCurrentChannel = mChannelMap.get(channelId);
@@ -280,6 +572,15 @@ public abstract class BaseTvInputService extends TvInputService {
 
             if (mDbHandler != null) {
                 mUnblockedRatingSet.clear();
+                if (mEpgSyncJobServiceComponent != null) {
+                    mDbHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    EpgSyncJobService.addPriorityChannel(mContext, channelId);
+                                }
+                            });
+                }
                 mDbHandler.removeCallbacks(mGetCurrentProgramRunnable);
                 mGetCurrentProgramRunnable = new GetCurrentProgramRunnable(mChannelUri);
                 mDbHandler.post(mGetCurrentProgramRunnable);
@@ -789,6 +1090,19 @@ public abstract class BaseTvInputService extends TvInputService {
             return mChannelUri;
         }
 
+        /**
+         * Returns the channels tuned by the channel down and up keys from a channel, which are the
+         * browsable ones coming right before and after it by display number, wrapping around at
+         * the ends of the channel list.
+         *
+         * @param channelId The id of the channel.
+         * @return The previous and next channels, without duplicates. The list is empty if the
+         *     channel isn't one of the input.
+         */
+        public List<Channel> getAdjacentChannels(long channelId) {
+            return findAdjacentChannels(mChannelMap, channelId);
+        }
+
         private boolean blockContentIfNeeded() {
             if (mCurrentContentRatingSet == null || !mTvInputManager.isParentalControlsEnabled()) {
                 // Content rating is invalid so we don't need to block anymore.
@@ -903,20 +1217,58 @@ public abstract class BaseTvInputService extends TvInputService {
             public void run() {
                 ContentResolver resolver = mContext.getContentResolver();
                 Program program = null;
-                long timeShiftedDifference =
-                        System.currentTimeMillis() - mTimeShiftedPlaybackPosition;
+                long channelId = ContentUris.parseId(mChannelUri);
+                ProgramScheduleIndex scheduleIndex = mScheduleIndex;
+                long nowMs = System.currentTimeMillis();
+                long timeShiftedDifference = nowMs - mTimeShiftedPlaybackPosition;
                 if (mTimeShiftedPlaybackPosition != TvInputManager.TIME_SHIFT_INVALID_TIME
                         && timeShiftedDifference > TIME_SHIFTED_MINIMUM_DIFFERENCE_MILLIS) {
-                    program = ModelUtils.getNextProgram(resolver, mChannelUri, mCurrentProgram);
+                    if (scheduleIndex != null && mCurrentProgram != null) {
+                        program = scheduleIndex.getNextProgram(channelId, mCurrentProgram);
+                    }
+                    if (program == null) {
+                        program =
+                                ModelUtils.getNextProgram(resolver, mChannelUri, mCurrentProgram);
+                    }
                 } else {
                     mTimeShiftedPlaybackPosition = TvInputManager.TIME_SHIFT_INVALID_TIME;
-                    program = ModelUtils.getCurrentProgram(resolver, mChannelUri);
+                    if (scheduleIndex != null
+                            && scheduleIndex.coversCurrentProgram(channelId, nowMs)) {
+                        program = scheduleIndex.getCurrentProgram(channelId, nowMs);
+                    }
+                    if (program == null) {
+                        // The index may be stale, so check the database before syncing.
+                        program = ModelUtils.getCurrentProgram(resolver, mChannelUri);
+                    }
+                    if (program == null) {
+                        requestChannelSync(channelId);
+                    }
                 }
                 mHandler.removeMessages(MSG_PLAY_CONTENT);
                 mHandler.obtainMessage(MSG_PLAY_CONTENT, program).sendToTarget();
             }
         }
 
+        /**
+         * Requests a sync of the given channel, since its guide data is missing or outdated,
+         * unless one was requested shortly before. Called from the database thread.
+         */
+        private void requestChannelSync(long channelId) {
+            if (mEpgSyncJobServiceComponent == null || mInputId == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            Long lastRequestTime = mChannelSyncRequestTimes.get(channelId);
+            if (lastRequestTime != null
+                    && now - lastRequestTime < CHANNEL_SYNC_MIN_INTERVAL_MILLIS) {
+                return;
+            }
+            mChannelSyncRequestTimes.put(channelId, now);
+            if (DEBUG) Log.d(TAG, "No program airing on channel " + channelId + ", syncing it");
+            EpgSyncJobService.requestChannelSync(
+                    mContext, mInputId, channelId, mEpgSyncJobServiceComponent);
+        }
+
         private class GetRecordedProgramRunnable implements Runnable {
             private final Uri mRecordedProgramUri;
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+/**
+ * The programs of every channel of an input airing within a time window, kept in memory so the
+ * current and next programs of a channel are found without querying the TvProvider.
+ *
+ * <p>The programs of each channel are sorted by start time and searched by binary search. A
+ * lookup outside of the window, or for a channel added since the index was built, isn't covered
+ * and must be answered by the TvProvider instead.
+ */
+final class ProgramScheduleIndex {
+    private static final Program[] NO_PROGRAMS = new Program[0];
+    private static final long[] NO_TIMES = new long[0];
+
+    private final LongSparseArray<Schedule> mSchedules;
+    private final long mFromMs;
+    private final long mToMs;
+
+    /**
+     * @param channelIds The channels of the input.
+     * @param programs The programs of the channels, by channel id, sorted by start time. The
+     *     programs ending at or after {@code fromMs} and starting before {@code toMs} are all
+     *     expected.
+     * @param fromMs The start of the window.
+     * @param toMs The end of the window.
+     */
+    ProgramScheduleIndex(
+            long[] channelIds, LongSparseArray<Program[]> programs, long fromMs, long toMs) {
+        mSchedules = new LongSparseArray<>(channelIds.length);
+        for (long channelId : channelIds) {
+            mSchedules.put(channelId, new Schedule(programs.get(channelId)));
+        }
+        mFromMs = fromMs;
+        mToMs = toMs;
+    }
+
+    /** Returns the end of the window, from which the index doesn't cover any lookup. */
+    long getToMs() {
+        return mToMs;
+    }
+
+    /** Returns {@code true} if the program of the given channel airing at a time is indexed. */
+    boolean coversCurrentProgram(long channelId, long timeMs) {
+        return mSchedules.get(channelId) != null && timeMs >= mFromMs && timeMs < mToMs;
+    }
+
+    /**
+     * Returns the program airing at the given time on a channel. Check {@link
+     * #coversCurrentProgram(long, long)} first.
+     *
+     * @return The program, or {@code null} if none is airing.
+     */
+    Program getCurrentProgram(long channelId, long timeMs) {
+        Schedule schedule = mSchedules.get(channelId);
+        if (schedule == null) {
+            return null;
+        }
+        int index = schedule.indexOfLastStartedAt(timeMs);
+        if (index < 0 || schedule.mEndTimes[index] <= timeMs) {
+            return null;
+        }
+        return schedule.mPrograms[index];
+    }
+
+    /**
+     * Returns the program following the given one on a channel.
+     *
+     * @return The program, or {@code null} if it isn't indexed, eg. when it starts after the
+     *     window.
+     */
+    Program getNextProgram(long channelId, Program program) {
+        Schedule schedule = mSchedules.get(channelId);
+        if (schedule == null || program.getEndTimeUtcMillis() < mFromMs) {
+            return null;
+        }
+        int index = schedule.indexOfLastStartedAt(program.getStartTimeUtcMillis()) + 1;
+        return index < schedule.mPrograms.length ? schedule.mPrograms[index] : null;
+    }
+
+    /** The programs of a channel with their times in arrays searched by binary search. */
+    private static final class Schedule {
+        private final Program[] mPrograms;
+        private final long[] mStartTimes;
+        private final long[] mEndTimes;
+
+        private Schedule(Program[] programs) {
+            if (programs == null) {
+                mPrograms = NO_PROGRAMS;
+                mStartTimes = NO_TIMES;
+                mEndTimes = NO_TIMES;
+                return;
+            }
+            mPrograms = programs;
+            mStartTimes = new long[programs.length];
+            mEndTimes = new long[programs.length];
+            for (int i = 0; i < programs.length; i++) {
+                mStartTimes[i] = programs[i].getStartTimeUtcMillis();
+                mEndTimes[i] = programs[i].getEndTimeUtcMillis();
+            }
+        }
+
+        /** Returns the index of the last program starting at or before the given time, or -1. */
+        private int indexOfLastStartedAt(long timeMs) {
+            int low = 0;
+            int high = mStartTimes.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (mStartTimes[middle] <= timeMs) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public final class Channel {
     private static final long INVALID_CHANNEL_ID = -1;
     private static final int INVALID_INTEGER_VALUE = -1;
     private static final int IS_SEARCHABLE = 1;
+    private static final int IS_BROWSABLE = 1;
 
     private long mId;
     private String mPackageName;
@@ -55,9 +56,11 @@ public final class Channel {
     private String mNetworkAffiliation;
     private int mSearchable;
     private String mServiceType;
+    private int mBrowsable;
 
     private Channel() {
         mId = INVALID_CHANNEL_ID;
+        mBrowsable = IS_BROWSABLE;
         mOriginalNetworkId = INVALID_INTEGER_VALUE;
         mServiceType = TvContract.Channels.SERVICE_TYPE_AUDIO_VIDEO;
     }
@@ -170,6 +173,14 @@ public final class Channel {
         return mSearchable == IS_SEARCHABLE;
     }
 
+    /**
+     * @return The value of {@link TvContract.Channels#COLUMN_BROWSABLE} for the channel. It is set
+     *     by the system, so channels not read from the database are considered browsable.
+     */
+    public boolean isBrowsable() {
+        return mBrowsable == IS_BROWSABLE;
+    }
+
     /**
      * @return The value of {@link TvContract.Channels#COLUMN_INTERNAL_PROVIDER_DATA} for the
      *     channel.
@@ -340,6 +351,7 @@ public final class Channel {
         mNetworkAffiliation = other.mNetworkAffiliation;
         mSearchable = other.mSearchable;
         mServiceType = other.mServiceType;
+        mBrowsable = other.mBrowsable;
     }
 
     /**
@@ -356,6 +368,9 @@ public final class Channel {
         if (!cursor.isNull(index)) {
             builder.setId(cursor.getLong(index));
         }
+        if (!cursor.isNull(++index)) {
+            builder.setBrowsable(cursor.getInt(index) == IS_BROWSABLE);
+        }
         if (!cursor.isNull(++index)) {
             builder.setDescription(cursor.getString(index));
         }
@@ -422,6 +437,7 @@ public final class Channel {
         String[] baseColumns =
                 new String[] {
                     TvContract.Channels._ID,
+                    TvContract.Channels.COLUMN_BROWSABLE,
                     TvContract.Channels.COLUMN_DESCRIPTION,
                     TvContract.Channels.COLUMN_DISPLAY_NAME,
                     TvContract.Channels.COLUMN_DISPLAY_NUMBER,
@@ -470,11 +486,24 @@ public final class Channel {
          * @param id The value of {@link TvContract.Channels#_ID} for the channel.
          * @return This Builder object to allow for chaining of calls to builder methods.
          */
-        private Builder setId(long id) {
+        Builder setId(long id) {
             mChannel.mId = id;
             return this;
         }
 
+        /**
+         * Sets whether the Channel is shown to the user. Only read from the database since the
+         * system sets it.
+         *
+         * @param browsable The value of {@link TvContract.Channels#COLUMN_BROWSABLE} for the
+         *     channel.
+         * @return This Builder object to allow for chaining of calls to builder methods.
+         */
+        Builder setBrowsable(boolean browsable) {
+            mChannel.mBrowsable = browsable ? IS_BROWSABLE : 0;
+            return this;
+        }
+
         /**
          * Sets the package name of the Channel.
          *
@@ -16,18 +16,24 @@
 
 package com.google.android.media.tv.companionlibrary.model;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.SparseArray;
 
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils.InsertLogosTask;
 
@@ -41,6 +47,7 @@ import java.util.Map;
 public final class ModelUtils {
     private static final String TAG = "ModelUtils";
     private static final boolean DEBUG = false;
+    private static final int BATCH_OPERATION_COUNT = 100;
 
     /**
      * Called when {@link #updateChannels(Context, String, List, OnChannelDeletedCallback)} deletes
@@ -53,30 +60,35 @@ public final class ModelUtils {
     /**
      * Updates the list of available channels.
      *
+     * <p>Insertions, updates and deletions are applied in batches. Channels whose values didn't
+     * change aren't written again.
+     *
      * @param context The application's context.
      * @param inputId The ID of the TV input service that provides this TV channel.
      * @param channels The updated list of channels.
+     * @return LongSparseArray mapping each channel's {@link Channels#_ID} to the Channel object,
+     *     as {@link #buildChannelMap(ContentResolver, String)} would return it, or null if the
+     *     channels couldn't all be written.
      * @hide
      */
-    public static void updateChannels(
+    public static LongSparseArray<Channel> updateChannels(
             Context context,
             String inputId,
             List<Channel> channels,
             OnChannelDeletedCallback onChannelDeletedCallback) {
-        // Create a map from original network ID to channel row ID for existing channels.
-        LongSparseArray<Long> channelMap = new LongSparseArray<>();
+        // Create a map from original network ID to the existing channels.
+        LongSparseArray<Channel> storedChannels = new LongSparseArray<>();
         Uri channelsUri = TvContract.buildChannelsUriForInput(inputId);
-        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = null;
         int updateCount = 0;
         int addCount = 0;
+        int unchangedCount = 0;
         try {
-            cursor = resolver.query(channelsUri, projection, null, null, null);
+            cursor = resolver.query(channelsUri, Channel.PROJECTION, null, null, null);
             while (cursor != null && cursor.moveToNext()) {
-                long rowId = cursor.getLong(0);
-                long originalNetworkId = cursor.getLong(1);
-                channelMap.put(originalNetworkId, rowId);
+                Channel storedChannel = Channel.fromCursor(cursor);
+                storedChannels.put(storedChannel.getOriginalNetworkId(), storedChannel);
             }
         } finally {
             if (cursor != null) {
@@ -84,62 +96,102 @@ public final class ModelUtils {
             }
         }
 
-        // If a channel exists, update it. If not, insert a new one.
+        // If a channel exists, update it if it changed. If not, insert a new one.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        LongSparseArray<Channel> channelMap = new LongSparseArray<>(channels.size());
+        // Channels waiting for their row id, by index of their insertion in ops.
+        SparseArray<Channel> insertedChannels = new SparseArray<>();
         Map<Uri, String> logos = new HashMap<>();
         for (Channel channel : channels) {
-            ContentValues values = new ContentValues();
-            values.put(Channels.COLUMN_INPUT_ID, inputId);
-            values.putAll(channel.toContentValues());
             // If some required fields are not populated, the app may crash, so defaults are used
+            Channel.Builder builder = new Channel.Builder(channel);
             if (channel.getPackageName() == null) {
                 // If channel does not include package name, it will be added
-                values.put(Channels.COLUMN_PACKAGE_NAME, context.getPackageName());
+                builder.setPackageName(context.getPackageName());
             }
             if (channel.getInputId() == null) {
                 // If channel does not include input id, it will be added
-                values.put(Channels.COLUMN_INPUT_ID, inputId);
+                builder.setInputId(inputId);
             }
             if (channel.getType() == null) {
                 // If channel does not include type it will be added
-                values.put(Channels.COLUMN_TYPE, Channels.TYPE_OTHER);
+                builder.setType(Channels.TYPE_OTHER);
             }
+            Channel newChannel = builder.build();
+            ContentValues values = newChannel.toContentValues();
 
-            Long rowId = channelMap.get(channel.getOriginalNetworkId());
-            Uri uri;
-            if (rowId == null) {
-                uri = resolver.insert(Channels.CONTENT_URI, values);
-                addCount++;
+            Channel storedChannel = storedChannels.get(channel.getOriginalNetworkId());
+            if (storedChannel == null) {
                 if (DEBUG) {
-                    Log.d(TAG, "Adding channel " + channel.getDisplayName() + " at " + uri);
+                    Log.d(TAG, "Adding channel " + channel.getDisplayName());
                 }
+                insertedChannels.put(ops.size(), newChannel);
+                ops.add(
+                        ContentProviderOperation.newInsert(Channels.CONTENT_URI)
+                                .withValues(values)
+                                .build());
+                addCount++;
             } else {
+                long rowId = storedChannel.getId();
+                Uri uri = TvContract.buildChannelUri(rowId);
                 values.put(Channels._ID, rowId);
-                uri = TvContract.buildChannelUri(rowId);
-                if (DEBUG) {
-                    Log.d(TAG, "Updating channel " + channel.getDisplayName() + " at " + uri);
+                if (containsValues(storedChannel.toContentValues(), values)) {
+                    unchangedCount++;
+                } else {
+                    if (DEBUG) {
+                        Log.d(TAG, "Updating channel " + channel.getDisplayName() + " at " + uri);
+                    }
+                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                    updateCount++;
+                }
+                channelMap.put(rowId, builder.setId(rowId).build());
+                storedChannels.remove(channel.getOriginalNetworkId());
+                if (!TextUtils.isEmpty(channel.getChannelLogo())) {
+                    logos.put(TvContract.buildChannelLogoUri(uri), channel.getChannelLogo());
                 }
-                resolver.update(uri, values, null, null);
-                updateCount++;
-                channelMap.remove(channel.getOriginalNetworkId());
-            }
-            if (channel.getChannelLogo() != null && !TextUtils.isEmpty(channel.getChannelLogo())) {
-                logos.put(TvContract.buildChannelLogoUri(uri), channel.getChannelLogo());
             }
         }
-        if (!logos.isEmpty()) {
-            new InsertLogosTask(context).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
-        }
 
         // Deletes channels which don't exist in the new feed.
-        int size = channelMap.size();
+        int size = storedChannels.size();
         for (int i = 0; i < size; ++i) {
-            Long rowId = channelMap.valueAt(i);
+            long rowId = storedChannels.valueAt(i).getId();
             if (DEBUG) {
                 Log.d(TAG, "Deleting channel " + rowId);
             }
-            resolver.delete(TvContract.buildChannelUri(rowId), null, null);
-            if (onChannelDeletedCallback != null) {
-                onChannelDeletedCallback.onChannelDeleted(rowId);
+            ops.add(ContentProviderOperation.newDelete(TvContract.buildChannelUri(rowId)).build());
+        }
+
+        ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+        try {
+            // Throttle the batch operation not to cause TransactionTooLargeException.
+            for (int start = 0; start < ops.size(); start += BATCH_OPERATION_COUNT) {
+                int end = Math.min(ops.size(), start + BATCH_OPERATION_COUNT);
+                ContentProviderResult[] batchResults =
+                        resolver.applyBatch(
+                                TvContract.AUTHORITY, new ArrayList<>(ops.subList(start, end)));
+                System.arraycopy(batchResults, 0, results, start, batchResults.length);
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to update channels.", e);
+            return null;
+        }
+
+        for (int i = 0; i < insertedChannels.size(); i++) {
+            Uri uri = results[insertedChannels.keyAt(i)].uri;
+            long rowId = ContentUris.parseId(uri);
+            Channel channel = insertedChannels.valueAt(i);
+            channelMap.put(rowId, new Channel.Builder(channel).setId(rowId).build());
+            if (!TextUtils.isEmpty(channel.getChannelLogo())) {
+                logos.put(TvContract.buildChannelLogoUri(uri), channel.getChannelLogo());
+            }
+        }
+        if (!logos.isEmpty()) {
+            new InsertLogosTask(context).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
+        }
+        if (onChannelDeletedCallback != null) {
+            for (int i = 0; i < size; ++i) {
+                onChannelDeletedCallback.onChannelDeleted(storedChannels.valueAt(i).getId());
             }
         }
         Log.i(
@@ -152,7 +204,31 @@ public final class ModelUtils {
                         + " updated "
                         + updateCount
                         + " added "
-                        + addCount);
+                        + addCount
+                        + " unchanged "
+                        + unchangedCount);
+        return channelMap;
+    }
+
+    /**
+     * Returns {@code true} if the {@code stored} values contain each of the given {@code values}.
+     */
+    private static boolean containsValues(ContentValues stored, ContentValues values) {
+        for (String key : values.keySet()) {
+            if (!stored.containsKey(key)) {
+                return false;
+            }
+            Object storedValue = stored.get(key);
+            Object value = values.get(key);
+            if (storedValue instanceof byte[] && value instanceof byte[]) {
+                if (!Arrays.equals((byte[]) storedValue, (byte[]) value)) {
+                    return false;
+                }
+            } else if (storedValue == null ? value != null : !storedValue.equals(value)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -282,6 +358,112 @@ public final class ModelUtils {
         return programs;
     }
 
+    /**
+     * Returns the programs of several channels in a single query. Only the programs ending at or
+     * after the given time are returned and only the columns of {@link Program#DIFF_PROJECTION}
+     * are read.
+     *
+     * @param resolver Application's ContentResolver.
+     * @param channelIds The ids of the channels.
+     * @param fromMs The time before which the programs that ended are ignored.
+     * @return A map from each channel id to its programs sorted by start time, channels without
+     *     programs having none, or null if the query failed.
+     * @hide
+     */
+    public static LongSparseArray<Program[]> getPrograms(
+            ContentResolver resolver, long[] channelIds, long fromMs) {
+        return getPrograms(resolver, channelIds, fromMs, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Returns the programs of several channels airing within a time window in a single query.
+     * All the columns of {@link Program#PROJECTION} are read.
+     *
+     * @param resolver Application's ContentResolver.
+     * @param channelIds The ids of the channels.
+     * @param fromMs The time before which the programs that ended are ignored.
+     * @param toMs The time from which the programs that start are ignored.
+     * @return A map from each channel id to its programs sorted by start time, channels without
+     *     programs having none, or null if the query failed.
+     * @hide
+     */
+    public static LongSparseArray<Program[]> getPrograms(
+            ContentResolver resolver, long[] channelIds, long fromMs, long toMs) {
+        return getPrograms(resolver, channelIds, fromMs, toMs, false);
+    }
+
+    private static LongSparseArray<Program[]> getPrograms(
+            ContentResolver resolver,
+            long[] channelIds,
+            long fromMs,
+            long toMs,
+            boolean diffProjection) {
+        LongSparseArray<Program[]> programMap = new LongSparseArray<>(channelIds.length);
+        if (channelIds.length == 0) {
+            return programMap;
+        }
+        StringBuilder selection =
+                new StringBuilder(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS).append(" >= ?");
+        if (toMs != Long.MAX_VALUE) {
+            selection.append(" AND ")
+                    .append(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS)
+                    .append(" < ")
+                    .append(toMs);
+        }
+        selection.append(" AND ").append(TvContract.Programs.COLUMN_CHANNEL_ID).append(" IN (");
+        for (int i = 0; i < channelIds.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(channelIds[i]);
+        }
+        selection.append(')');
+        String sortOrder =
+                TvContract.Programs.COLUMN_CHANNEL_ID
+                        + ", "
+                        + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS;
+        Cursor cursor = null;
+        try {
+            cursor =
+                    resolver.query(
+                            TvContract.Programs.CONTENT_URI,
+                            diffProjection ? Program.DIFF_PROJECTION : Program.PROJECTION,
+                            selection.toString(),
+                            new String[] {String.valueOf(fromMs)},
+                            sortOrder);
+            if (cursor == null) {
+                return null;
+            }
+            // Rows are grouped by channel, so each channel is gathered before moving to the next.
+            List<Program> channelPrograms = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                Program program =
+                        diffProjection
+                                ? Program.fromDiffCursor(cursor)
+                                : Program.fromCursor(cursor);
+                if (!channelPrograms.isEmpty()
+                        && channelPrograms.get(0).getChannelId() != program.getChannelId()) {
+                    putPrograms(programMap, channelPrograms);
+                }
+                channelPrograms.add(program);
+            }
+            putPrograms(programMap, channelPrograms);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to get programs for " + channelIds.length + " channels", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return programMap;
+    }
+
+    private static void putPrograms(LongSparseArray<Program[]> programMap, List<Program> programs) {
+        if (!programs.isEmpty()) {
+            programMap.put(
+                    programs.get(0).getChannelId(), programs.toArray(new Program[programs.size()]));
+            programs.clear();
+        }
+    }
+
     /**
      * Returns the program that is scheduled to be playing now on a given channel.
      *
@@ -35,6 +35,14 @@ public final class Program implements Comparable<Program> {
     /** @hide */
     public static final String[] PROJECTION = getProjection();
 
+    /**
+     * The columns compared by {@link #equals(Object)}, along with the id of the program. Use
+     * {@link #fromDiffCursor(Cursor)} to read a row of this projection.
+     *
+     * @hide
+     */
+    public static final String[] DIFF_PROJECTION = getDiffProjection();
+
     private static final long INVALID_LONG_VALUE = -1;
     private static final int INVALID_INT_VALUE = -1;
     private static final int IS_RECORDING_PROHIBITED = 1;
@@ -559,6 +567,107 @@ public final class Program implements Comparable<Program> {
         return builder.build();
     }
 
+    /**
+     * Creates a Program object from a cursor including the fields of {@link #DIFF_PROJECTION}. The
+     * other fields are left unset, so the program can only be compared with another one.
+     *
+     * @param cursor A row from the TV Input Framework database.
+     * @return A Program with the values taken from the cursor.
+     * @hide
+     */
+    public static Program fromDiffCursor(Cursor cursor) {
+        Builder builder = new Builder();
+        int index = 0;
+        if (!cursor.isNull(index)) {
+            builder.setId(cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setChannelId(cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setTitle(cursor.getString(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setEpisodeTitle(cursor.getString(index));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            if (!cursor.isNull(++index)) {
+                builder.setSeasonNumber(cursor.getString(index), INVALID_INT_VALUE);
+            }
+            if (!cursor.isNull(++index)) {
+                builder.setEpisodeNumber(cursor.getString(index), INVALID_INT_VALUE);
+            }
+        } else {
+            if (!cursor.isNull(++index)) {
+                builder.setSeasonNumber(cursor.getInt(index));
+            }
+            if (!cursor.isNull(++index)) {
+                builder.setEpisodeNumber(cursor.getInt(index));
+            }
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setDescription(cursor.getString(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setLongDescription(cursor.getString(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setPosterArtUri(cursor.getString(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setThumbnailUri(cursor.getString(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setCanonicalGenres(TvContract.Programs.Genres.decode(cursor.getString(index)));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setContentRatings(
+                    TvContractUtils.stringToContentRatings(cursor.getString(index)));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setStartTimeUtcMillis(cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setEndTimeUtcMillis(cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setVideoWidth((int) cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setVideoHeight((int) cursor.getLong(index));
+        }
+        if (!cursor.isNull(++index)) {
+            builder.setInternalProviderData(cursor.getBlob(index));
+        }
+        return builder.build();
+    }
+
+    private static String[] getDiffProjection() {
+        return new String[] {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_TITLE,
+            TvContract.Programs.COLUMN_EPISODE_TITLE,
+            (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+                    ? TvContract.Programs.COLUMN_SEASON_DISPLAY_NUMBER
+                    : TvContract.Programs.COLUMN_SEASON_NUMBER,
+            (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+                    ? TvContract.Programs.COLUMN_EPISODE_DISPLAY_NUMBER
+                    : TvContract.Programs.COLUMN_EPISODE_NUMBER,
+            TvContract.Programs.COLUMN_SHORT_DESCRIPTION,
+            TvContract.Programs.COLUMN_LONG_DESCRIPTION,
+            TvContract.Programs.COLUMN_POSTER_ART_URI,
+            TvContract.Programs.COLUMN_THUMBNAIL_URI,
+            TvContract.Programs.COLUMN_CANONICAL_GENRE,
+            TvContract.Programs.COLUMN_CONTENT_RATING,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_VIDEO_WIDTH,
+            TvContract.Programs.COLUMN_VIDEO_HEIGHT,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+        };
+    }
+
     private static String[] getProjection() {
         String[] baseColumns =
                 new String[] {
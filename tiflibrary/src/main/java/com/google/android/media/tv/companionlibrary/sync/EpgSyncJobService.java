@@ -23,10 +23,12 @@ import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.media.tv.TvContract;
 import android.media.tv.TvInputInfo;
 import android.net.Uri;
@@ -34,6 +36,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
@@ -48,10 +51,17 @@ import com.google.android.media.tv.companionlibrary.model.ModelUtils.OnChannelDe
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.utils.Constants;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Service to handle callbacks from JobScheduler. This service will be called by the system to
@@ -103,6 +113,12 @@ public abstract class EpgSyncJobService extends JobService {
     /** The key representing the error that occurred during an EPG sync */
     public static final String BUNDLE_KEY_ERROR_REASON =
             EpgSyncJobService.class.getPackage().getName() + ".bundle_key_error_reason";
+    /**
+     * The key representing the {@link SyncMetrics} of a finished sync, read through {@link
+     * SyncMetrics#fromBundle(android.os.Bundle)}.
+     */
+    public static final String BUNDLE_KEY_SYNC_METRICS =
+            EpgSyncJobService.class.getPackage().getName() + ".bundle_key_sync_metrics";
 
     /**
      * The name for the {@link android.content.SharedPreferences} file used for storing syncing
@@ -151,15 +167,23 @@ public abstract class EpgSyncJobService extends JobService {
 
     private static final int PERIODIC_SYNC_JOB_ID = 0;
     private static final int REQUEST_SYNC_JOB_ID = 1;
-    private static final int BATCH_OPERATION_COUNT = 100;
+    private static final int CHANNEL_SYNC_JOB_ID = 2;
+    private static final int PROGRAM_QUERY_CHANNEL_COUNT = 250;
+    private static final int CHECKPOINT_APPLY_INTERVAL = 50;
     private static final long OVERRIDE_DEADLINE_MILLIS = 1000; // 1 second
     private static final String BUNDLE_KEY_SYNC_PERIOD = "bundle_key_sync_period";
+    private static final String BUNDLE_KEY_CHANNEL_ID = "bundle_key_channel_id";
+    private static final String PREFERENCE_KEY_SCHEDULE_FINGERPRINT = "schedule_fingerprint_";
 
     private static final ExecutorService SINGLE_THREAD_EXECUTOR =
         Executors.newSingleThreadExecutor();
+    // Channel syncs have their own thread so they don't wait for a full sync to finish.
+    private static final ExecutorService CHANNEL_SYNC_EXECUTOR =
+        Executors.newSingleThreadExecutor();
 
     private final SparseArray<EpgSyncTask> mTaskArray = new SparseArray<>();
     private static final Object mContextLock = new Object();
+    private static volatile SyncMetrics.Listener mSyncMetricsListener;
     private Context mContext;
 
     /**
@@ -183,6 +207,40 @@ public abstract class EpgSyncJobService extends JobService {
     public abstract List<Program> getProgramsForChannel(
             Uri channelUri, Channel channel, long startMs, long endMs) throws EpgSyncException;
 
+    /**
+     * Returns the channels that your app contains for the given job. Channel syncs, see {@link
+     * #getSyncChannelId(JobParameters)}, use the stored channels instead and don't call it.
+     *
+     * <p>Override it instead of {@link #getChannels()} if several jobs may run at once with their
+     * own data. Calls {@link #getChannels()} by default.
+     *
+     * @param params The parameters of the job.
+     * @return The list of channels for your app.
+     */
+    public List<Channel> getChannels(JobParameters params) throws EpgSyncException {
+        return getChannels();
+    }
+
+    /**
+     * Returns the programs that will appear for each channel during the given job.
+     *
+     * <p>Override it instead of {@link #getProgramsForChannel(Uri, Channel, long, long)} if
+     * several jobs may run at once with their own data. Calls it by default.
+     *
+     * @param params The parameters of the job.
+     * @param channelUri The Uri corresponding to the channel.
+     * @param channel The channel your programs will appear on.
+     * @param startMs The starting time in milliseconds since the epoch to generate programs.
+     * @param endMs The ending time in milliseconds since the epoch to generate programs.
+     * @return A list of programs for a given channel.
+     * @see #getProgramsForChannel(Uri, Channel, long, long)
+     */
+    public List<Program> getProgramsForChannel(
+            JobParameters params, Uri channelUri, Channel channel, long startMs, long endMs)
+            throws EpgSyncException {
+        return getProgramsForChannel(channelUri, channel, startMs, endMs);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -205,16 +263,45 @@ public abstract class EpgSyncJobService extends JobService {
         Intent intent = createSyncStartedIntent(params.getExtras().getString(BUNDLE_KEY_INPUT_ID));
         LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
 
+        startSyncTask(params);
+        return true;
+    }
+
+    /**
+     * Starts writing the channels and programs of a job. Subclasses which override {@link
+     * #onStartJob(JobParameters)} to prepare their data first call it once the data is ready.
+     *
+     * @param params The parameters of the job.
+     */
+    protected void startSyncTask(JobParameters params) {
         EpgSyncTask epgSyncTask = new EpgSyncTask(params);
         synchronized (mTaskArray) {
             mTaskArray.put(params.getJobId(), epgSyncTask);
         }
         // Run the task on a single threaded custom executor in order not to block the AsyncTasks
         // running on application side.
-        epgSyncTask.executeOnExecutor(SINGLE_THREAD_EXECUTOR);
-        return true;
+        epgSyncTask.executeOnExecutor(
+                getSyncChannelId(params) != -1 ? CHANNEL_SYNC_EXECUTOR : SINGLE_THREAD_EXECUTOR);
     }
 
+    /**
+     * Called on the main thread once the task of a job is done, whether the sync succeeded or
+     * not. Subclasses can release the data they kept for the job.
+     *
+     * @param params The parameters of the job.
+     */
+    protected void onSyncFinished(JobParameters params) {}
+
+    /**
+     * Called on the thread of the sync when the task of a job starts. Subclasses can add to the
+     * metrics of the run what was done for the job beforehand, see {@link
+     * SyncMetrics#setFeedTimings(int, long, long, long)}.
+     *
+     * @param params The parameters of the job.
+     * @param metrics The metrics of the run.
+     */
+    protected void onSyncStarted(JobParameters params, SyncMetrics metrics) {}
+
     @Override
     public boolean onStopJob(JobParameters params) {
         synchronized (mTaskArray) {
@@ -228,10 +315,48 @@ public abstract class EpgSyncJobService extends JobService {
         return false;
     }
 
+    /**
+     * Returns the duration of EPG content that a job should fetch.
+     *
+     * @param params The parameters of the job.
+     * @return The duration in milliseconds, starting from the time the job runs.
+     */
+    public static long getSyncDurationMillis(JobParameters params) {
+        return params.getExtras()
+                .getLong(BUNDLE_KEY_SYNC_PERIOD, DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS);
+    }
+
+    /**
+     * Returns the channel synced by a job requested through {@link #requestChannelSync(Context,
+     * String, long, ComponentName)}.
+     *
+     * @param params The parameters of the job.
+     * @return The row id of the channel, or -1 if the job syncs every channel.
+     */
+    public static long getSyncChannelId(JobParameters params) {
+        return params.getExtras().getLong(BUNDLE_KEY_CHANNEL_ID, -1);
+    }
+
+    /**
+     * Returns the number of channels whose programs are fetched and compared with the stored ones
+     * at the same time. The programs are still written by a single thread, one channel after the
+     * other, and the sync broadcasts are sent in the same order.
+     *
+     * <p>If more than 1, {@link #getProgramsForChannel(Uri, Channel, long, long)} and {@link
+     * #shouldUpdateProgramMetadata(Program, Program)} are called from several threads at once.
+     *
+     * @return The number of worker threads, 1 by default.
+     */
+    public int getProgramWorkerCount() {
+        return 1;
+    }
+
     /**
      * Returns {@code true} if the {@code oldProgram} program is the same as the {@code newProgram}
      * program but should update metadata. This updates the database instead of deleting and
      * inserting a new program to keep the user's intent, eg. recording this program.
+     *
+     * <p>The {@code oldProgram} only contains the columns of {@link Program#DIFF_PROJECTION}.
      */
     public boolean shouldUpdateProgramMetadata(Program oldProgram, Program newProgram) {
         // NOTE: Here, we update the old program if it has the same title and overlaps with the
@@ -370,6 +495,75 @@ public abstract class EpgSyncJobService extends JobService {
         }
     }
 
+    /**
+     * Manually requests a job to run now which only syncs the programs of the given channel, eg.
+     * when the user tunes to a channel without any program airing. The sync broadcasts are sent
+     * as for any other sync.
+     *
+     * @param context Application's context.
+     * @param inputId Component name for the app's TvInputService. This can be received through an
+     *     Intent extra parameter {@link TvInputInfo#EXTRA_INPUT_ID}.
+     * @param channelId The row id of the channel to sync.
+     * @param jobServiceComponent The {@link EpgSyncJobService} class that will run.
+     */
+    public static void requestChannelSync(
+            Context context, String inputId, long channelId, ComponentName jobServiceComponent) {
+        PersistableBundle persistableBundle = new PersistableBundle();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            persistableBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            persistableBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        }
+        persistableBundle.putString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, inputId);
+        // A single channel is cheap to sync, so fetch as much as a periodic sync would.
+        persistableBundle.putLong(
+                EpgSyncJobService.BUNDLE_KEY_SYNC_PERIOD, DEFAULT_PERIODIC_EPG_DURATION_MILLIS);
+        persistableBundle.putLong(EpgSyncJobService.BUNDLE_KEY_CHANNEL_ID, channelId);
+        // A separate job id doesn't stop a full sync already running.
+        JobInfo.Builder builder = new JobInfo.Builder(CHANNEL_SYNC_JOB_ID, jobServiceComponent);
+        JobInfo jobInfo =
+                builder.setExtras(persistableBundle)
+                        .setOverrideDeadline(EpgSyncJobService.OVERRIDE_DEADLINE_MILLIS)
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .build();
+        scheduleJob(context, jobInfo);
+        if (DEBUG) {
+            Log.d(TAG, "Channel " + channelId + " sync scheduled");
+        }
+    }
+
+    /**
+     * Marks a channel as tuned by the user. The most recently tuned channels are synced before
+     * the others.
+     *
+     * @param context Application's context.
+     * @param channelId The row id of the channel tuned.
+     */
+    public static void addPriorityChannel(Context context, long channelId) {
+        PriorityChannels.add(
+                context.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE),
+                channelId);
+    }
+
+    /**
+     * Sets the listener receiving the {@link SyncMetrics} of each sync run in this process.
+     *
+     * @param listener The listener, or {@code null} to remove it.
+     */
+    public static void setSyncMetricsListener(SyncMetrics.Listener listener) {
+        mSyncMetricsListener = listener;
+    }
+
+    /**
+     * Returns the metrics of the last sync runs, up to {@link SyncMetrics#MAX_HISTORY_COUNT}.
+     *
+     * @param context Application's context.
+     * @return The metrics of the runs, the most recent first.
+     */
+    public static List<SyncMetrics> getSyncMetricsHistory(Context context) {
+        return SyncMetrics.readHistory(
+                context.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE));
+    }
+
     /**
      * Cancels all pending jobs.
      *
@@ -385,6 +579,13 @@ public abstract class EpgSyncJobService extends JobService {
     public class EpgSyncTask extends AsyncTask<Void, Void, Void> {
         private final JobParameters params;
         private String mInputId;
+        private final Object mStoredProgramsLock = new Object();
+        // The stored programs of the chunks of channels queried, by chunk index.
+        private final SparseArray<LongSparseArray<Program[]>> mStoredProgramChunks =
+                new SparseArray<>();
+        private OperationBatcher mBatcher;
+        private SyncMetrics mMetrics;
+        private boolean mCompleted;
 
         public EpgSyncTask(JobParameters params) {
             this.params = params;
@@ -394,6 +595,10 @@ public abstract class EpgSyncJobService extends JobService {
         public Void doInBackground(Void... voids) {
             PersistableBundle extras = params.getExtras();
             mInputId = extras.getString(BUNDLE_KEY_INPUT_ID);
+            long channelId = getSyncChannelId(params);
+            boolean fullSync = channelId == -1;
+            mMetrics = new SyncMetrics(mInputId, fullSync);
+            onSyncStarted(params, mMetrics);
             if (mInputId == null) {
                 broadcastError(ERROR_INPUT_ID_NULL);
                 return null;
@@ -404,14 +609,123 @@ public abstract class EpgSyncJobService extends JobService {
                 return null;
             }
 
+            LongSparseArray<Channel> channelMap =
+                    fullSync ? updateChannels() : readChannels();
+            if (channelMap == null) {
+                return null;
+            }
+            mMetrics.setChannelCount(channelMap.size());
+            SharedPreferences syncPreferences =
+                    mContext.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE);
+            // Default to one hour sync
+            long durationMs = getSyncDurationMillis(params);
+            long startMs = System.currentTimeMillis();
+            long endMs = startMs + durationMs;
+            int[] priorityIndexes;
+            int firstChannelIndex = 0;
+            if (fullSync) {
+                priorityIndexes =
+                        PriorityChannels.getIndexes(
+                                channelMap, PriorityChannels.read(syncPreferences));
+            } else {
+                // Only the given channel is synced, the progress of full syncs is left as is.
+                priorityIndexes = PriorityChannels.getIndexes(channelMap, new long[] {channelId});
+                firstChannelIndex = channelMap.size();
+            }
+            SyncCheckpoint checkpoint =
+                    fullSync ? SyncCheckpoint.read(syncPreferences, mInputId) : null;
+            if (checkpoint != null && checkpoint.canResume(startMs, durationMs)) {
+                // Resume the interrupted sync with its window.
+                startMs = checkpoint.getStartMs();
+                endMs = checkpoint.getEndMs();
+                firstChannelIndex = checkpoint.getNextChannelIndex(channelMap);
+                Log.i(
+                        TAG,
+                        mInputId
+                                + " resuming sync after channel "
+                                + checkpoint.getChannelId()
+                                + " ("
+                                + (checkpoint.getChannelIndex() + 1)
+                                + " channels done)");
+            }
+            int[] channelOrder =
+                    PriorityChannels.getChannelOrder(
+                            channelMap.size(), priorityIndexes, firstChannelIndex);
+            ChangeCount runningChangeCount = new ChangeCount();
+            mBatcher = new OperationBatcher(mContext.getContentResolver(), TvContract.AUTHORITY);
+            SharedPreferences.Editor syncEditor = syncPreferences.edit();
+            try {
+                if (!syncChannels(
+                        channelMap,
+                        channelOrder,
+                        priorityIndexes.length,
+                        startMs,
+                        endMs,
+                        syncPreferences,
+                        syncEditor,
+                        runningChangeCount)) {
+                    return null;
+                }
+                if (fullSync) {
+                    SyncCheckpoint.clear(syncEditor);
+                }
+            } finally {
+                // Keep the fingerprints and the checkpoint of the channels synced so far, even if
+                // the sync stopped.
+                syncEditor.apply();
+                mMetrics.setProgramCounts(
+                        runningChangeCount.total,
+                        runningChangeCount.addCount,
+                        runningChangeCount.updateCount,
+                        runningChangeCount.deleteCount,
+                        runningChangeCount.unchangedChannelCount);
+            }
+            mCompleted = true;
+            Log.i(
+                    TAG,
+                    mInputId
+                            + " synced "
+                            + runningChangeCount.total
+                            + " programs. Deleted "
+                            + runningChangeCount.deleteCount
+                            + " updated "
+                            + runningChangeCount.updateCount
+                            + " added "
+                            + runningChangeCount.addCount
+                            + ". Skipped "
+                            + runningChangeCount.unchangedChannelCount
+                            + " unchanged channels. Wrote "
+                            + mBatcher.getAppliedOperationCount()
+                            + " operations in "
+                            + mBatcher.getAppliedBatchCount()
+                            + " batches ("
+                            + mBatcher.getBytesPerBatch()
+                            + " bytes/batch, "
+                            + Math.round(mBatcher.getOperationsPerSecond())
+                            + " ops/s, "
+                            + mBatcher.getSplitCount()
+                            + " splits)");
+            return null;
+        }
+
+        /**
+         * Writes the channels given by {@link #getChannels(JobParameters)} for a full sync.
+         *
+         * @return The stored channels by row id, or {@code null} if the sync has to stop.
+         */
+        private LongSparseArray<Channel> updateChannels() {
             List<Channel> tvChannels;
+            long stageStartNanos = SystemClock.elapsedRealtimeNanos();
             try {
-                tvChannels = getChannels();
+                tvChannels = getChannels(params);
             } catch (EpgSyncException e) {
                 broadcastError(e.getReason());
                 return null;
+            } finally {
+                mMetrics.addStage(SyncMetrics.STAGE_GET_CHANNELS, stageStartNanos);
             }
-            ModelUtils.updateChannels(
+            stageStartNanos = SystemClock.elapsedRealtimeNanos();
+            LongSparseArray<Channel> channelMap = ModelUtils.updateChannels(
                     mContext,
                     mInputId,
                     tvChannels,
@@ -426,79 +740,321 @@ public abstract class EpgSyncJobService extends JobService {
                             editor.remove(
                                     Constants.SHARED_PREFERENCES_KEY_LAST_CHANNEL_AD_PLAY + rowId);
                             editor.apply();
+                            mContext.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE)
+                                    .edit()
+                                    .remove(PREFERENCE_KEY_SCHEDULE_FINGERPRINT + rowId)
+                                    .apply();
                         }
                     });
+            mMetrics.addStage(SyncMetrics.STAGE_UPDATE_CHANNELS, stageStartNanos);
+            if (channelMap == null || channelMap.size() == 0) {
+                // Either no channel or not all of them were written, read what is stored.
+                return readChannels();
+            }
+            return channelMap;
+        }
+
+        /**
+         * Reads the stored channels. Channel syncs only update the programs of a channel already
+         * written by a full sync, so they don't get the channels of the app again.
+         *
+         * @return The stored channels by row id, or {@code null} if the sync has to stop.
+         */
+        private LongSparseArray<Channel> readChannels() {
+            long stageStartNanos = SystemClock.elapsedRealtimeNanos();
             LongSparseArray<Channel> channelMap =
                     ModelUtils.buildChannelMap(mContext.getContentResolver(), mInputId);
+            mMetrics.addStage(SyncMetrics.STAGE_BUILD_CHANNEL_MAP, stageStartNanos);
             if (channelMap == null) {
                 broadcastError(ERROR_NO_CHANNELS);
-                return null;
             }
-            // Default to one hour sync
-            long durationMs =
-                    extras.getLong(BUNDLE_KEY_SYNC_PERIOD, DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS);
-            long startMs = System.currentTimeMillis();
-            long endMs = startMs + durationMs;
-            ChangeCount runningChangeCount = new ChangeCount();
-            for (int i = 0; i < channelMap.size(); ++i) {
-                Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(i));
-                if (isCancelled()) {
-                    broadcastError(ERROR_EPG_SYNC_CANCELED);
-                    return null;
-                }
-                List<Program> programs;
-                try {
-                    programs =
-                            getProgramsForChannel(
-                                    channelUri, channelMap.valueAt(i), startMs, endMs);
-                } catch (EpgSyncException e) {
-                    broadcastError(e.getReason());
-                    return null;
-                }
-                if (programs != null) {
-                    if (DEBUG) {
-                        Log.d(TAG, programs.toString());
+            return channelMap;
+        }
+
+        /**
+         * Updates the programs of the channels in the given order. The programs of a channel are
+         * only compared with the stored ones if its schedule changed since the last time it was
+         * successfully written. A checkpoint is saved after each channel following the priority
+         * ones, which aren't synced by row id.
+         *
+         * <p>If several workers are used, the next channels are prepared by the workers while
+         * this thread writes the programs of each channel in order.
+         *
+         * @return {@code false} if the sync had to stop before all the channels were handled.
+         */
+        private boolean syncChannels(
+                final LongSparseArray<Channel> channelMap,
+                final int[] channelOrder,
+                int priorityChannelCount,
+                final long startMs,
+                final long endMs,
+                final SharedPreferences syncPreferences,
+                SharedPreferences.Editor syncEditor,
+                ChangeCount runningChangeCount) {
+            int workerCount = Math.max(1, getProgramWorkerCount());
+            ExecutorService workers =
+                    workerCount > 1 ? Executors.newFixedThreadPool(workerCount) : null;
+            // Channels being prepared by the workers, bounded to keep the memory used in check.
+            Queue<Future<ChannelUpdate>> pendingUpdates = new ArrayDeque<>();
+            // The channels left out of the order were synced before or aren't part of this sync.
+            int skippedChannelCount = channelMap.size() - channelOrder.length;
+            int nextPosition = 0;
+            try {
+                for (int position = 0; position < channelOrder.length; ++position) {
+                    if (isCancelled()) {
+                        broadcastError(ERROR_EPG_SYNC_CANCELED);
+                        return false;
                     }
-                    for (int index = 0; index < programs.size(); index++) {
-                        if (programs.get(index).getChannelId() == -1) {
-                            // Automatically set the channel id if not set
-                            programs.set(
-                                    index,
-                                    new Program.Builder(programs.get(index))
-                                            .setChannelId(channelMap.valueAt(i).getId())
-                                            .build());
+                    int i = channelOrder[position];
+                    ChannelUpdate update;
+                    if (workers == null) {
+                        update =
+                                prepareChannel(
+                                        channelMap,
+                                        channelOrder,
+                                        position,
+                                        startMs,
+                                        endMs,
+                                        syncPreferences);
+                    } else {
+                        while (nextPosition < channelOrder.length
+                                && pendingUpdates.size() < workerCount * 2) {
+                            final int preparedPosition = nextPosition++;
+                            pendingUpdates.add(
+                                    workers.submit(
+                                            new Callable<ChannelUpdate>() {
+                                                @Override
+                                                public ChannelUpdate call()
+                                                        throws EpgSyncException {
+                                                    return prepareChannel(
+                                                            channelMap,
+                                                            channelOrder,
+                                                            preparedPosition,
+                                                            startMs,
+                                                            endMs,
+                                                            syncPreferences);
+                                                }
+                                            }));
                         }
+                        update = pendingUpdates.remove().get();
                     }
-
-                    // Double check if the job is cancelled, so that this task can be finished faster
-                    // after cancel() is called.
-                    if (isCancelled()) {
+                    // Double check if the job is cancelled, so that this task can be finished
+                    // faster after cancel() is called.
+                    if (update == null || isCancelled()) {
                         broadcastError(ERROR_EPG_SYNC_CANCELED);
-                        return null;
+                        return false;
+                    }
+                    writeChannel(update, syncEditor, runningChangeCount);
+                    mMetrics.addSyncedChannel();
+                    Intent intent =
+                            createSyncScannedIntent(
+                                    mInputId,
+                                    skippedChannelCount + position + 1,
+                                    channelMap.size(),
+                                    channelMap.valueAt(i).getDisplayName(),
+                                    channelMap.valueAt(i).getDisplayNumber());
+                    LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+                    if (position >= priorityChannelCount) {
+                        new SyncCheckpoint(mInputId, startMs, endMs, i, channelMap.keyAt(i))
+                                .write(syncEditor);
+                    }
+                    if ((position + 1) % CHECKPOINT_APPLY_INTERVAL == 0) {
+                        // Also persist the progress from time to time in case the process is
+                        // killed.
+                        syncEditor.apply();
                     }
-                    updatePrograms(channelUri, programs, runningChangeCount);
                 }
-                Intent intent =
-                        createSyncScannedIntent(
-                                mInputId,
-                                i + 1,
-                                channelMap.size(),
-                                channelMap.valueAt(i).getDisplayName(),
-                                channelMap.valueAt(i).getDisplayNumber());
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            } catch (EpgSyncException e) {
+                broadcastError(e.getReason());
+                return false;
+            } catch (InterruptedException e) {
+                broadcastError(ERROR_EPG_SYNC_CANCELED);
+                return false;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof EpgSyncException) {
+                    broadcastError(((EpgSyncException) e.getCause()).getReason());
+                    return false;
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                if (workers != null) {
+                    workers.shutdownNow();
+                }
             }
-            Log.i(
-                    TAG,
-                    mInputId
-                            + " synced "
-                            + runningChangeCount.total
-                            + " programs. Deleted "
-                            + runningChangeCount.deleteCount
-                            + " updated "
-                            + runningChangeCount.updateCount
-                            + " added "
-                            + runningChangeCount.addCount);
-            return null;
+            return true;
+        }
+
+        /**
+         * Gets the programs of the channel at the given position of the sync order and finds the
+         * changes needed to store them. Nothing is written to the database.
+         *
+         * @return The changes of the channel, or {@code null} if the sync was cancelled.
+         */
+        private ChannelUpdate prepareChannel(
+                LongSparseArray<Channel> channelMap,
+                int[] channelOrder,
+                int position,
+                long startMs,
+                long endMs,
+                SharedPreferences syncPreferences)
+                throws EpgSyncException {
+            if (isCancelled()) {
+                return null;
+            }
+            int index = channelOrder[position];
+            Channel channel = channelMap.valueAt(index);
+            Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(index));
+            ChannelUpdate update = new ChannelUpdate(channelMap.keyAt(index));
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            List<Program> programs;
+            try {
+                programs = getProgramsForChannel(params, channelUri, channel, startMs, endMs);
+            } finally {
+                mMetrics.addProgramsForChannel(startNanos);
+            }
+            if (programs == null) {
+                return update;
+            }
+            if (DEBUG) {
+                Log.d(TAG, programs.toString());
+            }
+            for (int i = 0; i < programs.size(); i++) {
+                if (programs.get(i).getChannelId() == -1) {
+                    // Automatically set the channel id if not set
+                    programs.set(
+                            i,
+                            new Program.Builder(programs.get(i))
+                                    .setChannelId(channel.getId())
+                                    .build());
+                }
+            }
+            update.programCount = programs.size();
+            update.fingerprint = ScheduleFingerprint.compute(programs);
+            if (programs.isEmpty()) {
+                return update;
+            }
+            if (update.fingerprint
+                    == syncPreferences.getLong(
+                            update.getFingerprintKey(), ScheduleFingerprint.NONE)) {
+                // Same schedule as the one already stored, nothing to compare.
+                update.unchanged = true;
+                return update;
+            }
+            if (isCancelled()) {
+                return null;
+            }
+            diffPrograms(
+                    getStoredPrograms(channelMap, channelOrder, position, startMs),
+                    programs,
+                    update);
+            return update;
+        }
+
+        /**
+         * Writes the changes of a channel and keeps the fingerprint of its schedule if all of
+         * them were written.
+         */
+        private void writeChannel(
+                ChannelUpdate update,
+                SharedPreferences.Editor syncEditor,
+                ChangeCount runningChangeCount) {
+            if (update.programCount < 0) {
+                return;
+            }
+            runningChangeCount.total += update.programCount;
+            if (update.unchanged) {
+                runningChangeCount.unchangedChannelCount++;
+                return;
+            }
+            if (update.programCount == 0) {
+                broadcastError(ERROR_NO_PROGRAMS);
+                syncEditor.remove(update.getFingerprintKey());
+                return;
+            }
+            try {
+                if (update.insertedValues != null) {
+                    mBatcher.bulkInsert(TvContract.Programs.CONTENT_URI, update.insertedValues);
+                } else {
+                    for (int i = 0; i < update.operations.size(); i++) {
+                        mBatcher.add(update.operations.get(i), update.operationValues.get(i));
+                    }
+                    mBatcher.flush();
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to insert programs.", e);
+                broadcastError(ERROR_DATABASE_INSERT);
+                // The stored programs may only be partially updated.
+                syncEditor.remove(update.getFingerprintKey());
+                return;
+            }
+            runningChangeCount.deleteCount += update.deleteCount;
+            runningChangeCount.updateCount += update.updateCount;
+            runningChangeCount.addCount += update.addCount;
+            syncEditor.putLong(update.getFingerprintKey(), update.fingerprint);
+        }
+
+        /**
+         * Returns the stored programs of the channel at the given position of the sync order. The
+         * programs are queried for the {@link #PROGRAM_QUERY_CHANNEL_COUNT} channels of its chunk
+         * of that order at once the first time one of them is needed.
+         *
+         * <p>The workers prepare the channels in order, so the previous chunk is kept for the ones
+         * still working on it while the others moved to the next one.
+         */
+        private List<Program> getStoredPrograms(
+                LongSparseArray<Channel> channelMap,
+                int[] channelOrder,
+                int position,
+                long startMs) {
+            long channelId = channelMap.keyAt(channelOrder[position]);
+            int chunk = position / PROGRAM_QUERY_CHANNEL_COUNT;
+            boolean queried;
+            Program[] programs;
+            synchronized (mStoredProgramsLock) {
+                if (mStoredProgramChunks.indexOfKey(chunk) < 0) {
+                    int startPosition = chunk * PROGRAM_QUERY_CHANNEL_COUNT;
+                    int endPosition =
+                            Math.min(
+                                    channelOrder.length,
+                                    startPosition + PROGRAM_QUERY_CHANNEL_COUNT);
+                    long[] channelIds = new long[endPosition - startPosition];
+                    for (int i = 0; i < channelIds.length; i++) {
+                        channelIds[i] = channelMap.keyAt(channelOrder[startPosition + i]);
+                    }
+                    long queryStartNanos = SystemClock.elapsedRealtimeNanos();
+                    mStoredProgramChunks.put(
+                            chunk,
+                            ModelUtils.getPrograms(
+                                    mContext.getContentResolver(), channelIds, startMs));
+                    mMetrics.addProgramQuery(queryStartNanos);
+                    // Only keep the neighbouring chunk along with the new one.
+                    while (mStoredProgramChunks.size() > 0
+                            && mStoredProgramChunks.keyAt(0) < chunk - 1) {
+                        mStoredProgramChunks.removeAt(0);
+                    }
+                }
+                LongSparseArray<Program[]> storedPrograms = mStoredProgramChunks.get(chunk);
+                queried = storedPrograms != null;
+                programs = queried ? storedPrograms.get(channelId) : null;
+                if (queried) {
+                    storedPrograms.remove(channelId);
+                }
+            }
+            if (!queried) {
+                long queryStartNanos = SystemClock.elapsedRealtimeNanos();
+                List<Program> storedPrograms =
+                        ModelUtils.getPrograms(
+                                mContext.getContentResolver(),
+                                TvContract.buildChannelUri(channelId));
+                mMetrics.addProgramQuery(queryStartNanos);
+                return storedPrograms;
+            }
+            return programs != null
+                    ? Arrays.asList(programs)
+                    : Collections.<Program>emptyList();
         }
 
         @Override
@@ -517,12 +1073,40 @@ public abstract class EpgSyncJobService extends JobService {
             }
             mTaskArray.delete(jobParams.getJobId());
             jobFinished(jobParams, false);
+            onSyncFinished(jobParams);
+            if (mMetrics != null) {
+                if (mBatcher != null) {
+                    mMetrics.setBatches(mBatcher);
+                }
+                mMetrics.finish(mCompleted, getAppVersionCode());
+                SyncMetrics.addToHistory(
+                        mContext.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE),
+                        mMetrics);
+                if (DEBUG) {
+                    Log.d(TAG, mMetrics.toString());
+                }
+            }
             if (DEBUG) {
                 Log.d(TAG, "Send out broadcast");
             }
             Intent intent =
-                    createSyncFinishedIntent(jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID));
+                    createSyncFinishedIntent(
+                            jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID), mMetrics);
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            SyncMetrics.Listener listener = mSyncMetricsListener;
+            if (listener != null && mMetrics != null) {
+                listener.onSyncMetrics(mMetrics);
+            }
+        }
+
+        private long getAppVersionCode() {
+            try {
+                return mContext.getPackageManager()
+                        .getPackageInfo(mContext.getPackageName(), 0)
+                        .versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                return 0;
+            }
         }
 
         private void broadcastError(int reason) {
@@ -634,26 +1218,20 @@ public abstract class EpgSyncJobService extends JobService {
         }
 
         /**
-         * Updates the system database, TvProvider, with the given programs.
+         * Finds the changes needed to update the system database, TvProvider, with the given
+         * programs.
          *
          * <p>If there is any overlap between the given and existing programs, the existing ones
          * will be updated with the given ones if they have the same title or replaced.
          *
-         * @param channelUri The channel where the program info will be added.
+         * @param oldPrograms The programs of the channel currently stored, sorted by start time.
          * @param newPrograms A list of {@link Program} instances which includes program
          *     information.
+         * @param update The changes of the channel, where the operations are added.
          */
-        private void updatePrograms(
-                Uri channelUri, List<Program> newPrograms, ChangeCount runningChangeCount) {
+        private void diffPrograms(
+                List<Program> oldPrograms, List<Program> newPrograms, ChannelUpdate update) {
             final int fetchedProgramsCount = newPrograms.size();
-            runningChangeCount.total += fetchedProgramsCount;
-
-            if (fetchedProgramsCount == 0) {
-                broadcastError(ERROR_NO_PROGRAMS);
-                return;
-            }
-            List<Program> oldPrograms =
-                    ModelUtils.getPrograms(mContext.getContentResolver(), channelUri);
             Program firstNewProgram = newPrograms.get(0);
             int oldProgramsIndex = 0;
             int newProgramsIndex = 0;
@@ -667,12 +1245,18 @@ public abstract class EpgSyncJobService extends JobService {
                     break;
                 }
             }
-            // Compare the new programs with old programs one by one and update/delete the old one
-            // or insert new program if there is no matching program in the database.
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-            if (isCancelled()) {
+            if (oldProgramsIndex == oldPrograms.size()) {
+                // Nothing stored from now on, e.g. on the first sync. Insert all the programs at
+                // once without comparing them.
+                update.insertedValues = new ArrayList<>(fetchedProgramsCount);
+                for (Program program : newPrograms) {
+                    update.insertedValues.add(program.toContentValues());
+                }
+                update.addCount = fetchedProgramsCount;
                 return;
             }
+            // Compare the new programs with old programs one by one and update/delete the old one
+            // or insert new program if there is no matching program in the database.
             while (newProgramsIndex < fetchedProgramsCount) {
                 Program oldProgram =
                         oldProgramsIndex < oldPrograms.size()
@@ -689,23 +1273,26 @@ public abstract class EpgSyncJobService extends JobService {
                         // Partial match. Update the old program with the new one.
                         // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
                         // could be application specific settings which belong to the old program.
-                        ops.add(
+                        ContentValues values = newProgram.toContentValues();
+                        update.add(
                                 ContentProviderOperation.newUpdate(
                                                 TvContract.buildProgramUri(oldProgram.getId()))
-                                        .withValues(newProgram.toContentValues())
-                                        .build());
-                        runningChangeCount.updateCount++;
+                                        .withValues(values)
+                                        .build(),
+                                values);
+                        update.updateCount++;
                         oldProgramsIndex++;
                         newProgramsIndex++;
                     } else if (oldProgram.getEndTimeUtcMillis()
                             < newProgram.getEndTimeUtcMillis()) {
                         // No match. Remove the old program first to see if the next program in
                         // {@code oldPrograms} partially matches the new program.
-                        ops.add(
+                        update.add(
                                 ContentProviderOperation.newDelete(
                                                 TvContract.buildProgramUri(oldProgram.getId()))
-                                        .build());
-                        runningChangeCount.deleteCount++;
+                                        .build(),
+                                null);
+                        update.deleteCount++;
                         oldProgramsIndex++;
                     } else {
                         // No match. The new program does not match any of the old programs. Insert
@@ -719,23 +1306,13 @@ public abstract class EpgSyncJobService extends JobService {
                     newProgramsIndex++;
                 }
                 if (addNewProgram) {
-                    ops.add(
+                    ContentValues values = newProgram.toContentValues();
+                    update.add(
                             ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI)
-                                    .withValues(newProgram.toContentValues())
-                                    .build());
-                    runningChangeCount.addCount++;
-                }
-                // Throttle the batch operation not to cause TransactionTooLargeException.
-                if (ops.size() > BATCH_OPERATION_COUNT
-                        || newProgramsIndex >= fetchedProgramsCount) {
-                    try {
-                        mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                    } catch (RemoteException | OperationApplicationException e) {
-                        Log.e(TAG, "Failed to insert programs.", e);
-                        broadcastError(ERROR_DATABASE_INSERT);
-                        return;
-                    }
-                    ops.clear();
+                                    .withValues(values)
+                                    .build(),
+                            values);
+                    update.addCount++;
                 }
             }
         }
@@ -768,9 +1345,17 @@ public abstract class EpgSyncJobService extends JobService {
 
     @VisibleForTesting
     public static Intent createSyncFinishedIntent(String inputId) {
+        return createSyncFinishedIntent(inputId, null);
+    }
+
+    @VisibleForTesting
+    public static Intent createSyncFinishedIntent(String inputId, SyncMetrics metrics) {
         Intent intent = new Intent(ACTION_SYNC_STATUS_CHANGED);
         intent.putExtra(BUNDLE_KEY_INPUT_ID, inputId);
         intent.putExtra(SYNC_STATUS, SYNC_FINISHED);
+        if (metrics != null) {
+            intent.putExtra(BUNDLE_KEY_SYNC_METRICS, metrics.toBundle());
+        }
         return intent;
     }
 
@@ -806,11 +1391,41 @@ public abstract class EpgSyncJobService extends JobService {
         }
     }
 
+    /** Programs of a channel and the operations needed to store them. */
+    private static class ChannelUpdate {
+        final long channelId;
+        /** The number of programs, or -1 if the channel doesn't provide any list. */
+        int programCount = -1;
+        long fingerprint = ScheduleFingerprint.NONE;
+        boolean unchanged;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final List<ContentValues> operationValues = new ArrayList<>();
+        /** The values of all the programs if they can simply be inserted, null otherwise. */
+        List<ContentValues> insertedValues;
+        long deleteCount = 0;
+        long updateCount = 0;
+        long addCount = 0;
+
+        ChannelUpdate(long channelId) {
+            this.channelId = channelId;
+        }
+
+        void add(ContentProviderOperation operation, ContentValues values) {
+            operations.add(operation);
+            operationValues.add(values);
+        }
+
+        String getFingerprintKey() {
+            return PREFERENCE_KEY_SCHEDULE_FINGERPRINT + channelId;
+        }
+    }
+
     /** Struct to hold change counts */
     private static class ChangeCount {
         long total = 0;
         long deleteCount = 0;
         long updateCount = 0;
         long addCount = 0;
+        long unchangedChannelCount = 0;
     }
 }
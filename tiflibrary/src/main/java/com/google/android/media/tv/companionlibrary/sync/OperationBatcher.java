@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups {@link ContentProviderOperation}s into batches applied through {@link
+ * ContentResolver#applyBatch(String, ArrayList)}.
+ *
+ * <p>A batch is applied once the estimated size of its operations reaches a byte budget, so small
+ * operations share a binder transaction while large ones don't exceed its limit. If a batch is
+ * still too large, it is split in halves and the budget is lowered. The budget then grows back
+ * slowly after each successful batch.
+ *
+ * <p>Rows that only need to be inserted can also be written through {@link
+ * ContentResolver#bulkInsert(Uri, ContentValues[])}, in chunks following the same budget.
+ */
+class OperationBatcher {
+    private static final String TAG = "OperationBatcher";
+
+    private static final int MIN_BUDGET_BYTES = 16 * 1024;
+    private static final int MAX_BUDGET_BYTES = 512 * 1024;
+    private static final int DEFAULT_BUDGET_BYTES = 256 * 1024;
+    private static final int BUDGET_INCREMENT_BYTES = 16 * 1024;
+    static final int MAX_OPERATION_COUNT = 500;
+
+    // Approximate size of an operation without its values: type, uri, flags and selection.
+    private static final int OPERATION_OVERHEAD_BYTES = 160;
+    // Size of a value's type tag.
+    private static final int TYPE_BYTES = 4;
+    // Size of a string's type tag, length and terminator.
+    private static final int STRING_OVERHEAD_BYTES = 12;
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    private final List<Integer> mOperationSizes = new ArrayList<>();
+    private int mBudgetBytes = DEFAULT_BUDGET_BYTES;
+    private int mPendingBytes;
+
+    private long mAppliedOperationCount;
+    private long mAppliedBytes;
+    private long mAppliedBatchCount;
+    private long mApplyNanos;
+    private int mSplitCount;
+
+    OperationBatcher(ContentResolver resolver, String authority) {
+        mResolver = resolver;
+        mAuthority = authority;
+    }
+
+    /**
+     * Adds an operation, applying the pending ones first if it would exceed the budget.
+     *
+     * @param operation The operation to apply.
+     * @param values The values written by the operation, or {@code null} if there are none.
+     */
+    void add(ContentProviderOperation operation, ContentValues values)
+            throws RemoteException, OperationApplicationException {
+        int size = estimateSize(values);
+        if (!mOperations.isEmpty()
+                && (mPendingBytes + size > mBudgetBytes
+                        || mOperations.size() >= MAX_OPERATION_COUNT)) {
+            flush();
+        }
+        mOperations.add(operation);
+        mOperationSizes.add(size);
+        mPendingBytes += size;
+    }
+
+    /** Applies the pending operations. */
+    void flush() throws RemoteException, OperationApplicationException {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        try {
+            apply(mOperations, mOperationSizes);
+        } finally {
+            // Whatever the outcome, the operations must not be applied a second time.
+            mOperations.clear();
+            mOperationSizes.clear();
+            mPendingBytes = 0;
+        }
+    }
+
+    /**
+     * Inserts the given rows in chunks, after applying the pending operations.
+     *
+     * @param uri The uri of the table to insert the rows into.
+     * @param values The rows to insert.
+     */
+    void bulkInsert(Uri uri, List<ContentValues> values)
+            throws RemoteException, OperationApplicationException {
+        flush();
+        int chunkStart = 0;
+        int chunkBytes = 0;
+        for (int i = 0; i < values.size(); i++) {
+            int size = estimateSize(values.get(i));
+            if (i > chunkStart
+                    && (chunkBytes + size > mBudgetBytes
+                            || i - chunkStart >= MAX_OPERATION_COUNT)) {
+                insert(uri, values.subList(chunkStart, i));
+                chunkStart = i;
+                chunkBytes = 0;
+            }
+            chunkBytes += size;
+        }
+        if (chunkStart < values.size()) {
+            insert(uri, values.subList(chunkStart, values.size()));
+        }
+    }
+
+    private void insert(Uri uri, List<ContentValues> values)
+            throws OperationApplicationException {
+        int bytes = 0;
+        for (ContentValues row : values) {
+            bytes += estimateSize(row);
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int insertedCount = insertRows(uri, values.toArray(new ContentValues[values.size()]));
+        if (insertedCount == 0 && values.size() > 1) {
+            // ContentResolver hides why the transaction failed, which may be its size. Nothing was
+            // inserted, so try again with each half as for a batch.
+            mBudgetBytes = Math.max(MIN_BUDGET_BYTES, Math.min(mBudgetBytes, bytes) / 2);
+            mSplitCount++;
+            Log.w(TAG, "Insertion of " + values.size() + " rows failed, splitting it");
+            int half = values.size() / 2;
+            insert(uri, values.subList(0, half));
+            insert(uri, values.subList(half, values.size()));
+            return;
+        }
+        if (insertedCount != values.size()) {
+            throw new OperationApplicationException(
+                    "Inserted " + insertedCount + " of " + values.size() + " rows into " + uri);
+        }
+        mApplyNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        mAppliedOperationCount += values.size();
+        mAppliedBytes += bytes;
+        mAppliedBatchCount++;
+        mBudgetBytes = Math.min(MAX_BUDGET_BYTES, mBudgetBytes + BUDGET_INCREMENT_BYTES);
+    }
+
+    private void apply(List<ContentProviderOperation> operations, List<Integer> sizes)
+            throws RemoteException, OperationApplicationException {
+        int bytes = 0;
+        for (int size : sizes) {
+            bytes += size;
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            applyBatch(new ArrayList<>(operations));
+        } catch (TransactionTooLargeException e) {
+            if (operations.size() == 1) {
+                throw e;
+            }
+            // Nothing was applied since the transaction couldn't be sent. Lower the budget below
+            // the failed size and try again with each half.
+            mBudgetBytes = Math.max(MIN_BUDGET_BYTES, Math.min(mBudgetBytes, bytes) / 2);
+            mSplitCount++;
+            Log.w(TAG, "Batch of " + operations.size() + " operations too large, splitting it");
+            int half = operations.size() / 2;
+            apply(operations.subList(0, half), sizes.subList(0, half));
+            apply(
+                    operations.subList(half, operations.size()),
+                    sizes.subList(half, sizes.size()));
+            return;
+        }
+        mApplyNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        mAppliedOperationCount += operations.size();
+        mAppliedBytes += bytes;
+        mAppliedBatchCount++;
+        mBudgetBytes = Math.min(MAX_BUDGET_BYTES, mBudgetBytes + BUDGET_INCREMENT_BYTES);
+    }
+
+    /** Sends a batch of operations to the provider. */
+    @VisibleForTesting
+    void applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        mResolver.applyBatch(mAuthority, operations);
+    }
+
+    /** Sends rows to insert to the provider and returns the number of rows it inserted. */
+    @VisibleForTesting
+    int insertRows(Uri uri, ContentValues[] values) {
+        return mResolver.bulkInsert(uri, values);
+    }
+
+    /** Returns the amount of operations applied per second while waiting for the provider. */
+    double getOperationsPerSecond() {
+        return mApplyNanos > 0 ? mAppliedOperationCount * 1e9 / mApplyNanos : 0;
+    }
+
+    /** Returns the average estimated size of the batches applied, in bytes. */
+    long getBytesPerBatch() {
+        return mAppliedBatchCount > 0 ? mAppliedBytes / mAppliedBatchCount : 0;
+    }
+
+    long getAppliedOperationCount() {
+        return mAppliedOperationCount;
+    }
+
+    long getAppliedBatchCount() {
+        return mAppliedBatchCount;
+    }
+
+    long getAppliedBytes() {
+        return mAppliedBytes;
+    }
+
+    /** Returns the time spent waiting for the provider, in nanoseconds. */
+    long getApplyNanos() {
+        return mApplyNanos;
+    }
+
+    int getSplitCount() {
+        return mSplitCount;
+    }
+
+    @VisibleForTesting
+    int getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Estimates the size taken by an operation writing the given values once parceled.
+     *
+     * @param values The values written by the operation, or {@code null} if there are none.
+     * @return The estimated size in bytes.
+     */
+    static int estimateSize(ContentValues values) {
+        int size = OPERATION_OVERHEAD_BYTES;
+        if (values == null) {
+            return size;
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            size += STRING_OVERHEAD_BYTES + 2 * entry.getKey().length();
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                size += STRING_OVERHEAD_BYTES + 2 * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += 2 * TYPE_BYTES + ((byte[]) value).length;
+            } else if (value != null) {
+                size += TYPE_BYTES + 8;
+            } else {
+                size += TYPE_BYTES;
+            }
+        }
+        return size;
+    }
+}
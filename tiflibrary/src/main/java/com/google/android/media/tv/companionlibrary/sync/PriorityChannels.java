@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+/**
+ * The channels recently tuned by the user, most recent first. A sync updates them before the
+ * other channels so the guide is correct where the user looks first.
+ */
+final class PriorityChannels {
+    private static final String TAG = "PriorityChannels";
+    private static final String KEY_CHANNEL_IDS = "priority_channel_ids";
+    private static final String SEPARATOR = ",";
+
+    static final int MAX_CHANNEL_COUNT = 5;
+
+    private PriorityChannels() {}
+
+    /**
+     * Reads the priority channels.
+     *
+     * @return The row ids of the channels, the most recently tuned one first.
+     */
+    static long[] read(SharedPreferences preferences) {
+        String channelIds = preferences.getString(KEY_CHANNEL_IDS, null);
+        if (TextUtils.isEmpty(channelIds)) {
+            return new long[0];
+        }
+        String[] values = channelIds.split(SEPARATOR);
+        long[] ids = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                ids[i] = Long.parseLong(values[i]);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid priority channels " + channelIds);
+                return new long[0];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Puts the given channel first, keeping the {@link #MAX_CHANNEL_COUNT} most recent ones.
+     *
+     * @param channelId The row id of the channel tuned.
+     */
+    static synchronized void add(SharedPreferences preferences, long channelId) {
+        long[] channelIds = read(preferences);
+        StringBuilder builder = new StringBuilder().append(channelId);
+        int count = 1;
+        for (int i = 0; i < channelIds.length && count < MAX_CHANNEL_COUNT; i++) {
+            if (channelIds[i] != channelId) {
+                builder.append(SEPARATOR).append(channelIds[i]);
+                count++;
+            }
+        }
+        preferences.edit().putString(KEY_CHANNEL_IDS, builder.toString()).apply();
+    }
+
+    /**
+     * Returns the indexes in the channel map of the given channels, in the same order. The
+     * channels which aren't in the map are left out.
+     */
+    static int[] getIndexes(LongSparseArray<?> channelMap, long[] channelIds) {
+        int[] indexes = new int[channelIds.length];
+        int count = 0;
+        for (long channelId : channelIds) {
+            int index = channelMap.indexOfKey(channelId);
+            if (index >= 0 && !contains(indexes, count, index)) {
+                indexes[count++] = index;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(indexes, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns the order in which the channels of a map are synced: the priority channels first,
+     * then every other channel from the given index by row id.
+     *
+     * @param channelCount The number of channels in the map.
+     * @param priorityIndexes The indexes of the priority channels in the map.
+     * @param firstChannelIndex The index of the first channel synced after the priority ones.
+     * @return The indexes of the channels to sync.
+     */
+    static int[] getChannelOrder(int channelCount, int[] priorityIndexes, int firstChannelIndex) {
+        int[] order = new int[priorityIndexes.length + channelCount - firstChannelIndex];
+        System.arraycopy(priorityIndexes, 0, order, 0, priorityIndexes.length);
+        int count = priorityIndexes.length;
+        for (int i = firstChannelIndex; i < channelCount; i++) {
+            if (!contains(priorityIndexes, priorityIndexes.length, i)) {
+                order[count++] = i;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(order, 0, result, 0, count);
+        return result;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.ContentValues;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import java.util.List;
+
+/**
+ * Computes a compact fingerprint of the schedule of a channel.
+ *
+ * <p>The fingerprint is a 64-bit rolling hash over the values each program writes to the
+ * database through {@link Program#toContentValues()}. If the fingerprint of a schedule matches the
+ * one of the last schedule that was successfully written for the same channel, the stored
+ * programs are already up to date.
+ */
+final class ScheduleFingerprint {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long ROLLING_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    /** Fingerprint of a schedule that was never written. */
+    static final long NONE = 0;
+
+    private ScheduleFingerprint() {}
+
+    /**
+     * Computes the fingerprint of the given programs. The order of the programs matters while the
+     * order of the columns of each program doesn't.
+     *
+     * @param programs The programs of a channel, as they will be written to the database.
+     * @return The fingerprint of the schedule, never {@link #NONE}.
+     */
+    static long compute(List<Program> programs) {
+        long hash = programs.size();
+        for (Program program : programs) {
+            hash = hash * ROLLING_MULTIPLIER + hashProgram(program.toContentValues());
+        }
+        hash = mix(hash);
+        return hash != NONE ? hash : 1;
+    }
+
+    private static long hashProgram(ContentValues values) {
+        long hash = 0;
+        for (String key : values.keySet()) {
+            // Summing the columns makes the hash independent of the iteration order.
+            hash += mix(hashString(key) * FNV_PRIME ^ hashValue(values.get(key)));
+        }
+        return hash;
+    }
+
+    private static long hashValue(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof byte[]) {
+            long hash = FNV_OFFSET_BASIS;
+            for (byte b : (byte[]) value) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+            return hash;
+        } else if (value instanceof Long || value instanceof Integer) {
+            return mix(((Number) value).longValue());
+        }
+        return hashString(value.toString());
+    }
+
+    private static long hashString(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Finalizer of SplitMix64, spreading every input bit over the whole output. */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
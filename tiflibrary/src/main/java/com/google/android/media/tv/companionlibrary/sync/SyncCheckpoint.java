@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+/**
+ * Progress of an EPG sync, persisted after each channel so that a sync stopped by the system can
+ * be resumed instead of starting again from the first channel.
+ *
+ * <p>A sync resumes with the window of the interrupted one. Once that window has moved on by half
+ * its duration, the next sync starts a new full pass instead.
+ */
+final class SyncCheckpoint {
+    private static final String KEY_INPUT_ID = "checkpoint_input_id";
+    private static final String KEY_START_MS = "checkpoint_start_ms";
+    private static final String KEY_END_MS = "checkpoint_end_ms";
+    private static final String KEY_CHANNEL_INDEX = "checkpoint_channel_index";
+    private static final String KEY_CHANNEL_ID = "checkpoint_channel_id";
+
+    private final String mInputId;
+    private final long mStartMs;
+    private final long mEndMs;
+    private final int mChannelIndex;
+    private final long mChannelId;
+
+    /**
+     * @param inputId The input being synced.
+     * @param startMs The start of the synced window.
+     * @param endMs The end of the synced window.
+     * @param channelIndex The index of the last channel completed in the channel map.
+     * @param channelId The row id of the last channel completed.
+     */
+    SyncCheckpoint(String inputId, long startMs, long endMs, int channelIndex, long channelId) {
+        mInputId = inputId;
+        mStartMs = startMs;
+        mEndMs = endMs;
+        mChannelIndex = channelIndex;
+        mChannelId = channelId;
+    }
+
+    /**
+     * Reads the checkpoint of the given input.
+     *
+     * @return The checkpoint, or {@code null} if the last sync of the input completed.
+     */
+    static SyncCheckpoint read(SharedPreferences preferences, String inputId) {
+        if (inputId == null || !inputId.equals(preferences.getString(KEY_INPUT_ID, null))) {
+            return null;
+        }
+        return new SyncCheckpoint(
+                inputId,
+                preferences.getLong(KEY_START_MS, 0),
+                preferences.getLong(KEY_END_MS, 0),
+                preferences.getInt(KEY_CHANNEL_INDEX, -1),
+                preferences.getLong(KEY_CHANNEL_ID, -1));
+    }
+
+    /** Removes the checkpoint once a sync completed. */
+    static void clear(SharedPreferences.Editor editor) {
+        editor.remove(KEY_INPUT_ID)
+                .remove(KEY_START_MS)
+                .remove(KEY_END_MS)
+                .remove(KEY_CHANNEL_INDEX)
+                .remove(KEY_CHANNEL_ID);
+    }
+
+    void write(SharedPreferences.Editor editor) {
+        editor.putString(KEY_INPUT_ID, mInputId)
+                .putLong(KEY_START_MS, mStartMs)
+                .putLong(KEY_END_MS, mEndMs)
+                .putInt(KEY_CHANNEL_INDEX, mChannelIndex)
+                .putLong(KEY_CHANNEL_ID, mChannelId);
+    }
+
+    /**
+     * Returns {@code true} if a sync of the given duration starting now should resume from this
+     * checkpoint rather than start a new pass.
+     */
+    boolean canResume(long nowMs, long durationMs) {
+        return mEndMs - mStartMs == durationMs
+                && nowMs >= mStartMs
+                && nowMs < mStartMs + durationMs / 2;
+    }
+
+    /**
+     * Returns the index of the first channel left to sync. Channels are sorted by row id in the
+     * map, so the channels added or removed since the checkpoint don't shift the position.
+     */
+    int getNextChannelIndex(LongSparseArray<?> channelMap) {
+        for (int i = 0; i < channelMap.size(); i++) {
+            if (channelMap.keyAt(i) > mChannelId) {
+                return i;
+            }
+        }
+        return channelMap.size();
+    }
+
+    long getStartMs() {
+        return mStartMs;
+    }
+
+    long getEndMs() {
+        return mEndMs;
+    }
+
+    int getChannelIndex() {
+        return mChannelIndex;
+    }
+
+    long getChannelId() {
+        return mChannelId;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of a sync run went, along with the amount of data it wrote.
+ *
+ * <p>The metrics of a run are sent to the {@link Listener} set through {@link
+ * EpgSyncJobService#setSyncMetricsListener(Listener)} and attached to the {@link
+ * EpgSyncJobService#SYNC_FINISHED} broadcast under {@link
+ * EpgSyncJobService#BUNDLE_KEY_SYNC_METRICS}, see {@link #fromBundle(Bundle)}. The metrics of the
+ * last runs are also kept, see {@link EpgSyncJobService#getSyncMetricsHistory(android.content
+ * .Context)}.
+ */
+public final class SyncMetrics {
+    private static final String TAG = "SyncMetrics";
+    private static final String KEY_HISTORY = "sync_metrics_history";
+    private static final String KEY_INPUT_ID = "input_id";
+
+    /** The number of runs kept in the history. */
+    public static final int MAX_HISTORY_COUNT = 20;
+
+    /** The feed from which the channels are retrieved, e.g. a M3U playlist. */
+    public static final int FEED_CHANNELS = 0;
+    /** The feed from which the programs are retrieved, e.g. a XMLTV guide. */
+    public static final int FEED_PROGRAMS = 1;
+
+    static final int STAGE_GET_CHANNELS = 0;
+    static final int STAGE_UPDATE_CHANNELS = 1;
+    static final int STAGE_BUILD_CHANNEL_MAP = 2;
+
+    private static final int START_TIME_MS = 0;
+    private static final int APP_VERSION_CODE = 1;
+    private static final int FULL_SYNC = 2;
+    private static final int COMPLETED = 3;
+    private static final int DURATION_NS = 4;
+    private static final int GET_CHANNELS_NS = 5;
+    private static final int UPDATE_CHANNELS_NS = 6;
+    private static final int BUILD_CHANNEL_MAP_NS = 7;
+    private static final int GET_PROGRAMS_FOR_CHANNEL_NS = 8;
+    private static final int GET_PROGRAMS_FOR_CHANNEL_MAX_NS = 9;
+    private static final int GET_PROGRAMS_FOR_CHANNEL_COUNT = 10;
+    private static final int QUERY_PROGRAMS_NS = 11;
+    private static final int QUERY_PROGRAMS_COUNT = 12;
+    private static final int APPLY_BATCH_NS = 13;
+    private static final int BATCH_COUNT = 14;
+    private static final int BATCH_BYTES = 15;
+    private static final int OPERATION_COUNT = 16;
+    private static final int SPLIT_COUNT = 17;
+    private static final int CHANNEL_COUNT = 18;
+    private static final int SYNCED_CHANNEL_COUNT = 19;
+    private static final int UNCHANGED_CHANNEL_COUNT = 20;
+    private static final int PROGRAM_COUNT = 21;
+    private static final int ADDED_PROGRAM_COUNT = 22;
+    private static final int UPDATED_PROGRAM_COUNT = 23;
+    private static final int DELETED_PROGRAM_COUNT = 24;
+    private static final int PEAK_HEAP_BYTES = 25;
+    // The timings of each feed, FEED_TIMING_COUNT values for each.
+    private static final int FEED_TIMINGS_MS = 26;
+    private static final int FEED_TIMING_COUNT = 3;
+
+    // Keys of the values, in the order of their indexes.
+    private static final String[] KEYS = {
+        "start_time_ms",
+        "app_version_code",
+        "full_sync",
+        "completed",
+        "duration_ns",
+        "get_channels_ns",
+        "update_channels_ns",
+        "build_channel_map_ns",
+        "get_programs_for_channel_ns",
+        "get_programs_for_channel_max_ns",
+        "get_programs_for_channel_count",
+        "query_programs_ns",
+        "query_programs_count",
+        "apply_batch_ns",
+        "batch_count",
+        "batch_bytes",
+        "operation_count",
+        "split_count",
+        "channel_count",
+        "synced_channel_count",
+        "unchanged_channel_count",
+        "program_count",
+        "added_program_count",
+        "updated_program_count",
+        "deleted_program_count",
+        "peak_heap_bytes",
+        "channel_feed_connect_ms",
+        "channel_feed_download_ms",
+        "channel_feed_parse_ms",
+        "program_feed_connect_ms",
+        "program_feed_download_ms",
+        "program_feed_parse_ms"
+    };
+
+    /** Receives the metrics of each sync run once it finished. */
+    public interface Listener {
+        /**
+         * Called on the main thread after a sync run, whether it completed or not.
+         *
+         * @param metrics The metrics of the run.
+         */
+        void onSyncMetrics(SyncMetrics metrics);
+    }
+
+    private final String mInputId;
+    private final long[] mValues;
+    private final long mStartNanos;
+
+    SyncMetrics(String inputId, boolean fullSync) {
+        this(inputId, new long[KEYS.length]);
+        mValues[START_TIME_MS] = System.currentTimeMillis();
+        mValues[FULL_SYNC] = fullSync ? 1 : 0;
+        sampleHeap();
+    }
+
+    private SyncMetrics(String inputId, long[] values) {
+        mInputId = inputId;
+        mValues = values;
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Adds the time spent in a stage of the sync.
+     *
+     * @param stage One of {@link #STAGE_GET_CHANNELS}, {@link #STAGE_UPDATE_CHANNELS} or {@link
+     *     #STAGE_BUILD_CHANNEL_MAP}.
+     * @param startNanos The {@link SystemClock#elapsedRealtimeNanos()} when the stage started.
+     */
+    synchronized void addStage(int stage, long startNanos) {
+        mValues[GET_CHANNELS_NS + stage] += SystemClock.elapsedRealtimeNanos() - startNanos;
+    }
+
+    /** Adds a call to {@link EpgSyncJobService#getProgramsForChannel} started at the given time. */
+    synchronized void addProgramsForChannel(long startNanos) {
+        long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mValues[GET_PROGRAMS_FOR_CHANNEL_NS] += durationNanos;
+        mValues[GET_PROGRAMS_FOR_CHANNEL_MAX_NS] =
+                Math.max(mValues[GET_PROGRAMS_FOR_CHANNEL_MAX_NS], durationNanos);
+        mValues[GET_PROGRAMS_FOR_CHANNEL_COUNT]++;
+    }
+
+    /** Adds a query of the stored programs started at the given time. */
+    synchronized void addProgramQuery(long startNanos) {
+        mValues[QUERY_PROGRAMS_NS] += SystemClock.elapsedRealtimeNanos() - startNanos;
+        mValues[QUERY_PROGRAMS_COUNT]++;
+    }
+
+    /** Adds a channel whose programs were handled. */
+    synchronized void addSyncedChannel() {
+        mValues[SYNCED_CHANNEL_COUNT]++;
+        sampleHeap();
+    }
+
+    synchronized void setChannelCount(int channelCount) {
+        mValues[CHANNEL_COUNT] = channelCount;
+    }
+
+    synchronized void setProgramCounts(
+            long programCount,
+            long addedCount,
+            long updatedCount,
+            long deletedCount,
+            long unchangedChannelCount) {
+        mValues[PROGRAM_COUNT] = programCount;
+        mValues[ADDED_PROGRAM_COUNT] = addedCount;
+        mValues[UPDATED_PROGRAM_COUNT] = updatedCount;
+        mValues[DELETED_PROGRAM_COUNT] = deletedCount;
+        mValues[UNCHANGED_CHANNEL_COUNT] = unchangedChannelCount;
+    }
+
+    synchronized void setBatches(OperationBatcher batcher) {
+        mValues[APPLY_BATCH_NS] = batcher.getApplyNanos();
+        mValues[BATCH_COUNT] = batcher.getAppliedBatchCount();
+        mValues[BATCH_BYTES] = batcher.getAppliedBytes();
+        mValues[OPERATION_COUNT] = batcher.getAppliedOperationCount();
+        mValues[SPLIT_COUNT] = batcher.getSplitCount();
+    }
+
+    /**
+     * Sets the time spent retrieving a feed for the run, which may be before the run started.
+     *
+     * @param feed Either {@link #FEED_CHANNELS} or {@link #FEED_PROGRAMS}.
+     * @param connectMillis The time spent until the server started answering.
+     * @param downloadMillis The time spent waiting for the content of the feed.
+     * @param parseMillis The time spent parsing the content of the feed.
+     */
+    public synchronized void setFeedTimings(
+            int feed, long connectMillis, long downloadMillis, long parseMillis) {
+        int index = FEED_TIMINGS_MS + feed * FEED_TIMING_COUNT;
+        mValues[index] = connectMillis;
+        mValues[index + 1] = downloadMillis;
+        mValues[index + 2] = parseMillis;
+    }
+
+    /**
+     * Ends the run.
+     *
+     * @param completed Whether every channel was synced.
+     * @param appVersionCode The version of the application running the sync.
+     */
+    synchronized void finish(boolean completed, long appVersionCode) {
+        mValues[COMPLETED] = completed ? 1 : 0;
+        mValues[APP_VERSION_CODE] = appVersionCode;
+        mValues[DURATION_NS] = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        sampleHeap();
+    }
+
+    // The heap is only sampled between the stages and the channels, so short peaks may be missed.
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        mValues[PEAK_HEAP_BYTES] =
+                Math.max(mValues[PEAK_HEAP_BYTES], runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public String getInputId() {
+        return mInputId;
+    }
+
+    /** Returns the wall clock time when the run started. */
+    public long getStartTimeMillis() {
+        return mValues[START_TIME_MS];
+    }
+
+    public long getAppVersionCode() {
+        return mValues[APP_VERSION_CODE];
+    }
+
+    /** Returns {@code false} if the run only synced a single channel. */
+    public boolean isFullSync() {
+        return mValues[FULL_SYNC] != 0;
+    }
+
+    /** Returns {@code true} if the run synced every channel without being stopped. */
+    public boolean isCompleted() {
+        return mValues[COMPLETED] != 0;
+    }
+
+    public long getDurationMillis() {
+        return toMillis(DURATION_NS);
+    }
+
+    public long getChannelsDurationMillis() {
+        return toMillis(GET_CHANNELS_NS);
+    }
+
+    public long getUpdateChannelsDurationMillis() {
+        return toMillis(UPDATE_CHANNELS_NS);
+    }
+
+    public long getBuildChannelMapDurationMillis() {
+        return toMillis(BUILD_CHANNEL_MAP_NS);
+    }
+
+    /**
+     * Returns the time spent in {@link EpgSyncJobService#getProgramsForChannel}, summed over the
+     * channels. With several workers, it may exceed the duration of the run.
+     */
+    public long getProgramsForChannelDurationMillis() {
+        return toMillis(GET_PROGRAMS_FOR_CHANNEL_NS);
+    }
+
+    public long getProgramsForChannelMaxDurationMillis() {
+        return toMillis(GET_PROGRAMS_FOR_CHANNEL_MAX_NS);
+    }
+
+    public long getProgramsForChannelCallCount() {
+        return mValues[GET_PROGRAMS_FOR_CHANNEL_COUNT];
+    }
+
+    /** Returns the time spent querying the stored programs to compare them with the new ones. */
+    public long getProgramQueryDurationMillis() {
+        return toMillis(QUERY_PROGRAMS_NS);
+    }
+
+    public long getProgramQueryCount() {
+        return mValues[QUERY_PROGRAMS_COUNT];
+    }
+
+    /** Returns the time spent waiting for the provider to apply the batches and insertions. */
+    public long getApplyBatchDurationMillis() {
+        return toMillis(APPLY_BATCH_NS);
+    }
+
+    public long getBatchCount() {
+        return mValues[BATCH_COUNT];
+    }
+
+    /** Returns the estimated size of all the batches applied. */
+    public long getBatchBytes() {
+        return mValues[BATCH_BYTES];
+    }
+
+    public long getOperationCount() {
+        return mValues[OPERATION_COUNT];
+    }
+
+    /** Returns the number of times a batch had to be split because it was too large. */
+    public long getBatchSplitCount() {
+        return mValues[SPLIT_COUNT];
+    }
+
+    public long getChannelCount() {
+        return mValues[CHANNEL_COUNT];
+    }
+
+    public long getSyncedChannelCount() {
+        return mValues[SYNCED_CHANNEL_COUNT];
+    }
+
+    public long getUnchangedChannelCount() {
+        return mValues[UNCHANGED_CHANNEL_COUNT];
+    }
+
+    public long getProgramCount() {
+        return mValues[PROGRAM_COUNT];
+    }
+
+    public long getAddedProgramCount() {
+        return mValues[ADDED_PROGRAM_COUNT];
+    }
+
+    public long getUpdatedProgramCount() {
+        return mValues[UPDATED_PROGRAM_COUNT];
+    }
+
+    public long getDeletedProgramCount() {
+        return mValues[DELETED_PROGRAM_COUNT];
+    }
+
+    /** Returns the number of programs synced per second of the run. */
+    public double getProgramsPerSecond() {
+        return mValues[DURATION_NS] > 0
+                ? mValues[PROGRAM_COUNT] * 1e9 / mValues[DURATION_NS]
+                : 0;
+    }
+
+    /** Returns the largest heap used by the application while the run was sampled. */
+    public long getPeakHeapBytes() {
+        return mValues[PEAK_HEAP_BYTES];
+    }
+
+    /**
+     * Returns the time spent until the server of a feed started answering.
+     *
+     * @param feed Either {@link #FEED_CHANNELS} or {@link #FEED_PROGRAMS}.
+     */
+    public long getFeedConnectMillis(int feed) {
+        return mValues[FEED_TIMINGS_MS + feed * FEED_TIMING_COUNT];
+    }
+
+    /**
+     * Returns the time spent waiting for the content of a feed.
+     *
+     * @param feed Either {@link #FEED_CHANNELS} or {@link #FEED_PROGRAMS}.
+     */
+    public long getFeedDownloadMillis(int feed) {
+        return mValues[FEED_TIMINGS_MS + feed * FEED_TIMING_COUNT + 1];
+    }
+
+    /**
+     * Returns the time spent parsing the content of a feed.
+     *
+     * @param feed Either {@link #FEED_CHANNELS} or {@link #FEED_PROGRAMS}.
+     */
+    public long getFeedParseMillis(int feed) {
+        return mValues[FEED_TIMINGS_MS + feed * FEED_TIMING_COUNT + 2];
+    }
+
+    private long toMillis(int index) {
+        return TimeUnit.NANOSECONDS.toMillis(mValues[index]);
+    }
+
+    /** Returns the metrics as sent in the broadcast. */
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putString(KEY_INPUT_ID, mInputId);
+        for (int i = 0; i < KEYS.length; i++) {
+            bundle.putLong(KEYS[i], mValues[i]);
+        }
+        return bundle;
+    }
+
+    /**
+     * Reads the metrics sent in a broadcast.
+     *
+     * @param bundle The extra {@link EpgSyncJobService#BUNDLE_KEY_SYNC_METRICS} of the broadcast.
+     * @return The metrics, or {@code null} if the bundle is {@code null}.
+     */
+    public static SyncMetrics fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        long[] values = new long[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            values[i] = bundle.getLong(KEYS[i]);
+        }
+        return new SyncMetrics(bundle.getString(KEY_INPUT_ID), values);
+    }
+
+    synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(KEY_INPUT_ID, mInputId);
+        for (int i = 0; i < KEYS.length; i++) {
+            json.put(KEYS[i], mValues[i]);
+        }
+        return json;
+    }
+
+    static SyncMetrics fromJson(JSONObject json) {
+        long[] values = new long[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            // Values added by later versions are left at 0 in older runs.
+            values[i] = json.optLong(KEYS[i]);
+        }
+        return new SyncMetrics(json.optString(KEY_INPUT_ID, null), values);
+    }
+
+    /**
+     * Adds the given run to the history, keeping the {@link #MAX_HISTORY_COUNT} most recent
+     * ones.
+     */
+    static synchronized void addToHistory(SharedPreferences preferences, SyncMetrics metrics) {
+        JSONArray history = new JSONArray();
+        try {
+            history.put(metrics.toJson());
+            List<SyncMetrics> previousRuns = readHistory(preferences);
+            for (int i = 0; i < previousRuns.size() && i < MAX_HISTORY_COUNT - 1; i++) {
+                history.put(previousRuns.get(i).toJson());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to write sync metrics", e);
+            return;
+        }
+        preferences.edit().putString(KEY_HISTORY, history.toString()).apply();
+    }
+
+    /**
+     * Reads the history of the runs.
+     *
+     * @return The metrics of the runs, the most recent first.
+     */
+    static List<SyncMetrics> readHistory(SharedPreferences preferences) {
+        List<SyncMetrics> runs = new ArrayList<>();
+        String history = preferences.getString(KEY_HISTORY, null);
+        if (history == null) {
+            return runs;
+        }
+        try {
+            JSONArray json = new JSONArray(history);
+            for (int i = 0; i < json.length(); i++) {
+                runs.add(fromJson(json.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid sync metrics history", e);
+        }
+        return runs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncMetrics{input="
+                + mInputId
+                + ", duration="
+                + getDurationMillis()
+                + "ms, channelFeed="
+                + getFeedTimings(FEED_CHANNELS)
+                + ", programFeed="
+                + getFeedTimings(FEED_PROGRAMS)
+                + ", getChannels="
+                + getChannelsDurationMillis()
+                + "ms, updateChannels="
+                + getUpdateChannelsDurationMillis()
+                + "ms, buildChannelMap="
+                + getBuildChannelMapDurationMillis()
+                + "ms, getProgramsForChannel="
+                + getProgramsForChannelDurationMillis()
+                + "ms ("
+                + getProgramsForChannelCallCount()
+                + " calls, max "
+                + getProgramsForChannelMaxDurationMillis()
+                + "ms), queryPrograms="
+                + getProgramQueryDurationMillis()
+                + "ms ("
+                + getProgramQueryCount()
+                + " queries), applyBatch="
+                + getApplyBatchDurationMillis()
+                + "ms ("
+                + getBatchCount()
+                + " batches, "
+                + getBatchBytes()
+                + " bytes), channels="
+                + getSyncedChannelCount()
+                + "/"
+                + getChannelCount()
+                + ", programs="
+                + getProgramCount()
+                + " ("
+                + Math.round(getProgramsPerSecond())
+                + "/s), peakHeap="
+                + getPeakHeapBytes()
+                + ", completed="
+                + isCompleted()
+                + "}";
+    }
+
+    private String getFeedTimings(int feed) {
+        return getFeedConnectMillis(feed)
+                + "/"
+                + getFeedDownloadMillis(feed)
+                + "/"
+                + getFeedParseMillis(feed)
+                + "ms";
+    }
+}
@@ -19,6 +19,8 @@ package com.google.android.media.tv.companionlibrary.xmltv;
 import android.graphics.Color;
 import android.media.tv.TvContentRating;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
@@ -35,12 +37,12 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Set;
 
 /**
  * XMLTV document parser which conforms to http://wiki.xmltv.org/index.php/Main_Page
@@ -135,8 +137,7 @@ public class XmlTvParser {
 
     private static final String ANDROID_TV_RATING = "com.android.tv";
 
-    private static final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+    private static final long INVALID_TIME = Long.MIN_VALUE;
     private static final String TAG = "XmlTvParser";
 
     private XmlTvParser() {}
@@ -161,7 +162,73 @@ public class XmlTvParser {
      * @return A TvListing containing your channels and programs
      */
     public static TvListing parse(@NonNull InputStream inputStream) throws XmlTvParseException {
-        return parse(inputStream, Xml.newPullParser());
+        TvListingBuilder builder = new TvListingBuilder();
+        return parse(inputStream, Xml.newPullParser(), null, builder) ? builder.build() : null;
+    }
+
+    /**
+     * Reads an InputStream and parses only the channels and programs that are needed.
+     *
+     * <p>Channels and programs which don't match are skipped without creating any object for
+     * them. Since programs are filtered on their original times, this shouldn't be used for
+     * channels having repeat-programs enabled.
+     *
+     * @param inputStream The InputStream of your data
+     * @param channelIds The hash codes of the XMLTV channel ids to keep, which is what {@link
+     *     Channel#getOriginalNetworkId()} contains for parsed channels. If null, every channel is
+     *     kept.
+     * @param startMs The start of the time window in milliseconds since the epoch, inclusive.
+     * @param endMs The end of the time window in milliseconds since the epoch, exclusive.
+     * @return A TvListing containing the channels and the programs airing during the window
+     */
+    public static TvListing parse(
+            @NonNull InputStream inputStream,
+            @Nullable Set<Long> channelIds,
+            long startMs,
+            long endMs)
+            throws XmlTvParseException {
+        TvListingBuilder builder = new TvListingBuilder();
+        return parse(inputStream, channelIds, startMs, endMs, builder) ? builder.build() : null;
+    }
+
+    /**
+     * Reads an InputStream and notifies the channels and programs to a handler as soon as they
+     * are parsed. Nothing is kept in memory by the parser.
+     *
+     * @param inputStream The InputStream of your data
+     * @param handler The handler notified of every channel and program
+     * @return Whether the whole document could be read
+     */
+    public static boolean parse(@NonNull InputStream inputStream, @NonNull TvListingHandler handler)
+            throws XmlTvParseException {
+        return parse(inputStream, Xml.newPullParser(), null, handler);
+    }
+
+    /**
+     * Reads an InputStream and notifies the channels and programs that are needed to a handler as
+     * soon as they are parsed. Nothing is kept in memory by the parser.
+     *
+     * @param inputStream The InputStream of your data
+     * @param channelIds The hash codes of the XMLTV channel ids to keep. If null, every channel is
+     *     kept.
+     * @param startMs The start of the time window in milliseconds since the epoch, inclusive.
+     * @param endMs The end of the time window in milliseconds since the epoch, exclusive.
+     * @param handler The handler notified of every matching channel and program
+     * @return Whether the whole document could be read
+     * @see #parse(InputStream, Set, long, long)
+     */
+    public static boolean parse(
+            @NonNull InputStream inputStream,
+            @Nullable Set<Long> channelIds,
+            long startMs,
+            long endMs,
+            @NonNull TvListingHandler handler)
+            throws XmlTvParseException {
+        if (startMs > endMs) {
+            throw new IllegalArgumentException("Start time must be before end time");
+        }
+        return parse(
+                inputStream, Xml.newPullParser(), new Filter(channelIds, startMs, endMs), handler);
     }
 
     /**
@@ -169,9 +236,15 @@ public class XmlTvParser {
      *
      * @param inputStream The InputStream of your data
      * @param parser The XmlPullParser the developer selects to parse this data
-     * @return A TvListing containing your channels and programs
+     * @param filter The filter for channels and programs, null to keep everything
+     * @param handler The handler notified of every channel and program
+     * @return Whether the whole document could be read
      */
-    private static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser)
+    private static boolean parse(
+            @NonNull InputStream inputStream,
+            @NonNull XmlPullParser parser,
+            @Nullable Filter filter,
+            @NonNull TvListingHandler handler)
             throws XmlTvParseException {
         try {
             parser.setInput(inputStream, null);
@@ -179,37 +252,60 @@ public class XmlTvParser {
             if (eventType != XmlPullParser.START_TAG || !TAG_TV.equals(parser.getName())) {
                 throw new XmlTvParseException("Input stream does not contain an XMLTV description");
             }
-            return parseTvListings(parser);
+            parseTvListings(parser, filter, handler);
+            return true;
         } catch (XmlPullParserException | IOException | ParseException e) {
             Log.w(TAG, e.getMessage());
         }
-        return null;
+        return false;
     }
 
-    private static TvListing parseTvListings(XmlPullParser parser)
+    private static void parseTvListings(
+            XmlPullParser parser, Filter filter, TvListingHandler handler)
             throws IOException, XmlPullParserException, ParseException {
-        List<Channel> channels = new ArrayList<>();
-        List<Program> programs = new ArrayList<>();
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_CHANNEL.equalsIgnoreCase(parser.getName())) {
-                Channel channel = parseChannel(parser);
+                Channel channel = parseChannel(parser, filter);
                 if (channel != null) {
-                    channels.add(channel);
+                    handler.onChannel(channel);
                 }
             }
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_PROGRAM.equalsIgnoreCase(parser.getName())) {
-                Program program = parseProgram(parser);
+                Program program = parseProgram(parser, filter);
                 if (program != null) {
-                    programs.add(program);
+                    handler.onProgram(program);
                 }
             }
         }
-        return new TvListing(channels, programs);
     }
 
-    private static Channel parseChannel(XmlPullParser parser)
+    /**
+     * Skips the current element along with all of its sub-elements.
+     *
+     * @param parser The parser positioned on the start tag of the element to skip
+     */
+    private static void skipElement(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static Channel parseChannel(XmlPullParser parser, Filter filter)
             throws IOException, XmlPullParserException, ParseException {
         String id = null;
         boolean repeatPrograms = false;
@@ -222,6 +318,10 @@ public class XmlTvParser {
                 repeatPrograms = "TRUE".equalsIgnoreCase(value);
             }
         }
+        if (filter != null && id != null && !filter.acceptsChannel(id.hashCode())) {
+            skipElement(parser);
+            return null;
+        }
         String displayName = null;
         String displayNumber = null;
         XmlTvIcon icon = null;
@@ -281,11 +381,11 @@ public class XmlTvParser {
         return builder.build();
     }
 
-    private static Program parseProgram(XmlPullParser parser)
+    private static Program parseProgram(XmlPullParser parser, Filter filter)
             throws IOException, XmlPullParserException, ParseException {
         String channelId = null;
-        Long startTimeUtcMillis = null;
-        Long endTimeUtcMillis = null;
+        long startTimeUtcMillis = INVALID_TIME;
+        long endTimeUtcMillis = INVALID_TIME;
         String videoSrc = null;
         int videoType = TvContractUtils.SOURCE_TYPE_HTTP_PROGRESSIVE;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
@@ -294,9 +394,9 @@ public class XmlTvParser {
             if (ATTR_CHANNEL.equalsIgnoreCase(attr)) {
                 channelId = value;
             } else if (ATTR_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvTimestampParser.parse(value);
             } else if (ATTR_STOP.equalsIgnoreCase(attr)) {
-                endTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                endTimeUtcMillis = XmlTvTimestampParser.parse(value);
             } else if (ATTR_VIDEO_SRC.equalsIgnoreCase(attr)) {
                 videoSrc = value;
             } else if (ATTR_VIDEO_TYPE.equalsIgnoreCase(attr)) {
@@ -309,6 +409,15 @@ public class XmlTvParser {
                 }
             }
         }
+        if (filter != null
+                && !TextUtils.isEmpty(channelId)
+                && startTimeUtcMillis != INVALID_TIME
+                && endTimeUtcMillis != INVALID_TIME
+                && !filter.acceptsProgram(
+                        channelId.hashCode(), startTimeUtcMillis, endTimeUtcMillis)) {
+            skipElement(parser);
+            return null;
+        }
         String title = null;
         String description = null;
         XmlTvIcon icon = null;
@@ -340,8 +449,8 @@ public class XmlTvParser {
             }
         }
         if (TextUtils.isEmpty(channelId)
-                || startTimeUtcMillis == null
-                || endTimeUtcMillis == null) {
+                || startTimeUtcMillis == INVALID_TIME
+                || endTimeUtcMillis == INVALID_TIME) {
             throw new IllegalArgumentException("channel, start, and end can not be null.");
         }
         InternalProviderData internalProviderData = new InternalProviderData();
@@ -459,16 +568,16 @@ public class XmlTvParser {
 
     private static Advertisement parseAd(XmlPullParser parser, String adType)
             throws IOException, XmlPullParserException, ParseException {
-        Long startTimeUtcMillis = null;
-        Long stopTimeUtcMillis = null;
+        long startTimeUtcMillis = INVALID_TIME;
+        long stopTimeUtcMillis = INVALID_TIME;
         int type = Advertisement.TYPE_VAST;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_AD_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvTimestampParser.parse(value);
             } else if (ATTR_AD_STOP.equalsIgnoreCase(attr)) {
-                stopTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                stopTimeUtcMillis = XmlTvTimestampParser.parse(value);
             } else if (ATTR_AD_TYPE.equalsIgnoreCase(attr)) {
                 if (VALUE_ADVERTISEMENT_TYPE_VAST.equalsIgnoreCase(attr)) {
                     type = Advertisement.TYPE_VAST;
@@ -488,7 +597,7 @@ public class XmlTvParser {
         }
         Advertisement.Builder builder = new Advertisement.Builder();
         if (adType.equals(TAG_PROGRAM)) {
-            if (startTimeUtcMillis == null || stopTimeUtcMillis == null) {
+            if (startTimeUtcMillis == INVALID_TIME || stopTimeUtcMillis == INVALID_TIME) {
                 throw new IllegalArgumentException(
                         "start, stop time of program ads cannot be null");
             }
@@ -498,36 +607,155 @@ public class XmlTvParser {
         return builder.setType(type).setRequestUrl(requestUrl).build();
     }
 
+    /**
+     * Receives the channels and programs of an XMLTV document as they are parsed.
+     *
+     * <p>Channels and programs are notified in the order they appear in the document. Programs
+     * have the hash code of their XMLTV channel id as channel id.
+     */
+    public interface TvListingHandler {
+        /**
+         * Called when a channel has been parsed.
+         *
+         * @param channel The parsed channel.
+         */
+        void onChannel(Channel channel);
+
+        /**
+         * Called when a program has been parsed.
+         *
+         * @param program The parsed program.
+         */
+        void onProgram(Program program);
+    }
+
+    /**
+     * Collects the channels of a document and groups its programs by channel as they are parsed
+     * to create a {@link TvListing}, so the programs are never held in a single list.
+     */
+    private static class TvListingBuilder implements TvListingHandler {
+        private final List<Channel> mChannels = new ArrayList<>();
+        private final HashMap<Long, List<Program>> mProgramMap = new HashMap<>();
+
+        @Override
+        public void onChannel(Channel channel) {
+            mChannels.add(channel);
+        }
+
+        @Override
+        public void onProgram(Program program) {
+            Long channelKey = program.getChannelId();
+            List<Program> programsForChannel = mProgramMap.get(channelKey);
+            if (programsForChannel == null) {
+                programsForChannel = new ArrayList<>();
+                mProgramMap.put(channelKey, programsForChannel);
+            }
+            programsForChannel.add(program);
+        }
+
+        private TvListing build() {
+            return new TvListing(mChannels, mProgramMap);
+        }
+    }
+
     /**
      * Contains a list of channels and corresponding programs that have been generated from parsing
      * an XML TV file.
      */
     public static class TvListing {
         private List<Channel> mChannels;
-        private List<Program> mPrograms;
+        private HashMap<Long, Channel> mChannelMap;
+        // The programs are only copied when requested.
         private HashMap<Long, List<Program>> mProgramMap;
+        private int mProgramCount;
 
-        private TvListing(List<Channel> channels, List<Program> programs) {
+        @VisibleForTesting
+        TvListing(List<Channel> channels, List<Program> programs) {
             this.mChannels = channels;
-            this.mPrograms = new ArrayList<>(programs);
+            mChannelMap = createChannelMap(channels);
             // Place programs into the epg map
-            mProgramMap = new HashMap<>();
+            mProgramMap = groupProgramsByChannel(mChannelMap, programs);
+            mProgramCount = countPrograms(mProgramMap);
+        }
+
+        /**
+         * Creates a listing from programs already grouped by the XMLTV channel id they belong to.
+         * The groups of unknown channels are dropped and the others are sorted by start time.
+         */
+        private TvListing(List<Channel> channels, HashMap<Long, List<Program>> programMap) {
+            this.mChannels = channels;
+            mChannelMap = createChannelMap(channels);
+            programMap.keySet().retainAll(mChannelMap.keySet());
+            for (Long channelKey : mChannelMap.keySet()) {
+                List<Program> programsForChannel = programMap.get(channelKey);
+                if (programsForChannel == null) {
+                    programMap.put(channelKey, new ArrayList<Program>(0));
+                } else {
+                    Collections.sort(programsForChannel);
+                }
+            }
+            mProgramMap = programMap;
+            mProgramCount = countPrograms(mProgramMap);
+        }
+
+        /** Maps the channels by XMLTV channel id, only keeping the first one having an id. */
+        private static HashMap<Long, Channel> createChannelMap(List<Channel> channels) {
+            HashMap<Long, Channel> channelMap = new HashMap<>(channels.size() * 2);
             for (Channel channel : channels) {
-                List<Program> programsForChannel = new ArrayList<>();
-                Iterator<Program> programIterator = programs.iterator();
-                while (programIterator.hasNext()) {
-                    Program program = programIterator.next();
-                    if (program.getChannelId() == channel.getOriginalNetworkId()) {
-                        programsForChannel.add(
-                                new Program.Builder(program).setChannelId(channel.getId()).build());
-                        programIterator.remove();
+                Long channelKey = channel.getOriginalNetworkId();
+                if (!channelMap.containsKey(channelKey)) {
+                    channelMap.put(channelKey, channel);
+                }
+            }
+            return channelMap;
+        }
+
+        private static int countPrograms(HashMap<Long, List<Program>> programMap) {
+            int programCount = 0;
+            for (List<Program> programsForChannel : programMap.values()) {
+                programCount += programsForChannel.size();
+            }
+            return programCount;
+        }
+
+        /**
+         * Groups programs by the channel they belong to in a linear pass over the programs.
+         * Programs are sorted by start time within each channel.
+         */
+        private static HashMap<Long, List<Program>> groupProgramsByChannel(
+                HashMap<Long, Channel> channelMap, List<Program> programs) {
+            // Count the programs of each channel so that every list is allocated only once.
+            HashMap<Long, int[]> programCounts = new HashMap<>(channelMap.size() * 2);
+            for (Program program : programs) {
+                Long channelKey = program.getChannelId();
+                if (channelMap.containsKey(channelKey)) {
+                    int[] count = programCounts.get(channelKey);
+                    if (count == null) {
+                        count = new int[1];
+                        programCounts.put(channelKey, count);
                     }
+                    count[0]++;
                 }
-                // Don't overwrite a channel's programs list if a key was already existent
-                if (!mProgramMap.containsKey(channel.getOriginalNetworkId())) {
-                    mProgramMap.put(channel.getOriginalNetworkId(), programsForChannel);
+            }
+
+            HashMap<Long, List<Program>> programMap = new HashMap<>(channelMap.size() * 2);
+            for (Long channelKey : channelMap.keySet()) {
+                int[] count = programCounts.get(channelKey);
+                programMap.put(channelKey, new ArrayList<Program>(count != null ? count[0] : 0));
+            }
+
+            for (Program program : programs) {
+                List<Program> programsForChannel = programMap.get(program.getChannelId());
+                if (programsForChannel != null) {
+                    programsForChannel.add(program);
                 }
             }
+
+            // XMLTV feeds are mostly chronological already, which makes sorting close to linear.
+            for (List<Program> programsForChannel : programMap.values()) {
+                Collections.sort(programsForChannel);
+            }
+            return programMap;
         }
 
         /** @return All channels found by the XmlTvParser. */
@@ -535,9 +763,29 @@ public class XmlTvParser {
             return mChannels;
         }
 
-        /** @return All programs found by the XmlTvParser. */
+        /**
+         * Returns the programs of every channel, in the order of the channels and then by start
+         * time. Programs of channels missing from the document aren't kept.
+         *
+         * <p>The list is created on each call, use {@link #getProgramCount()} to only get its
+         * size.
+         *
+         * @return All programs found by the XmlTvParser.
+         */
         public List<Program> getAllPrograms() {
-            return mPrograms;
+            List<Program> programs = new ArrayList<>(mProgramCount);
+            for (Channel channel : mChannels) {
+                // Only the first channel having a given id gets its programs
+                if (mChannelMap.get(channel.getOriginalNetworkId()) == channel) {
+                    programs.addAll(mProgramMap.get(channel.getOriginalNetworkId()));
+                }
+            }
+            return programs;
+        }
+
+        /** @return The number of programs found by the XmlTvParser. */
+        public int getProgramCount() {
+            return mProgramCount;
         }
 
         /**
@@ -547,7 +795,7 @@ public class XmlTvParser {
          * @return A list of programs that belong to that channel.
          */
         public List<Program> getPrograms(Channel channel) {
-            return mProgramMap.get(channel.getOriginalNetworkId());
+            return copyPrograms(channel.getOriginalNetworkId(), null);
         }
 
         /**
@@ -556,7 +804,98 @@ public class XmlTvParser {
          * @return A list of programs that belong to that id.
          */
         public List<Program> getPrograms(int id) {
-            return mProgramMap.get((long) id);
+            return copyPrograms(id, null);
+        }
+
+        /**
+         * Returns a list of programs found by the XmlTvParser for a given channel, with the given
+         * genres set on each of them.
+         *
+         * @param id The id to obtain programs for.
+         * @param canonicalGenres The genres of the programs. The array is shared by the programs
+         *     and must not be modified afterwards.
+         * @return A list of programs that belong to that id.
+         */
+        public List<Program> getPrograms(int id, String[] canonicalGenres) {
+            return copyPrograms(id, canonicalGenres);
+        }
+
+        /**
+         * Returns a list of programs found by the XmlTvParser for a given XMLTV channel id, ready
+         * to be stored for a given channel. Each program is only copied once.
+         *
+         * @param id The id to obtain programs for.
+         * @param channelId The row id of the channel the programs are stored for.
+         * @param canonicalGenres The genres of the programs, or {@code null} to keep the ones of
+         *     the programs. The array is shared by the programs and must not be modified
+         *     afterwards.
+         * @return A list of programs that belong to that id.
+         */
+        public List<Program> getPrograms(int id, long channelId, String[] canonicalGenres) {
+            return copyPrograms(id, channelId, canonicalGenres);
+        }
+
+        /**
+         * Returns a new list with copies of the programs of a given channel id. The programs have
+         * the id of the channel they belong to, so the list can be modified by the caller.
+         *
+         * @param canonicalGenres The genres set on the copies, or {@code null} to keep the ones of
+         *     the programs.
+         */
+        private List<Program> copyPrograms(long id, String[] canonicalGenres) {
+            Channel channel = mChannelMap.get(id);
+            return channel != null ? copyPrograms(id, channel.getId(), canonicalGenres) : null;
+        }
+
+        /**
+         * Returns a new list with copies of the programs of a given channel id, having the given
+         * channel id instead.
+         */
+        private List<Program> copyPrograms(long id, long channelId, String[] canonicalGenres) {
+            List<Program> programs = mProgramMap.get(id);
+            if (programs == null) {
+                return null;
+            }
+            List<Program> programsForChannel = new ArrayList<>(programs.size());
+            for (Program program : programs) {
+                Program.Builder builder = new Program.Builder(program).setChannelId(channelId);
+                if (canonicalGenres != null) {
+                    builder.setCanonicalGenres(canonicalGenres);
+                }
+                programsForChannel.add(builder.build());
+            }
+            return programsForChannel;
+        }
+    }
+
+    /** Restricts the channels and programs created while parsing. */
+    private static class Filter {
+        // Sorted copy of the wanted ids so that lookups don't box every parsed id.
+        private final long[] mChannelIds;
+        private final long mStartMs;
+        private final long mEndMs;
+
+        private Filter(Set<Long> channelIds, long startMs, long endMs) {
+            if (channelIds != null) {
+                mChannelIds = new long[channelIds.size()];
+                int i = 0;
+                for (Long channelId : channelIds) {
+                    mChannelIds[i++] = channelId;
+                }
+                Arrays.sort(mChannelIds);
+            } else {
+                mChannelIds = null;
+            }
+            mStartMs = startMs;
+            mEndMs = endMs;
+        }
+
+        private boolean acceptsChannel(long channelId) {
+            return mChannelIds == null || Arrays.binarySearch(mChannelIds, channelId) >= 0;
+        }
+
+        private boolean acceptsProgram(long channelId, long startTimeMs, long endTimeMs) {
+            return startTimeMs < mEndMs && endTimeMs > mStartMs && acceptsChannel(channelId);
         }
     }
 
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import java.text.ParseException;
+
+/**
+ * Parser for the timestamps found in the start and stop attributes of an XMLTV document.
+ *
+ * <p>The supported form is {@code yyyyMMddHHmm[ss][ Z]} where {@code Z} is an offset such as
+ * {@code +0200} or {@code -05:00}. When the offset is omitted, the time is considered to be in
+ * UTC as stated by the XMLTV specification.
+ *
+ * <p>Contrary to {@link java.text.SimpleDateFormat}, parsing doesn't allocate any object for
+ * valid timestamps and can be done from multiple threads at the same time.
+ */
+public final class XmlTvTimestampParser {
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private XmlTvTimestampParser() {}
+
+    /**
+     * Parses an XMLTV timestamp.
+     *
+     * @param timestamp The value of a start or stop attribute.
+     * @return The time in milliseconds since the epoch.
+     * @throws ParseException If the timestamp is not in a supported form.
+     */
+    public static long parse(CharSequence timestamp) throws ParseException {
+        if (timestamp == null) {
+            throw new ParseException("Timestamp cannot be null", 0);
+        }
+        int length = timestamp.length();
+        int end = length;
+        while (end > 0 && timestamp.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end < 12) {
+            throw new ParseException("Timestamp too short: " + timestamp, end);
+        }
+
+        int year = parseDigits(timestamp, 0, 4);
+        int month = parseDigits(timestamp, 4, 2);
+        int day = parseDigits(timestamp, 6, 2);
+        int hour = parseDigits(timestamp, 8, 2);
+        int minute = parseDigits(timestamp, 10, 2);
+        int second = 0;
+        int position = 12;
+        if (position + 2 <= end && isDigit(timestamp.charAt(position))) {
+            second = parseDigits(timestamp, position, 2);
+            position += 2;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+                || second > 60) {
+            throw new ParseException("Invalid timestamp: " + timestamp, 0);
+        }
+
+        long offsetMillis = 0;
+        while (position < end && timestamp.charAt(position) == ' ') {
+            position++;
+        }
+        if (position < end) {
+            char sign = timestamp.charAt(position++);
+            if (sign != '+' && sign != '-') {
+                throw new ParseException("Invalid timestamp offset: " + timestamp, position - 1);
+            }
+            if (position + 2 > end) {
+                throw new ParseException("Invalid timestamp offset: " + timestamp, position);
+            }
+            int offsetHours = parseDigits(timestamp, position, 2);
+            position += 2;
+            if (position < end && timestamp.charAt(position) == ':') {
+                position++;
+            }
+            int offsetMinutes = 0;
+            if (position < end) {
+                if (position + 2 != end) {
+                    throw new ParseException("Invalid timestamp offset: " + timestamp, position);
+                }
+                offsetMinutes = parseDigits(timestamp, position, 2);
+            }
+            offsetMillis = offsetHours * MILLIS_PER_HOUR + offsetMinutes * MILLIS_PER_MINUTE;
+            if (sign == '-') {
+                offsetMillis = -offsetMillis;
+            }
+        }
+
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + hour * MILLIS_PER_HOUR
+                + minute * MILLIS_PER_MINUTE
+                + second * MILLIS_PER_SECOND
+                - offsetMillis;
+    }
+
+    private static int parseDigits(CharSequence value, int start, int count)
+            throws ParseException {
+        if (start + count > value.length()) {
+            throw new ParseException("Timestamp too short: " + value, value.length());
+        }
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char character = value.charAt(i);
+            if (!isDigit(character)) {
+                throw new ParseException("Unexpected character in timestamp: " + value, i);
+            }
+            result = result * 10 + (character - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    /**
+     * Returns the number of days between the epoch and a date of the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary;
+
+import android.database.MatrixCursor;
+import android.media.tv.TvContract;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the ordering of channels by display number used for the channel keys and the coalescing
+ * of the refreshes done by {@link BaseTvInputService}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class BaseTvInputServiceTest extends TestCase {
+    private static final long DELAY_MILLIS = 500;
+    private static final long MAX_DELAY_MILLIS = 5000;
+
+    @Test
+    public void testCompareDisplayNumbers() {
+        // Numeric parts are compared by value whatever their separator.
+        assertTrue(BaseTvInputService.compareDisplayNumbers("9", "10") < 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers("2-1", "2-2") < 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers("2-10", "2-9") > 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers("10.3", "10.12") < 0);
+        assertEquals(0, BaseTvInputService.compareDisplayNumbers("10.3", "10-3"));
+        // A major number comes before its minor numbers.
+        assertTrue(BaseTvInputService.compareDisplayNumbers("2", "2-1") < 0);
+        // Text parts are compared as they are.
+        assertTrue(BaseTvInputService.compareDisplayNumbers("5A", "5B") < 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers("5A", "6") < 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers("2-1", "5A") < 0);
+        assertTrue(BaseTvInputService.compareDisplayNumbers(null, "1") < 0);
+        assertEquals(0, BaseTvInputService.compareDisplayNumbers(null, null));
+    }
+
+    @Test
+    public void testAdjacentChannels() {
+        LongSparseArray<Channel> channelMap = createChannelMap();
+        assertAdjacentChannels(channelMap, 3, 2, 5);
+        assertAdjacentChannels(channelMap, 2, 1, 3);
+    }
+
+    @Test
+    public void testAdjacentChannelsWrapAround() {
+        LongSparseArray<Channel> channelMap = createChannelMap();
+        assertAdjacentChannels(channelMap, 1, 6, 2);
+        assertAdjacentChannels(channelMap, 6, 5, 1);
+    }
+
+    @Test
+    public void testAdjacentChannelsSkipNonBrowsable() {
+        LongSparseArray<Channel> channelMap = createChannelMap();
+        // Channel 4 ("3") comes between "2-1" and "10.3" and channel 7 ("12") after "11".
+        assertAdjacentChannels(channelMap, 5, 3, 6);
+        assertAdjacentChannels(channelMap, 4, 3, 5);
+    }
+
+    @Test
+    public void testAdjacentChannelsWithoutOthers() {
+        LongSparseArray<Channel> channelMap = new LongSparseArray<>();
+        channelMap.put(1, createChannel(1, "1", true));
+        assertEquals(
+                Collections.emptyList(), BaseTvInputService.findAdjacentChannels(channelMap, 1));
+
+        // The only other channel is both the previous and the next one.
+        channelMap.put(2, createChannel(2, "2", true));
+        assertAdjacentChannels(channelMap, 1, 2);
+        assertEquals(
+                Collections.emptyList(), BaseTvInputService.findAdjacentChannels(channelMap, 3));
+        assertEquals(Collections.emptyList(), BaseTvInputService.findAdjacentChannels(null, 1));
+    }
+
+    @Test
+    public void testCoalescedTaskPostponedByChanges() {
+        RecordingHandler handler = new RecordingHandler();
+        CountingTask task = new CountingTask(handler);
+        startClock();
+
+        task.onChange();
+        SystemClock.sleep(DELAY_MILLIS / 2);
+        task.onChange();
+        assertEquals(2, handler.mPostCount);
+        assertEquals(DELAY_MILLIS, handler.mLastDelayMillis);
+        assertEquals(0, task.mRunCount);
+
+        task.run();
+        assertEquals(1, task.mRunCount);
+    }
+
+    @Test
+    public void testCoalescedTaskMaxDelay() {
+        RecordingHandler handler = new RecordingHandler();
+        CountingTask task = new CountingTask(handler);
+        startClock();
+        long firstChangeMillis = SystemClock.elapsedRealtime();
+
+        // Changes keep coming faster than the delay.
+        while (SystemClock.elapsedRealtime() - firstChangeMillis < 2 * MAX_DELAY_MILLIS) {
+            task.onChange();
+            SystemClock.sleep(DELAY_MILLIS / 2);
+        }
+
+        // The last run was posted before the max delay so it happens at most a delay after it.
+        assertTrue(handler.mLastPostMillis - firstChangeMillis < MAX_DELAY_MILLIS);
+        int postCount = handler.mPostCount;
+        assertTrue(postCount < 2 * MAX_DELAY_MILLIS / (DELAY_MILLIS / 2));
+
+        // Once the task ran, the next change postpones it again.
+        task.run();
+        task.onChange();
+        assertEquals(postCount + 1, handler.mPostCount);
+    }
+
+    /**
+     * Creates channels whose display numbers mix numeric and text parts. Channels 4 and 7 are
+     * hidden.
+     */
+    private static LongSparseArray<Channel> createChannelMap() {
+        LongSparseArray<Channel> channelMap = new LongSparseArray<>();
+        // Not ordered by id so the map order differs from the display number order.
+        channelMap.put(5, createChannel(5, "10.3", true));
+        channelMap.put(1, createChannel(1, "1", true));
+        channelMap.put(7, createChannel(7, "12", false));
+        channelMap.put(3, createChannel(3, "2-1", true));
+        channelMap.put(6, createChannel(6, "11", true));
+        channelMap.put(2, createChannel(2, "2", true));
+        channelMap.put(4, createChannel(4, "3", false));
+        return channelMap;
+    }
+
+    private static Channel createChannel(long id, String displayNumber, boolean browsable) {
+        MatrixCursor cursor = new MatrixCursor(Channel.PROJECTION);
+        cursor.newRow()
+                .add(TvContract.Channels._ID, id)
+                .add(TvContract.Channels.COLUMN_BROWSABLE, browsable ? 1 : 0)
+                .add(TvContract.Channels.COLUMN_DISPLAY_NUMBER, displayNumber)
+                .add(TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID, id);
+        cursor.moveToFirst();
+        return Channel.fromCursor(cursor);
+    }
+
+    private static void assertAdjacentChannels(
+            LongSparseArray<Channel> channelMap, long channelId, long... expectedIds) {
+        List<Channel> channels = BaseTvInputService.findAdjacentChannels(channelMap, channelId);
+        long[] ids = new long[channels.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = channels.get(i).getId();
+        }
+        assertEquals(Arrays.toString(expectedIds), Arrays.toString(ids));
+    }
+
+    /** Makes sure the clock isn't at 0, which the task uses for no pending change. */
+    private static void startClock() {
+        SystemClock.sleep(DELAY_MILLIS);
+    }
+
+    /** Records the runs posted by a task instead of running them. */
+    private static class RecordingHandler extends Handler {
+        private int mPostCount;
+        private long mLastPostMillis;
+        private long mLastDelayMillis;
+
+        private RecordingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mPostCount++;
+            mLastPostMillis = SystemClock.elapsedRealtime();
+            mLastDelayMillis = uptimeMillis - SystemClock.uptimeMillis();
+            return true;
+        }
+    }
+
+    private static class CountingTask extends BaseTvInputService.CoalescedTask {
+        private int mRunCount;
+
+        private CountingTask(Handler handler) {
+            super(handler, DELAY_MILLIS, MAX_DELAY_MILLIS);
+        }
+
+        @Override
+        void runTask() {
+            mRunCount++;
+        }
+    }
+}
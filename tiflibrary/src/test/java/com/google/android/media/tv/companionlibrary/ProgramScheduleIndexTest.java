@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary;
+
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that the schedule index finds the same programs as a scan of the stored programs and
+ * only answers within its window.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ProgramScheduleIndexTest extends TestCase {
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+    private static final long CHANNEL_ID = 3;
+    private static final long EMPTY_CHANNEL_ID = 4;
+
+    @Test
+    public void testCurrentProgram() {
+        Program[] programs = createPrograms();
+        ProgramScheduleIndex index = createIndex(programs);
+        assertEquals(programs[0], index.getCurrentProgram(CHANNEL_ID, 0));
+        assertEquals(programs[0], index.getCurrentProgram(CHANNEL_ID, HOUR_MILLIS - 1));
+        assertEquals(programs[1], index.getCurrentProgram(CHANNEL_ID, HOUR_MILLIS));
+        // Nothing airs between the second and the third program.
+        assertNull(index.getCurrentProgram(CHANNEL_ID, 2 * HOUR_MILLIS + 1));
+        assertEquals(programs[2], index.getCurrentProgram(CHANNEL_ID, 3 * HOUR_MILLIS));
+        assertNull(index.getCurrentProgram(EMPTY_CHANNEL_ID, HOUR_MILLIS));
+    }
+
+    @Test
+    public void testNextProgram() {
+        Program[] programs = createPrograms();
+        ProgramScheduleIndex index = createIndex(programs);
+        assertEquals(programs[1], index.getNextProgram(CHANNEL_ID, programs[0]));
+        assertEquals(programs[2], index.getNextProgram(CHANNEL_ID, programs[1]));
+        // The program after the last one may start after the window.
+        assertNull(index.getNextProgram(CHANNEL_ID, programs[2]));
+        assertNull(index.getNextProgram(EMPTY_CHANNEL_ID, programs[0]));
+    }
+
+    @Test
+    public void testCoverage() {
+        ProgramScheduleIndex index = createIndex(createPrograms());
+        assertTrue(index.coversCurrentProgram(CHANNEL_ID, 0));
+        assertTrue(index.coversCurrentProgram(EMPTY_CHANNEL_ID, 0));
+        assertFalse(index.coversCurrentProgram(CHANNEL_ID, -1));
+        assertFalse(index.coversCurrentProgram(CHANNEL_ID, 4 * HOUR_MILLIS));
+        // The channel was added after the index was built.
+        assertFalse(index.coversCurrentProgram(5, 0));
+        assertEquals(4 * HOUR_MILLIS, index.getToMs());
+    }
+
+    private static ProgramScheduleIndex createIndex(Program[] programs) {
+        LongSparseArray<Program[]> programMap = new LongSparseArray<>();
+        programMap.put(CHANNEL_ID, programs);
+        return new ProgramScheduleIndex(
+                new long[] {CHANNEL_ID, EMPTY_CHANNEL_ID}, programMap, 0, 4 * HOUR_MILLIS);
+    }
+
+    private static Program[] createPrograms() {
+        return new Program[] {
+            createProgram("Program 0", 0, HOUR_MILLIS),
+            createProgram("Program 1", HOUR_MILLIS, 2 * HOUR_MILLIS),
+            createProgram("Program 2", 3 * HOUR_MILLIS, 5 * HOUR_MILLIS)
+        };
+    }
+
+    private static Program createProgram(String title, long startMs, long endMs) {
+        return new Program.Builder()
+                .setChannelId(CHANNEL_ID)
+                .setTitle(title)
+                .setStartTimeUtcMillis(startMs)
+                .setEndTimeUtcMillis(endMs)
+                .build();
+    }
+}
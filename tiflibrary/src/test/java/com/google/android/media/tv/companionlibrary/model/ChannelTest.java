@@ -114,6 +114,24 @@ public class ChannelTest extends TestCase {
         compareChannel(fullyPopulatedChannel, clonedFullyPopulatedChannel);
     }
 
+    @Test
+    public void testHiddenChannel() {
+        // Tests reading a channel hidden by the system, which is only set in the database.
+        Channel sampleChannel = new Channel.Builder()
+                .setDisplayName("Google")
+                .setDisplayNumber("3")
+                .setOriginalNetworkId(1)
+                .build();
+        assertTrue(sampleChannel.isBrowsable());
+        ContentValues contentValues = sampleChannel.toContentValues();
+        assertFalse(contentValues.containsKey(TvContract.Channels.COLUMN_BROWSABLE));
+        contentValues.put(TvContract.Channels.COLUMN_BROWSABLE, 0);
+
+        Channel hiddenChannel = Channel.fromCursor(getChannelCursor(contentValues));
+        assertFalse(hiddenChannel.isBrowsable());
+        compareChannel(hiddenChannel, new Channel.Builder(hiddenChannel).build());
+    }
+
     private static void compareChannel(Channel channelA, Channel channelB) {
         assertEquals(channelA.getAppLinkColor(), channelB.getAppLinkColor());
         assertEquals(channelA.getAppLinkIconUri(), channelB.getAppLinkIconUri());
@@ -121,6 +139,7 @@ public class ChannelTest extends TestCase {
         assertEquals(channelA.getAppLinkPosterArtUri(), channelB.getAppLinkPosterArtUri());
         assertEquals(channelA.getAppLinkText(), channelB.getAppLinkText());
         assertEquals(channelA.isSearchable(), channelB.isSearchable());
+        assertEquals(channelA.isBrowsable(), channelB.isBrowsable());
         assertEquals(channelA.getDescription(), channelB.getDescription());
         assertEquals(channelA.getDisplayName(), channelB.getDisplayName());
         assertEquals(channelA.getDisplayNumber(), channelB.getDisplayNumber());
@@ -116,6 +116,35 @@ public class ProgramTest extends TestCase {
         compareProgram(fullyPopulatedProgram, clonedFullyPopulatedProgram);
     }
 
+    @Test
+    public void testDiffProjection() {
+        // Tests that a program read with the diff projection is still equal to the stored one.
+        InternalProviderData internalProviderData = new InternalProviderData();
+        internalProviderData.setVideoType(TvContractUtils.SOURCE_TYPE_HLS);
+        internalProviderData.setVideoUrl("http://example.com/stream.m3u8");
+        Program program = new Program.Builder()
+                .setChannelId(3)
+                .setTitle("Program Title")
+                .setEpisodeTitle("Hello World")
+                .setDescription("This is a sample program")
+                .setLongDescription("This is a longer description than the previous description")
+                .setAudioLanguages("en-us")
+                .setBroadcastGenres(new String[] {"Music", "Family"})
+                .setCanonicalGenres(new String[] {TvContract.Programs.Genres.MOVIES})
+                .setContentRatings(new TvContentRating[] {TvContentRating.UNRATED})
+                .setEpisodeNumber(5)
+                .setSeasonNumber(7)
+                .setInternalProviderData(internalProviderData)
+                .setStartTimeUtcMillis(0)
+                .setEndTimeUtcMillis(1000)
+                .build();
+        Program diffProgram = Program.fromDiffCursor(
+                getProgramCursor(program.toContentValues(), Program.DIFF_PROJECTION));
+        assertEquals(program, diffProgram);
+        assertNull(diffProgram.getAudioLanguages());
+        assertNull(diffProgram.getBroadcastGenres());
+    }
+
     private static void compareProgram(Program programA, Program programB) {
         assertTrue(Objects.equals(programA.getAudioLanguages(), programB.getAudioLanguages()));
         assertTrue(Arrays.deepEquals(programA.getBroadcastGenres(), programB.getBroadcastGenres()));
@@ -148,7 +177,10 @@ public class ProgramTest extends TestCase {
     }
 
     private static MatrixCursor getProgramCursor(ContentValues contentValues) {
-        String[] rows = Program.PROJECTION;
+        return getProgramCursor(contentValues, Program.PROJECTION);
+    }
+
+    private static MatrixCursor getProgramCursor(ContentValues contentValues, String[] rows) {
         MatrixCursor cursor = new MatrixCursor(rows);
         MatrixCursor.RowBuilder builder = cursor.newRow();
         for(String row: rows) {
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.TransactionTooLargeException;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests that the estimated size of an operation follows the size of its values once parceled, and
+ * that batches are split and sized without losing or repeating operations.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class OperationBatcherTest extends TestCase {
+    @Test
+    public void testEstimateSizeWithoutValues() {
+        assertTrue(OperationBatcher.estimateSize(null) > 0);
+        assertEquals(
+                OperationBatcher.estimateSize(null),
+                OperationBatcher.estimateSize(new ContentValues()));
+    }
+
+    @Test
+    public void testEstimateSizeCoversParcel() {
+        ContentValues values = new ContentValues();
+        values.put(TvContract.Programs.COLUMN_CHANNEL_ID, 3L);
+        values.put(TvContract.Programs.COLUMN_TITLE, "Program Title");
+        values.put(TvContract.Programs.COLUMN_LONG_DESCRIPTION, new String(new char[4000]));
+        values.put(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA, new byte[8000]);
+        values.putNull(TvContract.Programs.COLUMN_EPISODE_TITLE);
+
+        Parcel parcel = Parcel.obtain();
+        values.writeToParcel(parcel, 0);
+        int parcelSize = parcel.dataSize();
+        parcel.recycle();
+
+        int estimatedSize = OperationBatcher.estimateSize(values);
+        assertTrue(estimatedSize >= parcelSize);
+        assertTrue(estimatedSize < parcelSize * 2);
+    }
+
+    @Test
+    public void testSplitsBatchTooLarge() throws Exception {
+        FakeProviderBatcher batcher = new FakeProviderBatcher(64, Integer.MAX_VALUE);
+        int initialBudget = batcher.getBudgetBytes();
+        List<ContentProviderOperation> operations = createOperations(400);
+        for (ContentProviderOperation operation : operations) {
+            batcher.add(operation, null);
+        }
+        batcher.flush();
+
+        assertTrue(batcher.getSplitCount() > 0);
+        assertTrue(batcher.getBudgetBytes() < initialBudget);
+        for (int batchSize : batcher.mBatchSizes) {
+            assertTrue(batchSize <= 64);
+        }
+        assertAppliedOnce(operations, batcher.mAppliedOperations);
+        assertEquals(operations, batcher.mAppliedOperations);
+        assertEquals(operations.size(), batcher.getAppliedOperationCount());
+        assertEquals(batcher.mBatchSizes.size(), batcher.getAppliedBatchCount());
+    }
+
+    @Test
+    public void testBudgetGrowsBackAfterSplit() throws Exception {
+        FakeProviderBatcher batcher = new FakeProviderBatcher(64, Integer.MAX_VALUE);
+        int initialBudget = batcher.getBudgetBytes();
+        List<ContentProviderOperation> operations = createOperations(400);
+        for (ContentProviderOperation operation : operations) {
+            batcher.add(operation, null);
+        }
+        batcher.flush();
+        int loweredBudget = batcher.getBudgetBytes();
+        assertTrue(loweredBudget < initialBudget);
+
+        // Batches now succeed, each one raising the budget until it reaches its maximum.
+        int previousBudget = loweredBudget;
+        for (int i = 0; i < 40; i++) {
+            List<ContentProviderOperation> batch = createOperations(10);
+            for (ContentProviderOperation operation : batch) {
+                batcher.add(operation, null);
+            }
+            batcher.flush();
+            assertTrue(batcher.getBudgetBytes() >= previousBudget);
+            previousBudget = batcher.getBudgetBytes();
+        }
+        int maxBudget = batcher.getBudgetBytes();
+        assertTrue(maxBudget > initialBudget);
+
+        batcher.add(createOperations(1).get(0), null);
+        batcher.flush();
+        assertEquals(maxBudget, batcher.getBudgetBytes());
+    }
+
+    @Test
+    public void testSingleOperationTooLargeIsRethrown() throws Exception {
+        FakeProviderBatcher batcher = new FakeProviderBatcher(0, Integer.MAX_VALUE);
+        batcher.add(createOperations(1).get(0), null);
+        try {
+            batcher.flush();
+            fail("TransactionTooLargeException expected");
+        } catch (TransactionTooLargeException expected) {
+        }
+
+        // The failed operation isn't pending anymore.
+        batcher.mMaxBatchSize = Integer.MAX_VALUE;
+        batcher.flush();
+        assertTrue(batcher.mAppliedOperations.isEmpty());
+        assertEquals(0, batcher.getAppliedOperationCount());
+    }
+
+    @Test
+    public void testBatchesCappedAtMaxOperationCount() throws Exception {
+        FakeProviderBatcher batcher =
+                new FakeProviderBatcher(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        int initialBudget = batcher.getBudgetBytes();
+        int operationCount = OperationBatcher.MAX_OPERATION_COUNT * 2 + 234;
+        // Small enough for every operation to fit in the budget, only their count splits them.
+        assertTrue(operationCount * OperationBatcher.estimateSize(null) < initialBudget);
+        List<ContentProviderOperation> operations = createOperations(operationCount);
+        for (ContentProviderOperation operation : operations) {
+            batcher.add(operation, null);
+        }
+        batcher.flush();
+
+        assertEquals(
+                Arrays.asList(
+                        OperationBatcher.MAX_OPERATION_COUNT,
+                        OperationBatcher.MAX_OPERATION_COUNT,
+                        234),
+                batcher.mBatchSizes);
+        assertEquals(0, batcher.getSplitCount());
+        assertAppliedOnce(operations, batcher.mAppliedOperations);
+
+        List<ContentValues> rows = createRows(operationCount);
+        batcher.bulkInsert(TvContract.Programs.CONTENT_URI, rows);
+        assertEquals(
+                Arrays.asList(
+                        OperationBatcher.MAX_OPERATION_COUNT,
+                        OperationBatcher.MAX_OPERATION_COUNT,
+                        234),
+                batcher.mInsertSizes);
+        assertAppliedOnce(rows, batcher.mInsertedRows);
+    }
+
+    @Test
+    public void testBulkInsertSplitsWhenNothingInserted() throws Exception {
+        FakeProviderBatcher batcher = new FakeProviderBatcher(Integer.MAX_VALUE, 100);
+        int initialBudget = batcher.getBudgetBytes();
+        List<ContentValues> rows = createRows(450);
+        batcher.bulkInsert(TvContract.Programs.CONTENT_URI, rows);
+
+        assertTrue(batcher.getSplitCount() > 0);
+        assertTrue(batcher.getBudgetBytes() < initialBudget);
+        for (int insertSize : batcher.mInsertSizes) {
+            assertTrue(insertSize <= 100);
+        }
+        assertAppliedOnce(rows, batcher.mInsertedRows);
+        assertEquals(rows, batcher.mInsertedRows);
+        assertEquals(rows.size(), batcher.getAppliedOperationCount());
+    }
+
+    @Test
+    public void testBulkInsertFlushesPendingOperationsFirst() throws Exception {
+        FakeProviderBatcher batcher =
+                new FakeProviderBatcher(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        List<ContentProviderOperation> operations = createOperations(3);
+        for (ContentProviderOperation operation : operations) {
+            batcher.add(operation, null);
+        }
+        batcher.bulkInsert(TvContract.Programs.CONTENT_URI, createRows(5));
+
+        assertEquals(operations, batcher.mAppliedOperations);
+        assertEquals(Arrays.asList(5), batcher.mInsertSizes);
+        assertEquals(8, batcher.getAppliedOperationCount());
+    }
+
+    @Test
+    public void testPartialInsertFails() throws Exception {
+        FakeProviderBatcher batcher =
+                new FakeProviderBatcher(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        batcher.mMissingRowCount = 1;
+        try {
+            batcher.bulkInsert(TvContract.Programs.CONTENT_URI, createRows(10));
+            fail("OperationApplicationException expected");
+        } catch (OperationApplicationException expected) {
+        }
+        assertEquals(0, batcher.getSplitCount());
+    }
+
+    private static List<ContentProviderOperation> createOperations(int count) {
+        List<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            operations.add(
+                    ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI)
+                            .withValues(createValues(i))
+                            .build());
+        }
+        return operations;
+    }
+
+    private static List<ContentValues> createRows(int count) {
+        List<ContentValues> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(createValues(i));
+        }
+        return rows;
+    }
+
+    private static ContentValues createValues(int index) {
+        ContentValues values = new ContentValues();
+        values.put(TvContract.Programs.COLUMN_CHANNEL_ID, 1L);
+        values.put(TvContract.Programs.COLUMN_TITLE, "Program " + index);
+        return values;
+    }
+
+    /** Checks that each of the expected items was written once and nothing else was written. */
+    private static <T> void assertAppliedOnce(List<T> expected, List<T> applied) {
+        Map<T, Integer> counts = new IdentityHashMap<>();
+        for (T item : applied) {
+            Integer count = counts.get(item);
+            counts.put(item, count == null ? 1 : count + 1);
+        }
+        assertEquals(expected.size(), applied.size());
+        for (T item : expected) {
+            assertEquals(Integer.valueOf(1), counts.get(item));
+        }
+    }
+
+    /**
+     * Batcher writing to a fake provider which rejects the batches and insertions that are too
+     * large, as the binder does, and records what it accepts.
+     */
+    private static class FakeProviderBatcher extends OperationBatcher {
+        private final List<ContentProviderOperation> mAppliedOperations = new ArrayList<>();
+        private final List<Integer> mBatchSizes = new ArrayList<>();
+        private final List<ContentValues> mInsertedRows = new ArrayList<>();
+        private final List<Integer> mInsertSizes = new ArrayList<>();
+        private final int mMaxInsertSize;
+        private int mMaxBatchSize;
+        private int mMissingRowCount;
+
+        FakeProviderBatcher(int maxBatchSize, int maxInsertSize) {
+            super(null, TvContract.AUTHORITY);
+            mMaxBatchSize = maxBatchSize;
+            mMaxInsertSize = maxInsertSize;
+        }
+
+        @Override
+        void applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws TransactionTooLargeException {
+            if (operations.size() > mMaxBatchSize) {
+                throw new TransactionTooLargeException();
+            }
+            mAppliedOperations.addAll(operations);
+            mBatchSizes.add(operations.size());
+        }
+
+        @Override
+        int insertRows(Uri uri, ContentValues[] values) {
+            if (values.length > mMaxInsertSize) {
+                // ContentResolver returns 0 when the transaction fails.
+                return 0;
+            }
+            List<ContentValues> inserted =
+                    Arrays.asList(values).subList(0, values.length - mMissingRowCount);
+            mInsertedRows.addAll(inserted);
+            mInsertSizes.add(inserted.size());
+            return inserted.size();
+        }
+    }
+}
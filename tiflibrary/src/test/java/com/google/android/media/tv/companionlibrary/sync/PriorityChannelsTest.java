@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+/**
+ * Tests that the recently tuned channels are kept in order and synced before the other ones.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class PriorityChannelsTest extends TestCase {
+    @Test
+    public void testAdd() {
+        SharedPreferences preferences =
+                RuntimeEnvironment.application.getSharedPreferences(
+                        EpgSyncJobService.PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE);
+        assertEquals(0, PriorityChannels.read(preferences).length);
+
+        for (long channelId = 1; channelId <= PriorityChannels.MAX_CHANNEL_COUNT; channelId++) {
+            PriorityChannels.add(preferences, channelId);
+        }
+        PriorityChannels.add(preferences, 3);
+        assertTrue(Arrays.equals(new long[] {3, 5, 4, 2, 1}, PriorityChannels.read(preferences)));
+
+        PriorityChannels.add(preferences, 6);
+        assertTrue(Arrays.equals(new long[] {6, 3, 5, 4, 2}, PriorityChannels.read(preferences)));
+    }
+
+    @Test
+    public void testChannelOrder() {
+        LongSparseArray<String> channelMap = new LongSparseArray<>();
+        channelMap.put(10, "A");
+        channelMap.put(20, "B");
+        channelMap.put(30, "C");
+        channelMap.put(40, "D");
+        // Removed and duplicated channels are left out.
+        int[] priorityIndexes = PriorityChannels.getIndexes(channelMap, new long[] {30, 25, 30, 10});
+        assertTrue(Arrays.equals(new int[] {2, 0}, priorityIndexes));
+
+        assertTrue(
+                Arrays.equals(
+                        new int[] {2, 0, 1, 3},
+                        PriorityChannels.getChannelOrder(4, priorityIndexes, 0)));
+        // Resumed after the second channel.
+        assertTrue(
+                Arrays.equals(
+                        new int[] {2, 0, 3},
+                        PriorityChannels.getChannelOrder(4, priorityIndexes, 2)));
+        assertTrue(
+                Arrays.equals(
+                        new int[] {2, 0}, PriorityChannels.getChannelOrder(4, priorityIndexes, 4)));
+    }
+}
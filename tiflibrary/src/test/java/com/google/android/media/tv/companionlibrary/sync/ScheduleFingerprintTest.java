@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.sync;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that the fingerprint of a schedule only changes when a value written to the database
+ * changes.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ScheduleFingerprintTest extends TestCase {
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+
+    @Test
+    public void testSameSchedule() {
+        assertEquals(
+                ScheduleFingerprint.compute(createSchedule(3, "Title")),
+                ScheduleFingerprint.compute(createSchedule(3, "Title")));
+    }
+
+    @Test
+    public void testEmptySchedule() {
+        assertTrue(
+                ScheduleFingerprint.compute(new ArrayList<Program>())
+                        != ScheduleFingerprint.NONE);
+    }
+
+    @Test
+    public void testChangedValue() {
+        long fingerprint = ScheduleFingerprint.compute(createSchedule(3, "Title"));
+        assertTrue(fingerprint != ScheduleFingerprint.compute(createSchedule(3, "Title 2")));
+        assertTrue(fingerprint != ScheduleFingerprint.compute(createSchedule(4, "Title")));
+
+        List<Program> schedule = createSchedule(3, "Title");
+        InternalProviderData internalProviderData = new InternalProviderData();
+        internalProviderData.setVideoUrl("http://example.com/other.m3u8");
+        schedule.set(
+                1,
+                new Program.Builder(schedule.get(1))
+                        .setInternalProviderData(internalProviderData)
+                        .build());
+        assertTrue(fingerprint != ScheduleFingerprint.compute(schedule));
+    }
+
+    @Test
+    public void testChangedOrder() {
+        List<Program> schedule = createSchedule(3, "Title");
+        long fingerprint = ScheduleFingerprint.compute(schedule);
+        List<Program> reversedSchedule =
+                new ArrayList<>(Arrays.asList(schedule.get(2), schedule.get(1), schedule.get(0)));
+        assertTrue(fingerprint != ScheduleFingerprint.compute(reversedSchedule));
+        assertTrue(fingerprint != ScheduleFingerprint.compute(schedule.subList(0, 2)));
+    }
+
+    private static List<Program> createSchedule(long channelId, String title) {
+        List<Program> programs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            InternalProviderData internalProviderData = new InternalProviderData();
+            internalProviderData.setVideoType(TvContractUtils.SOURCE_TYPE_HLS);
+            internalProviderData.setVideoUrl("http://example.com/stream.m3u8");
+            programs.add(
+                    new Program.Builder()
+                            .setChannelId(channelId)
+                            .setTitle(title + " " + i)
+                            .setDescription("Program " + i)
+                            .setInternalProviderData(internalProviderData)
+                            .setStartTimeUtcMillis(i * HOUR_MILLIS)
+                            .setEndTimeUtcMillis((i + 1) * HOUR_MILLIS)
+                            .build());
+        }
+        return programs;
+    }
+}
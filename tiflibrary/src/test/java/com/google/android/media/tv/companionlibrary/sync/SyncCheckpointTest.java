@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that a sync checkpoint is persisted per input and resumed only within its window.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class SyncCheckpointTest extends TestCase {
+    private static final String INPUT_ID = "com.example.input/.TvInputService";
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+
+    @Test
+    public void testPersistence() {
+        SharedPreferences preferences =
+                RuntimeEnvironment.application.getSharedPreferences(
+                        EpgSyncJobService.PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE);
+        assertNull(SyncCheckpoint.read(preferences, INPUT_ID));
+
+        SharedPreferences.Editor editor = preferences.edit();
+        new SyncCheckpoint(INPUT_ID, 0, 48 * HOUR_MILLIS, 41, 1042).write(editor);
+        editor.commit();
+        SyncCheckpoint checkpoint = SyncCheckpoint.read(preferences, INPUT_ID);
+        assertEquals(0, checkpoint.getStartMs());
+        assertEquals(48 * HOUR_MILLIS, checkpoint.getEndMs());
+        assertEquals(41, checkpoint.getChannelIndex());
+        assertEquals(1042, checkpoint.getChannelId());
+        assertNull(SyncCheckpoint.read(preferences, "com.example.other/.TvInputService"));
+
+        SyncCheckpoint.clear(editor);
+        editor.commit();
+        assertNull(SyncCheckpoint.read(preferences, INPUT_ID));
+    }
+
+    @Test
+    public void testCanResume() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(INPUT_ID, 0, 48 * HOUR_MILLIS, 0, 1);
+        assertTrue(checkpoint.canResume(HOUR_MILLIS, 48 * HOUR_MILLIS));
+        assertFalse(checkpoint.canResume(24 * HOUR_MILLIS, 48 * HOUR_MILLIS));
+        assertFalse(checkpoint.canResume(HOUR_MILLIS, HOUR_MILLIS));
+    }
+
+    @Test
+    public void testNextChannelIndex() {
+        LongSparseArray<String> channelMap = new LongSparseArray<>();
+        channelMap.put(10, "A");
+        channelMap.put(20, "B");
+        channelMap.put(30, "C");
+        assertEquals(1, new SyncCheckpoint(INPUT_ID, 0, 1, 0, 10).getNextChannelIndex(channelMap));
+        // The channel of the checkpoint has been removed since.
+        assertEquals(2, new SyncCheckpoint(INPUT_ID, 0, 1, 1, 25).getNextChannelIndex(channelMap));
+        assertEquals(3, new SyncCheckpoint(INPUT_ID, 0, 1, 2, 30).getNextChannelIndex(channelMap));
+    }
+}
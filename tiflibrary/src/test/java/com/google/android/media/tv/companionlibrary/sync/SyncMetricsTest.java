@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+/**
+ * Tests that the metrics of a sync run are sent with the finished broadcast and kept in the
+ * history.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class SyncMetricsTest extends TestCase {
+    private static final String INPUT_ID = "com.example.input/.TvInputService";
+
+    @Test
+    public void testFinishedIntent() {
+        SyncMetrics metrics = createMetrics(INPUT_ID, 3);
+        Intent intent = EpgSyncJobService.createSyncFinishedIntent(INPUT_ID, metrics);
+        SyncMetrics received =
+                SyncMetrics.fromBundle(
+                        intent.getBundleExtra(EpgSyncJobService.BUNDLE_KEY_SYNC_METRICS));
+        assertEquals(INPUT_ID, received.getInputId());
+        assertEquals(3, received.getSyncedChannelCount());
+        assertEquals(5, received.getChannelCount());
+        assertEquals(120, received.getProgramCount());
+        assertEquals(80, received.getAddedProgramCount());
+        assertEquals(1, received.getUnchangedChannelCount());
+        assertEquals(42, received.getAppVersionCode());
+        assertTrue(received.isFullSync());
+        assertFalse(received.isCompleted());
+        assertEquals(metrics.getStartTimeMillis(), received.getStartTimeMillis());
+        assertTrue(received.getPeakHeapBytes() > 0);
+        assertEquals(150, received.getFeedConnectMillis(SyncMetrics.FEED_CHANNELS));
+        assertEquals(900, received.getFeedDownloadMillis(SyncMetrics.FEED_CHANNELS));
+        assertEquals(300, received.getFeedParseMillis(SyncMetrics.FEED_CHANNELS));
+        assertEquals(0, received.getFeedConnectMillis(SyncMetrics.FEED_PROGRAMS));
+        assertEquals(4000, received.getFeedDownloadMillis(SyncMetrics.FEED_PROGRAMS));
+        assertEquals(2500, received.getFeedParseMillis(SyncMetrics.FEED_PROGRAMS));
+
+        assertNull(
+                EpgSyncJobService.createSyncFinishedIntent(INPUT_ID)
+                        .getBundleExtra(EpgSyncJobService.BUNDLE_KEY_SYNC_METRICS));
+    }
+
+    @Test
+    public void testHistory() {
+        SharedPreferences preferences =
+                RuntimeEnvironment.application.getSharedPreferences(
+                        EpgSyncJobService.PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE);
+        assertTrue(SyncMetrics.readHistory(preferences).isEmpty());
+
+        for (int i = 0; i <= SyncMetrics.MAX_HISTORY_COUNT; i++) {
+            SyncMetrics.addToHistory(preferences, createMetrics(INPUT_ID, i));
+        }
+        List<SyncMetrics> history = SyncMetrics.readHistory(preferences);
+        assertEquals(SyncMetrics.MAX_HISTORY_COUNT, history.size());
+        // The most recent run comes first and the oldest one was dropped.
+        assertEquals(SyncMetrics.MAX_HISTORY_COUNT, history.get(0).getSyncedChannelCount());
+        assertEquals(1, history.get(history.size() - 1).getSyncedChannelCount());
+        assertEquals(INPUT_ID, history.get(0).getInputId());
+    }
+
+    private static SyncMetrics createMetrics(String inputId, int syncedChannelCount) {
+        SyncMetrics metrics = new SyncMetrics(inputId, true);
+        metrics.setChannelCount(5);
+        for (int i = 0; i < syncedChannelCount; i++) {
+            metrics.addSyncedChannel();
+        }
+        metrics.setProgramCounts(120, 80, 10, 30, 1);
+        metrics.setFeedTimings(SyncMetrics.FEED_CHANNELS, 150, 900, 300);
+        metrics.setFeedTimings(SyncMetrics.FEED_PROGRAMS, 0, 4000, 2500);
+        metrics.finish(false, 42);
+        return metrics;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link XmlTvParser.TvListing} groups programs and sets their genres like the
+ * previous implementations, which are kept here as a reference for {@link XmlTvBenchmarkTest}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class TvListingTest extends TestCase {
+    static final String GENRES_JSON = "[\"MOVIES\",\"DRAMA\"]";
+    private static final long PROGRAM_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(75);
+    private static final int CHANNEL_COUNT = 300;
+    private static final int PROGRAMS_PER_CHANNEL = 100;
+
+    @Test
+    public void testGroupingMatchesPreviousImplementation() {
+        List<Channel> channels = createChannels(CHANNEL_COUNT);
+        List<Program> programs = createPrograms(channels, PROGRAMS_PER_CHANNEL);
+        HashMap<Long, List<Program>> legacyMap = groupProgramsLegacy(channels, programs);
+        XmlTvParser.TvListing listing = new XmlTvParser.TvListing(channels, programs);
+
+        for (Channel channel : channels) {
+            assertEquals(legacyMap.get(channel.getOriginalNetworkId()), listing.getPrograms(channel));
+        }
+        assertEquals(programs.size(), listing.getAllPrograms().size());
+    }
+
+    @Test
+    public void testProgramsSortedByStartTime() {
+        List<Channel> channels = createChannels(CHANNEL_COUNT);
+        XmlTvParser.TvListing listing =
+                new XmlTvParser.TvListing(channels, createPrograms(channels, PROGRAMS_PER_CHANNEL));
+
+        List<Program> channelPrograms = listing.getPrograms(channels.get(0));
+        assertEquals(PROGRAMS_PER_CHANNEL, channelPrograms.size());
+        for (int i = 1; i < channelPrograms.size(); i++) {
+            assertTrue(channelPrograms.get(i - 1).getStartTimeUtcMillis()
+                    <= channelPrograms.get(i).getStartTimeUtcMillis());
+        }
+    }
+
+    @Test
+    public void testProgramsWithGenres() throws JSONException {
+        List<Channel> channels = createChannels(CHANNEL_COUNT);
+        XmlTvParser.TvListing listing =
+                new XmlTvParser.TvListing(channels, createPrograms(channels, PROGRAMS_PER_CHANNEL));
+        int id = (int) channels.get(0).getOriginalNetworkId();
+        List<Program> programs = listing.getPrograms(id, decodeGenres(GENRES_JSON));
+        assertEquals(getProgramsWithGenresLegacy(listing, id), programs);
+        assertTrue(Arrays.equals(
+                new String[] {"MOVIES", "DRAMA"}, programs.get(0).getCanonicalGenres()));
+    }
+
+    @Test
+    public void testProgramsForStoredChannel() throws JSONException {
+        List<Channel> channels = createChannels(CHANNEL_COUNT);
+        XmlTvParser.TvListing listing =
+                new XmlTvParser.TvListing(channels, createPrograms(channels, PROGRAMS_PER_CHANNEL));
+        int id = (int) channels.get(0).getOriginalNetworkId();
+        String[] genres = decodeGenres(GENRES_JSON);
+        List<Program> programs = listing.getPrograms(id, 42, genres);
+        assertEquals(PROGRAMS_PER_CHANNEL, programs.size());
+        for (Program program : programs) {
+            assertEquals(42, program.getChannelId());
+            assertSame(genres, program.getCanonicalGenres());
+        }
+        assertNull(listing.getPrograms("unknown".hashCode(), 42, genres));
+    }
+
+    @Test
+    public void testAllProgramsByChannel() {
+        List<Channel> channels = createChannels(CHANNEL_COUNT);
+        List<Program> programs = createPrograms(channels, PROGRAMS_PER_CHANNEL);
+        programs.add(new Program.Builder()
+                .setChannelId("unknown".hashCode())
+                .setTitle("Program of an unknown channel")
+                .setStartTimeUtcMillis(0)
+                .setEndTimeUtcMillis(PROGRAM_DURATION_MILLIS)
+                .build());
+        XmlTvParser.TvListing listing = new XmlTvParser.TvListing(channels, programs);
+
+        List<Program> allPrograms = listing.getAllPrograms();
+        assertEquals(CHANNEL_COUNT * PROGRAMS_PER_CHANNEL, listing.getProgramCount());
+        assertEquals(listing.getProgramCount(), allPrograms.size());
+        for (int i = 0; i < allPrograms.size(); i++) {
+            Channel channel = channels.get(i / PROGRAMS_PER_CHANNEL);
+            assertEquals(channel.getOriginalNetworkId(), allPrograms.get(i).getChannelId());
+            assertEquals("Program " + i % PROGRAMS_PER_CHANNEL, allPrograms.get(i).getTitle());
+        }
+    }
+
+    static List<Channel> createChannels(int count) {
+        List<Channel> channels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = "channel." + i;
+            channels.add(new Channel.Builder()
+                    .setDisplayName(id)
+                    .setOriginalNetworkId(id.hashCode())
+                    .build());
+        }
+        return channels;
+    }
+
+    /** Creates programs the way XMLTV feeds usually list them, grouped by day. */
+    static List<Program> createPrograms(List<Channel> channels, int programsPerChannel) {
+        List<Program> programs = new ArrayList<>(channels.size() * programsPerChannel);
+        int programsPerDay = 19;
+        for (int day = 0; day * programsPerDay < programsPerChannel; day++) {
+            for (Channel channel : channels) {
+                int first = day * programsPerDay;
+                int last = Math.min(first + programsPerDay, programsPerChannel);
+                for (int i = first; i < last; i++) {
+                    programs.add(new Program.Builder()
+                            .setChannelId(channel.getOriginalNetworkId())
+                            .setTitle("Program " + i)
+                            .setStartTimeUtcMillis(i * PROGRAM_DURATION_MILLIS)
+                            .setEndTimeUtcMillis((i + 1) * PROGRAM_DURATION_MILLIS)
+                            .build());
+                }
+            }
+        }
+        return programs;
+    }
+
+    /** Previous way of setting the genres of a channel on its programs. */
+    static List<Program> getProgramsWithGenresLegacy(XmlTvParser.TvListing listing, int id)
+            throws JSONException {
+        List<Program> programs = listing.getPrograms(id);
+        for (int i = 0; i < programs.size(); i++) {
+            Program.Builder builder = new Program.Builder(programs.get(i));
+            builder.setCanonicalGenres(decodeGenres(GENRES_JSON));
+            programs.set(i, builder.build());
+        }
+        return programs;
+    }
+
+    static String[] decodeGenres(String json) throws JSONException {
+        JSONArray jsonArray = new JSONArray(json);
+        String[] genres = new String[jsonArray.length()];
+        for (int i = 0; i < jsonArray.length(); i++) {
+            genres[i] = jsonArray.getString(i);
+        }
+        return genres;
+    }
+
+    /** Previous grouping implementation, which walked the program list once per channel. */
+    static HashMap<Long, List<Program>> groupProgramsLegacy(
+            List<Channel> channels, List<Program> allPrograms) {
+        List<Program> programs = new ArrayList<>(allPrograms);
+        HashMap<Long, List<Program>> programMap = new HashMap<>();
+        for (Channel channel : channels) {
+            List<Program> programsForChannel = new ArrayList<>();
+            Iterator<Program> programIterator = programs.iterator();
+            while (programIterator.hasNext()) {
+                Program program = programIterator.next();
+                if (program.getChannelId() == channel.getOriginalNetworkId()) {
+                    programsForChannel.add(
+                            new Program.Builder(program).setChannelId(channel.getId()).build());
+                    programIterator.remove();
+                }
+            }
+            if (!programMap.containsKey(channel.getOriginalNetworkId())) {
+                programMap.put(channel.getOriginalNetworkId(), programsForChannel);
+            }
+        }
+        return programMap;
+    }
+}
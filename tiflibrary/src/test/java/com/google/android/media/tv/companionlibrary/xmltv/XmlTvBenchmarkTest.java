@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.benchmark.Benchmark;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times the XMLTV parsing and grouping against the implementations they replaced. Only runs with
+ * {@code gradlew test -Pbenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class XmlTvBenchmarkTest extends TestCase {
+    // A 14 days guide for a large lineup.
+    private static final int REALISTIC_CHANNEL_COUNT = 1500;
+    private static final int REALISTIC_PROGRAMS_PER_CHANNEL = 270;
+    private static final int GENRES_CHANNEL_COUNT = 200;
+    private static final int GENRES_PROGRAMS_PER_CHANNEL = 300;
+    private static final int TIMESTAMP_COUNT = 100000;
+
+    @Test
+    public void testGroupingAtRealisticSize() throws Exception {
+        Benchmark.assumeEnabled();
+        final List<Channel> channels = TvListingTest.createChannels(REALISTIC_CHANNEL_COUNT);
+        final List<Program> programs =
+                TvListingTest.createPrograms(channels, REALISTIC_PROGRAMS_PER_CHANNEL);
+        // The previous implementation takes too long to be run more than once at this size.
+        Benchmark.compare(
+                "Grouping of " + programs.size() + " programs",
+                programs.size(),
+                0,
+                1,
+                new Benchmark.Task() {
+                    @Override
+                    public long run() {
+                        HashMap<Long, List<Program>> programMap =
+                                TvListingTest.groupProgramsLegacy(channels, programs);
+                        long checksum = 0;
+                        for (Channel channel : channels) {
+                            checksum += programMap.get(channel.getOriginalNetworkId()).size();
+                        }
+                        return checksum;
+                    }
+                },
+                new Benchmark.Task() {
+                    @Override
+                    public long run() {
+                        XmlTvParser.TvListing listing =
+                                new XmlTvParser.TvListing(channels, programs);
+                        long checksum = 0;
+                        for (Channel channel : channels) {
+                            checksum += listing.getPrograms(channel).size();
+                        }
+                        return checksum;
+                    }
+                });
+    }
+
+    /**
+     * Compares getting the programs of a channel with its genres decoded once with the previous
+     * implementation, which decoded the genres and copied each program again to set them.
+     */
+    @Test
+    public void testProgramsWithGenres() throws Exception {
+        Benchmark.assumeEnabled();
+        final List<Channel> channels = TvListingTest.createChannels(GENRES_CHANNEL_COUNT);
+        final XmlTvParser.TvListing listing =
+                new XmlTvParser.TvListing(
+                        channels,
+                        TvListingTest.createPrograms(channels, GENRES_PROGRAMS_PER_CHANNEL));
+        Benchmark.compare(
+                "Programs with genres",
+                GENRES_CHANNEL_COUNT * GENRES_PROGRAMS_PER_CHANNEL,
+                3,
+                10,
+                new Benchmark.Task() {
+                    @Override
+                    public long run() throws Exception {
+                        long checksum = 0;
+                        for (Channel channel : channels) {
+                            int id = (int) channel.getOriginalNetworkId();
+                            checksum +=
+                                    TvListingTest.getProgramsWithGenresLegacy(listing, id).size();
+                        }
+                        return checksum;
+                    }
+                },
+                new Benchmark.Task() {
+                    @Override
+                    public long run() throws Exception {
+                        long checksum = 0;
+                        for (Channel channel : channels) {
+                            int id = (int) channel.getOriginalNetworkId();
+                            String[] genres = TvListingTest.decodeGenres(TvListingTest.GENRES_JSON);
+                            checksum += listing.getPrograms(id, genres).size();
+                        }
+                        return checksum;
+                    }
+                });
+    }
+
+    @Test
+    public void testTimestampParsing() throws Exception {
+        Benchmark.assumeEnabled();
+        final String timestamp = "20150817000147 +0200";
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        Benchmark.compare(
+                "Timestamp parsing",
+                TIMESTAMP_COUNT,
+                2,
+                5,
+                new Benchmark.Task() {
+                    @Override
+                    public long run() throws Exception {
+                        long checksum = 0;
+                        for (int i = 0; i < TIMESTAMP_COUNT; i++) {
+                            checksum += dateFormat.parse(timestamp).getTime();
+                        }
+                        return checksum;
+                    }
+                },
+                new Benchmark.Task() {
+                    @Override
+                    public long run() throws Exception {
+                        long checksum = 0;
+                        for (int i = 0; i < TIMESTAMP_COUNT; i++) {
+                            checksum += XmlTvTimestampParser.parse(timestamp);
+                        }
+                        return checksum;
+                    }
+                });
+    }
+}
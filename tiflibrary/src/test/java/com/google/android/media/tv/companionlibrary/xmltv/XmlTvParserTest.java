@@ -21,7 +21,9 @@ import android.os.Build;
 import androidx.annotation.RequiresApi;
 
 import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 
 import junit.framework.TestCase;
@@ -34,6 +36,11 @@ import org.robolectric.annotation.Config;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
@@ -85,6 +92,55 @@ public class XmlTvParserTest extends TestCase {
 
 
 
+    @Test
+    public void testFilteredParsing() throws XmlTvParser.XmlTvParseException, ParseException {
+        String testXmlFile = "xmltv.xml";
+        String firstChannelId = "com.example.android.sampletvinput.2-1";
+        String secondChannelId = "com.example.android.sampletvinput.2-2";
+        Set<Long> channelIds = new HashSet<>();
+        channelIds.add((long) firstChannelId.hashCode());
+        channelIds.add((long) secondChannelId.hashCode());
+        long startMs = XmlTvTimestampParser.parse("20150817001000 +0000");
+        long endMs = XmlTvTimestampParser.parse("20150817005000 +0000");
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(testXmlFile);
+        XmlTvParser.TvListing listings =
+                XmlTvParser.parse(inputStream, channelIds, startMs, endMs);
+        assertNotNull(listings);
+        assertEquals(2, listings.getChannels().size());
+        assertEquals("Creative Commons", listings.getChannels().get(1).getDisplayName());
+        assertEquals(4, listings.getAllPrograms().size());
+        assertEquals(2, listings.getPrograms(listings.getChannels().get(0)).size());
+        assertEquals(2, listings.getPrograms(listings.getChannels().get(1)).size());
+        for (Program program : listings.getAllPrograms()) {
+            assertTrue(program.getStartTimeUtcMillis() < endMs);
+            assertTrue(program.getEndTimeUtcMillis() > startMs);
+        }
+    }
+
+    @Test
+    public void testHandlerParsing() throws XmlTvParser.XmlTvParseException {
+        String testXmlFile = "xmltv.xml";
+        final List<Channel> channels = new ArrayList<>();
+        final List<Program> programs = new ArrayList<>();
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(testXmlFile);
+        boolean parsed = XmlTvParser.parse(inputStream, new XmlTvParser.TvListingHandler() {
+            @Override
+            public void onChannel(Channel channel) {
+                channels.add(channel);
+            }
+
+            @Override
+            public void onProgram(Program program) {
+                programs.add(program);
+            }
+        });
+        assertTrue(parsed);
+        assertEquals(4, channels.size());
+        assertEquals(9, programs.size());
+        assertEquals("Introducing Gmail Blue", programs.get(0).getTitle());
+        assertEquals(channels.get(0).getOriginalNetworkId(), programs.get(0).getChannelId());
+    }
+
     @Test
     public void testValidXmlParsing()
             throws XmlTvParser.XmlTvParseException, FileNotFoundException {
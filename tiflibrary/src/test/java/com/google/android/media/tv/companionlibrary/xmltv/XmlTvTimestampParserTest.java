@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Isaac Pateau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests that {@link XmlTvTimestampParser} gives the same results as the {@link SimpleDateFormat}
+ * previously used by {@link XmlTvParser}.
+ */
+public class XmlTvTimestampParserTest extends TestCase {
+    private static final String XMLTV_PATTERN = "yyyyMMddHHmmss Z";
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws ParseException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(XMLTV_PATTERN, Locale.US);
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String timestamp = String.format(Locale.US, "%04d%02d%02d%02d%02d%02d %c%02d%02d",
+                    1970 + random.nextInt(100),
+                    1 + random.nextInt(12),
+                    1 + random.nextInt(28),
+                    random.nextInt(24),
+                    random.nextInt(60),
+                    random.nextInt(60),
+                    random.nextBoolean() ? '+' : '-',
+                    random.nextInt(14),
+                    random.nextInt(4) * 15);
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(),
+                    XmlTvTimestampParser.parse(timestamp));
+        }
+    }
+
+    @Test
+    public void testSampleFeedTimestamps() throws ParseException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(XMLTV_PATTERN, Locale.US);
+        String[] timestamps = {
+                "20150817000000 +0000",
+                "20150817000147 +0000",
+                "20160229235959 +0100",
+                "20171231230000 -0500",
+                "20180325020000 +0530"
+        };
+        for (String timestamp : timestamps) {
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(),
+                    XmlTvTimestampParser.parse(timestamp));
+        }
+    }
+
+    @Test
+    public void testVariants() throws ParseException {
+        long expected = XmlTvTimestampParser.parse("20150817103000 +0000");
+        assertEquals(expected, XmlTvTimestampParser.parse("20150817103000"));
+        assertEquals(expected, XmlTvTimestampParser.parse("201508171030"));
+        assertEquals(expected, XmlTvTimestampParser.parse("201508171030 +0000"));
+        assertEquals(expected, XmlTvTimestampParser.parse("20150817123000 +02:00"));
+        assertEquals(expected, XmlTvTimestampParser.parse("20150817123000+0200"));
+        assertEquals(expected, XmlTvTimestampParser.parse("20150817053000 -05"));
+        assertEquals(expected, XmlTvTimestampParser.parse("20150817103000 +0000 "));
+    }
+
+    @Test
+    public void testInvalidTimestamps() {
+        String[] timestamps = {
+                null,
+                "",
+                "2015081710",
+                "2015O817103000 +0000",
+                "20151317103000 +0000",
+                "20150817103000 0000",
+                "20150817103000 +00000",
+                "20150817103000 UTC"
+        };
+        for (String timestamp : timestamps) {
+            try {
+                XmlTvTimestampParser.parse(timestamp);
+                fail("Timestamp should not be valid: " + timestamp);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+}